@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mqttloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mqttloader.Constants.OutputFormat;
+import mqttloader.Constants.RecorderOverflow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Aggregating the output file after the measurement, as Loader.calcResult() does when "output" is given.
+ * The file has the records of one publisher and one subscriber sending and receiving at the given rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecordFileReaderBenchmark {
+    @Param({"csv", "binary"})
+    public String format;
+
+    @Param({"1000000"})
+    public int numRecords;
+
+    @Param({"1", "4"})
+    public int numThreads;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile(Constants.FILE_NAME_PREFIX, "." + format);
+        RecordWriter writer;
+        if(OutputFormat.of(format) == OutputFormat.BINARY) {
+            writer = new BinaryRecordWriter(file);
+        } else {
+            writer = new CsvRecordWriter(file);
+        }
+        RecordBuffer sendBuffer = new RecordBuffer(0, Constants.PUB_CLIENT_ID_PREFIX + "00000", true, 2, RecorderOverflow.DROP);
+        RecordBuffer recvBuffer = new RecordBuffer(0, Constants.SUB_CLIENT_ID_PREFIX + "00000", false, 2, RecorderOverflow.DROP);
+        long startEpochMicros = Clock.currentEpochMicros();
+        writer.writeStartTime(startEpochMicros);
+        // 10k messages per second, each of which is sent and then received 1ms later.
+        for(int i=0;i<numRecords/2;i++) {
+            long sent = startEpochMicros + i*100L;
+            writer.write(sendBuffer, sent, 0, -1);
+            writer.write(recvBuffer, sent + 1000, 1000, -1);
+        }
+        writer.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public PerSecondStats read() throws IOException {
+        RecordFileReader reader = new RecordFileReader(file, numThreads);
+        if(OutputFormat.of(format) == OutputFormat.BINARY) {
+            return reader.readBinary();
+        }
+        return reader.readCsv();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mqttloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import mqttloader.Constants.OutputFormat;
+import mqttloader.Constants.RecorderOverflow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Encoding a record and writing it to the output file, which the Recorder thread does for every sent and received message.
+ * The file is recreated for each iteration so that it does not grow without limit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RecordWriterBenchmark {
+    @Param({"csv", "binary"})
+    public String format;
+
+    private File file;
+    private RecordWriter writer;
+    private RecordBuffer sendBuffer;
+    private RecordBuffer recvBuffer;
+    private long timestamp;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        file = File.createTempFile(Constants.FILE_NAME_PREFIX, "." + format);
+        if(OutputFormat.of(format) == OutputFormat.BINARY) {
+            writer = new BinaryRecordWriter(file);
+        } else {
+            writer = new CsvRecordWriter(file);
+        }
+        timestamp = Clock.currentEpochMicros();
+        writer.writeStartTime(timestamp);
+        sendBuffer = new RecordBuffer(0, Constants.PUB_CLIENT_ID_PREFIX + "00000", true, 2, RecorderOverflow.DROP);
+        recvBuffer = new RecordBuffer(0, Constants.SUB_CLIENT_ID_PREFIX + "00000", false, 2, RecorderOverflow.DROP);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        writer.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void writeSend() {
+        writer.write(sendBuffer, timestamp++, 0, -1);
+    }
+
+    @Benchmark
+    public void writeReceive() {
+        writer.write(recvBuffer, timestamp++, 1234, -1);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mqttloader;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import mqttloader.Constants.OutputFormat;
+import mqttloader.Constants.RecorderOverflow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Recording received messages by many clients at once. Each benchmark thread plays a subscriber with its own RecordBuffer,
+ * and the Recorder thread drains all of them into the in-memory aggregates, as in a measurement without the output file.
+ * With the "block" policy, the throughput is bounded by the Recorder thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class RecorderBenchmark {
+    @State(Scope.Benchmark)
+    public static class RecorderState {
+        @Param({"block", "drop"})
+        public String overflow;
+
+        private Recorder recorder;
+        private final AtomicInteger nextClientNumber = new AtomicInteger();
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            Loader.measurementStartTime = Instant.now();
+            recorder = new Recorder(null, true, OutputFormat.CSV, Integer.parseInt(Constants.Prop.RECORDER_BUFFER.getDefaultValue()),
+                    RecorderOverflow.of(overflow));
+            recorder.start();
+            recorder.writeStartTime();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            recorder.terminate();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState {
+        private RecordBuffer buffer;
+
+        @Setup(Level.Iteration)
+        public void setup(RecorderState recorderState) {
+            int clientNumber = recorderState.nextClientNumber.getAndIncrement();
+            buffer = recorderState.recorder.createBuffer(clientNumber, Constants.SUB_CLIENT_ID_PREFIX + clientNumber, false);
+        }
+    }
+
+    @Benchmark
+    public void recordReceive(ClientState client) {
+        client.buffer.recordReceive(Clock.currentEpochMicros(), 1000, -1);
+    }
+}
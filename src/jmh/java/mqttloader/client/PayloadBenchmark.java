@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mqttloader.client;
+
+import java.util.concurrent.TimeUnit;
+import mqttloader.Clock;
+import mqttloader.Constants;
+import mqttloader.Constants.RecorderOverflow;
+import mqttloader.Constants.TopicSelection;
+import mqttloader.PayloadGenerator;
+import mqttloader.Recorder;
+import mqttloader.TopicGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Generating the payload of each message, i.e., copying the content and stamping the send time, the publisher ID, the sequence number
+ * and the intended send time into the payload reused by the publisher.
+ * The sizes cover each layout of the header: only the send time (8), with the sequence number (16), and with the intended send time
+ * in open-loop mode (24 or larger), since open-loop mode requires the payload to have it.
+ * Zero bytes are not copied at all, while random bytes are copied from the pool for each message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PayloadBenchmark {
+    @Param({"8", "16", "24", "1024"})
+    public int payloadSize;
+
+    @Param({"zero", "random"})
+    public String content;
+
+    private StubPublisher publisher;
+
+    @Setup
+    public void setup() {
+        Recorder recorder = new Recorder(null, true, Constants.OutputFormat.CSV, 1024, RecorderOverflow.DROP);
+        TopicGenerator topicGenerator = new TopicGenerator("topic", 1, TopicSelection.ROUND_ROBIN, 0);
+        PayloadGenerator payloadGenerator = new PayloadGenerator(new int[]{payloadSize}, content.equals(Constants.PayloadContent.RANDOM.getName()));
+        publisher = new StubPublisher(topicGenerator, payloadGenerator, payloadSize >= Constants.PAYLOAD_OPEN_LOOP_SIZE, recorder);
+    }
+
+    @Benchmark
+    public byte[] genPayload() {
+        return publisher.genPayload(Clock.currentEpochMicros());
+    }
+
+    /**
+     * Publisher that does not connect to any broker, only to call genPayload().
+     */
+    private static class StubPublisher extends AbstractPublisher {
+        StubPublisher(TopicGenerator topicGenerator, PayloadGenerator payloadGenerator, boolean openLoop, Recorder recorder) {
+            super(0, topicGenerator, payloadGenerator, Integer.MAX_VALUE, 0, openLoop, recorder);
+        }
+
+        @Override
+        protected void publish() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Instant;
+
+/**
+ * Agent side of the distributed mode.
+ * An agent waits for a controller to connect, receives the configuration and the clock offset from it,
+ * and runs the measurement at the start time given by the controller. After the measurement, it sends
+ * the per second aggregates back to the controller.
+ */
+public class Agent {
+    private final int port;
+    private Socket socket;
+    private DataInputStream dis;
+    private DataOutputStream dos;
+    private long offset = 0;
+    private int index = 0;
+
+    /**
+     * @param port Port number to wait for a controller on.
+     */
+    public Agent(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Wait for a controller to connect, and receive the configuration and the clock offset.
+     * @return Configuration in the format of properties file.
+     * @throws IOException If the connection fails or the controller sends an unexpected message.
+     */
+    public String waitForController() throws IOException {
+        try (ServerSocket server = new ServerSocket(port)) {
+            Loader.LOGGER.info("Waiting for a controller on port " + port + ".");
+            socket = server.accept();
+        }
+        socket.setTcpNoDelay(true);
+        dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Loader.LOGGER.info("Controller connected from " + socket.getRemoteSocketAddress() + ".");
+
+        String config = null;
+        while(true) {
+            byte type = dis.readByte();
+            switch (type) {
+                case Constants.AGENT_MSG_CONFIG:
+                    config = Util.readString(dis);
+                    index = dis.readInt();
+                    break;
+                case Constants.AGENT_MSG_PING:
+                    long controllerTime = dis.readLong();
+                    dos.writeByte(Constants.AGENT_MSG_PONG);
+                    dos.writeLong(controllerTime);
+                    dos.writeLong(Clock.currentEpochMicros());
+                    dos.flush();
+                    break;
+                case Constants.AGENT_MSG_OFFSET:
+                    offset = dis.readLong();
+                    if(config == null) {
+                        throw new IOException("Configuration was not received.");
+                    }
+                    return config;
+                default:
+                    throw new IOException("Unexpected message from controller: " + type);
+            }
+        }
+    }
+
+    /**
+     * @return Offset in milliseconds to be added to the local clock to get the controller's clock.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return Index of this agent given by the controller.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Notify the controller that all clients are connected.
+     * @throws IOException If sending fails.
+     */
+    public void notifyReady() throws IOException {
+        dos.writeByte(Constants.AGENT_MSG_READY);
+        dos.flush();
+    }
+
+    /**
+     * Wait until the controller sends the measurement start time, which is common to all agents.
+     * @return Measurement start time in the controller's clock.
+     * @throws IOException If the connection fails or the controller sends an unexpected message.
+     */
+    public Instant waitForStart() throws IOException {
+        byte type = dis.readByte();
+        if(type != Constants.AGENT_MSG_START) {
+            throw new IOException("Unexpected message from controller: " + type);
+        }
+        return Instant.ofEpochMilli(dis.readLong());
+    }
+
+    /**
+     * Send the result of the measurement to the controller.
+     * @param endTime Measurement end time.
+     * @param recorder Recorder that has the per second aggregates of this agent.
+     * @param deliveryStats Counts to verify the delivery of messages.
+     * @param backlogStats Messages queued while subscribers were offline.
+     * @param outageStats Outages of clients that lost the connection.
+     * @param payloadStats Sizes of sent and received payloads.
+     * @param connectionStats Latencies of connecting and subscribing.
+     * @throws IOException If sending fails.
+     */
+    public void sendResult(Instant endTime, Recorder recorder, DeliveryStats deliveryStats, BacklogStats backlogStats, OutageStats outageStats, PayloadStats payloadStats, ConnectionStats connectionStats) throws IOException {
+        dos.writeByte(Constants.AGENT_MSG_RESULT);
+        dos.writeLong(endTime.toEpochMilli());
+        dos.writeLong(recorder.getNumDropped());
+        dos.writeLong(recorder.getNumSpilled());
+        dos.writeLong(recorder.getNumBlocked());
+        recorder.getStats().writeTo(dos);
+        deliveryStats.writeTo(dos);
+        backlogStats.writeTo(dos);
+        outageStats.writeTo(dos);
+        payloadStats.writeTo(dos);
+        connectionStats.writeTo(dos);
+        dos.flush();
+    }
+
+    public void close() {
+        if(socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counter of heap memory allocated by all threads of this JVM during the measurement.
+ * It relies on the per thread allocation counters of HotSpot-based JVMs. Memory allocated by threads
+ * that terminate before stop() is not counted.
+ */
+public class AllocationCounter {
+    private final Map<Long, Long> startBytes = new HashMap<>();
+    private com.sun.management.ThreadMXBean bean = null;
+
+    public AllocationCounter() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if(threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)threadBean;
+            if(sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                bean = sunBean;
+            }
+        }
+    }
+
+    public void start() {
+        if(bean == null) {
+            return;
+        }
+        long[] ids = bean.getAllThreadIds();
+        long[] bytes = bean.getThreadAllocatedBytes(ids);
+        for(int i=0;i<ids.length;i++) {
+            if(bytes[i] >= 0) {
+                startBytes.put(ids[i], bytes[i]);
+            }
+        }
+    }
+
+    /**
+     * @return Bytes allocated since start(). -1 if not supported by this JVM.
+     */
+    public long stop() {
+        if(bean == null) {
+            return -1;
+        }
+        long sum = 0;
+        long[] ids = bean.getAllThreadIds();
+        long[] bytes = bean.getThreadAllocatedBytes(ids);
+        for(int i=0;i<ids.length;i++) {
+            if(bytes[i] >= 0) {
+                Long start = startBytes.get(ids[i]);
+                sum += bytes[i] - (start != null ? start : 0);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Messages queued by the broker while subscribers with persistent sessions were offline, and delivered after they reconnected.
+ * A message is regarded as queued if it was sent before the subscriber started to reconnect.
+ * Latencies are kept for each second elapsed since the reconnection, so that the drain of the backlog can be seen over time.
+ * record() must be called only by the thread of the subscriber, and the others after the subscriber stops.
+ */
+public class BacklogStats {
+    private final TreeMap<Integer, LatencyHistogram> latencyHistograms = new TreeMap<>();
+    private long drainTime = 0;    // In microseconds.
+    private int lastSecond = -1;
+    private LatencyHistogram lastHistogram = null;    // Cache to avoid looking up the map for each message.
+
+    /**
+     * @param elapsedMicros Time from starting to reconnect until receiving the message in microseconds.
+     * @param latency Latency of the message in microseconds.
+     */
+    public void record(long elapsedMicros, long latency) {
+        int second = (int)(elapsedMicros/Constants.SECOND_IN_MICRO);
+        if(second != lastSecond) {
+            lastHistogram = latencyHistograms.get(second);
+            if(lastHistogram == null) {
+                lastHistogram = new LatencyHistogram();
+                latencyHistograms.put(second, lastHistogram);
+            }
+            lastSecond = second;
+        }
+        lastHistogram.record(latency);
+        drainTime = Math.max(drainTime, elapsedMicros);
+    }
+
+    /**
+     * @return Latencies of queued messages. Keys are the elapsed seconds since the reconnection.
+     */
+    public TreeMap<Integer, LatencyHistogram> getLatencyHistograms() {
+        return latencyHistograms;
+    }
+
+    /**
+     * @return The number of queued messages received in each second. Keys are the elapsed seconds since the reconnection.
+     */
+    public TreeMap<Integer, Integer> getThroughputs() {
+        TreeMap<Integer, Integer> throughputs = new TreeMap<>();
+        for(Map.Entry<Integer, LatencyHistogram> entry: latencyHistograms.entrySet()) {
+            throughputs.put(entry.getKey(), (int)entry.getValue().getTotalCount());
+        }
+        return throughputs;
+    }
+
+    public long getNumQueued() {
+        long numQueued = 0;
+        for(LatencyHistogram histogram: latencyHistograms.values()) {
+            numQueued += histogram.getTotalCount();
+        }
+        return numQueued;
+    }
+
+    /**
+     * @return Time from starting to reconnect until receiving the last queued message in microseconds.
+     */
+    public long getDrainTime() {
+        return drainTime;
+    }
+
+    /**
+     * Merge the stats of another subscriber or MQTTLoader. Since subscribers reconnect in parallel, the longer drain time is taken.
+     * @param other Stats to be merged.
+     */
+    public void add(BacklogStats other) {
+        for(Map.Entry<Integer, LatencyHistogram> entry: other.latencyHistograms.entrySet()) {
+            LatencyHistogram histogram = latencyHistograms.get(entry.getKey());
+            if(histogram == null) {
+                histogram = new LatencyHistogram();
+                latencyHistograms.put(entry.getKey(), histogram);
+            }
+            histogram.add(entry.getValue());
+        }
+        drainTime = Math.max(drainTime, other.drainTime);
+    }
+
+    /**
+     * Write the stats, e.g., to send them from an agent to the controller.
+     * @param dos Stream to be written.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeLong(drainTime);
+        dos.writeInt(latencyHistograms.size());
+        for(Map.Entry<Integer, LatencyHistogram> entry: latencyHistograms.entrySet()) {
+            dos.writeInt(entry.getKey());
+            entry.getValue().writeTo(dos);
+        }
+    }
+
+    /**
+     * Read the stats written by writeTo().
+     * @param dis Stream to be read.
+     * @return Stats.
+     * @throws IOException If reading fails.
+     */
+    public static BacklogStats readFrom(DataInputStream dis) throws IOException {
+        BacklogStats stats = new BacklogStats();
+        stats.drainTime = dis.readLong();
+        int size = dis.readInt();
+        for(int i=0;i<size;i++) {
+            stats.latencyHistograms.put(dis.readInt(), LatencyHistogram.readFrom(dis));
+        }
+        return stats;
+    }
+}
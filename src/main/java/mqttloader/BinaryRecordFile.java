@@ -0,0 +1,180 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fixed-width binary format of send/receive record file.
+ *
+ * <p>The file starts with a header of HEADER_SIZE bytes:
+ * magic number (int), format version (short), record size (short), measurement start time in Unix time in microseconds (long),
+ * and client ID prefixes of publishers and subscribers (PREFIX_SIZE bytes each, US-ASCII, zero-padded).
+ * Each record that follows consists of timestamp in Unix time in microseconds (long), client number (int),
+ * event type (int, TYPE_SEND or TYPE_RECEIVE), latency in microseconds (long) and latency from the intended send time
+ * in microseconds (long, -1 if not in open-loop mode). All values are big-endian.
+ */
+public class BinaryRecordFile {
+    public static final int MAGIC = 0x4d4c5243;    // "MLRC"
+    public static final short VERSION = 2;
+    public static final int PREFIX_SIZE = 24;
+    public static final int HEADER_SIZE = 16 + PREFIX_SIZE*2;
+    public static final int RECORD_SIZE = 32;
+    public static final int TYPE_SEND = 0;
+    public static final int TYPE_RECEIVE = 1;
+    public static final int WRITE_BUFFER_SIZE = RECORD_SIZE * 32768;    // 1MB.
+    public static final long MAP_SIZE = RECORD_SIZE * (1L << 22);    // 128MB.
+
+    private final File file;
+    private FileChannel channel;
+    private long startEpochMicros;
+    private String pubPrefix;
+    private String subPrefix;
+    private long numRecords;
+
+    public BinaryRecordFile(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if(header.getInt() != MAGIC) {
+            throw new IOException("Not a binary record file: " + file.getAbsolutePath());
+        }
+        short version = header.getShort();
+        short recordSize = header.getShort();
+        if(version != VERSION || recordSize != RECORD_SIZE) {
+            throw new IOException("Unsupported binary record file version: " + version);
+        }
+        startEpochMicros = header.getLong();
+        pubPrefix = getPrefix(header);
+        subPrefix = getPrefix(header);
+        numRecords = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    private String getPrefix(MappedByteBuffer header) {
+        byte[] bytes = new byte[PREFIX_SIZE];
+        header.get(bytes);
+        int length = 0;
+        while(length < PREFIX_SIZE && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    public interface RecordHandler {
+        void handle(long timestamp, int clientNumber, boolean isSend, long latency, long correctedLatency);
+    }
+
+    /**
+     * Read all the records by mapping the file to memory region by region.
+     * @param handler Callback invoked for each record.
+     */
+    public void read(RecordHandler handler) throws IOException {
+        read(0, numRecords, handler);
+    }
+
+    /**
+     * Read records in the given range by mapping the file to memory region by region.
+     * It can be called by multiple threads concurrently for different ranges.
+     * @param firstRecord Index of the first record to be read.
+     * @param count The number of records to be read.
+     * @param handler Callback invoked for each record.
+     */
+    public void read(long firstRecord, long count, RecordHandler handler) throws IOException {
+        long position = HEADER_SIZE + firstRecord * RECORD_SIZE;
+        long end = position + count * RECORD_SIZE;
+        while(position < end) {
+            long size = Math.min(MAP_SIZE, end - position);
+            MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            while(mbb.remaining() >= RECORD_SIZE) {
+                long timestamp = mbb.getLong();
+                int clientNumber = mbb.getInt();
+                boolean isSend = mbb.getInt() == TYPE_SEND;
+                long latency = mbb.getLong();
+                long correctedLatency = mbb.getLong();
+                handler.handle(timestamp, clientNumber, isSend, latency, correctedLatency);
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * Convert this file into the CSV format that is written when "output_format" is "csv".
+     * @param csvFile Destination file.
+     */
+    public void convertToCsv(File csvFile) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), StandardCharsets.US_ASCII))) {
+            bw.write(startEpochMicros + ",,,");
+            bw.newLine();
+            final IOException[] error = new IOException[1];
+            read((timestamp, clientNumber, isSend, latency, correctedLatency) -> {
+                if(error[0] != null) {
+                    return;
+                }
+                try {
+                    bw.write(Long.toString(timestamp));
+                    bw.write(",");
+                    bw.write(isSend ? pubPrefix : subPrefix);
+                    bw.write(String.format("%05d", clientNumber));
+                    if(isSend) {
+                        bw.write(",S,");
+                    } else {
+                        bw.write(",R,");
+                        bw.write(Long.toString(latency));
+                        if(correctedLatency >= 0) {
+                            bw.write(",");
+                            bw.write(Long.toString(correctedLatency));
+                        }
+                    }
+                    bw.newLine();
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if(error[0] != null) {
+                throw error[0];
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getStartEpochMicros() {
+        return startEpochMicros;
+    }
+
+    public long getNumRecords() {
+        return numRecords;
+    }
+}
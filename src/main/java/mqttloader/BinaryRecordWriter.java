@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes send/receive records in the fixed-width binary format described in BinaryRecordFile.
+ * Records are encoded into a direct ByteBuffer and written to the file through FileChannel without creating any object per record.
+ */
+public class BinaryRecordWriter implements RecordWriter {
+    private FileChannel channel = null;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BinaryRecordFile.WRITE_BUFFER_SIZE);
+
+    public BinaryRecordWriter(File file) {
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void writeStartTime(long startEpochMicros) {
+        buffer.putInt(BinaryRecordFile.MAGIC);
+        buffer.putShort(BinaryRecordFile.VERSION);
+        buffer.putShort((short)BinaryRecordFile.RECORD_SIZE);
+        buffer.putLong(startEpochMicros);
+        putPrefix(Constants.PUB_CLIENT_ID_PREFIX);
+        putPrefix(Constants.SUB_CLIENT_ID_PREFIX);
+    }
+
+    private void putPrefix(String prefix) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.US_ASCII);
+        buffer.put(bytes, 0, Math.min(bytes.length, BinaryRecordFile.PREFIX_SIZE));
+        for(int i=bytes.length;i<BinaryRecordFile.PREFIX_SIZE;i++) {
+            buffer.put((byte)0);
+        }
+    }
+
+    @Override
+    public void write(RecordBuffer recordBuffer, long timestamp, long latency, long correctedLatency) {
+        if(buffer.remaining() < BinaryRecordFile.RECORD_SIZE) {
+            flush();
+        }
+        buffer.putLong(timestamp);
+        buffer.putInt(recordBuffer.getClientNumber());
+        buffer.putInt(recordBuffer.isSend() ? BinaryRecordFile.TYPE_SEND : BinaryRecordFile.TYPE_RECEIVE);
+        buffer.putLong(recordBuffer.isSend() ? 0 : latency);
+        buffer.putLong(recordBuffer.isSend() ? -1 : correctedLatency);
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
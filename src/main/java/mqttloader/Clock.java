@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.time.Instant;
+
+/**
+ * Clock used for timestamps and calculation.
+ * The wall clock is read only once when this class is loaded, and the current time is derived from System.nanoTime()
+ * elapsed since then. Thus, reading the time does not allocate any object, and the time does not jump even if
+ * the wall clock of the OS is adjusted during the measurement.
+ * The offset, e.g., acquired from the NTP server, is added to the time.
+ */
+public final class Clock {
+    private static final long ANCHOR_EPOCH_MICROS = Util.getEpochMicros(Instant.now());
+    private static final long ANCHOR_NANOS = System.nanoTime();
+    private static volatile long offsetMicros = 0;
+
+    private Clock() {}
+
+    /**
+     * @param offset Offset in milliseconds to be added to the local clock.
+     */
+    public static void setOffset(long offset) {
+        offsetMicros = offset*Constants.MILLISECOND_IN_MICRO;
+    }
+
+    /**
+     * @return Offset in milliseconds added to the local clock.
+     */
+    public static long getOffset() {
+        return offsetMicros/Constants.MILLISECOND_IN_MICRO;
+    }
+
+    /**
+     * @return Current time in microseconds since the epoch, including the offset.
+     */
+    public static long currentEpochMicros() {
+        return ANCHOR_EPOCH_MICROS + (System.nanoTime() - ANCHOR_NANOS)/Constants.MICROSECOND_IN_NANO + offsetMicros;
+    }
+
+    /**
+     * @return Current time including the offset. Unlike currentEpochMicros(), this allocates an Instant.
+     */
+    public static Instant currentTime() {
+        return toInstant(currentEpochMicros());
+    }
+
+    public static Instant toInstant(long epochMicros) {
+        return Instant.ofEpochSecond(epochMicros/Constants.SECOND_IN_MICRO, (epochMicros%Constants.SECOND_IN_MICRO)*Constants.MICROSECOND_IN_NANO);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Latencies of connecting clients to the broker and subscribing to topics, measured before the measurement starts.
+ */
+public class ConnectionStats {
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LatencyHistogram subscribeLatency = new LatencyHistogram();
+    private long connectTime = 0;
+
+    /**
+     * @param latency Time from starting to connect until receiving CONNACK in microseconds.
+     */
+    public void recordConnect(long latency) {
+        connectLatency.record(latency);
+    }
+
+    /**
+     * @param latency Time from sending SUBSCRIBE until receiving SUBACK in microseconds.
+     */
+    public void recordSubscribe(long latency) {
+        subscribeLatency.record(latency);
+    }
+
+    /**
+     * @param connectTime Time to connect all clients in milliseconds.
+     */
+    public void setConnectTime(long connectTime) {
+        this.connectTime = connectTime;
+    }
+
+    public LatencyHistogram getConnectLatency() {
+        return connectLatency;
+    }
+
+    public LatencyHistogram getSubscribeLatency() {
+        return subscribeLatency;
+    }
+
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * Merge the latencies of another MQTTLoader, e.g., an agent. Since clients of MQTTLoaders connect in parallel,
+     * the longer time to connect all clients is taken.
+     * @param other Stats to be merged.
+     */
+    public void add(ConnectionStats other) {
+        connectLatency.add(other.connectLatency);
+        subscribeLatency.add(other.subscribeLatency);
+        connectTime = Math.max(connectTime, other.connectTime);
+    }
+
+    /**
+     * Write the stats, e.g., to send them from an agent to the controller.
+     * @param dos Stream to be written.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeLong(connectTime);
+        connectLatency.writeTo(dos);
+        subscribeLatency.writeTo(dos);
+    }
+
+    /**
+     * Read the stats written by writeTo().
+     * @param dis Stream to be read.
+     * @return Stats.
+     * @throws IOException If reading fails.
+     */
+    public static ConnectionStats readFrom(DataInputStream dis) throws IOException {
+        ConnectionStats stats = new ConnectionStats();
+        stats.connectTime = dis.readLong();
+        stats.connectLatency.add(LatencyHistogram.readFrom(dis));
+        stats.subscribeLatency.add(LatencyHistogram.readFrom(dis));
+        return stats;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Controller side of the distributed mode.
+ * The controller connects to the agents, pushes the configuration, and synchronizes their clocks with its own clock.
+ * After all agents get ready, it sends the common measurement start time, and finally merges the per second
+ * aggregates sent from the agents.
+ */
+public class Controller {
+    private final List<Connection> connections = new ArrayList<>();
+    private long numDropped = 0;
+    private long numSpilled = 0;
+    private long numBlocked = 0;
+    private final DeliveryStats deliveryStats = new DeliveryStats();
+    private final BacklogStats backlogStats = new BacklogStats();
+    private final OutageStats outageStats = new OutageStats();
+    private final PayloadStats payloadStats = new PayloadStats();
+    private final ConnectionStats connectionStats = new ConnectionStats();
+
+    /**
+     * @param agents Addresses of agents in the form of "host:port", separated by commas.
+     */
+    public Controller(String agents) {
+        StringTokenizer st = new StringTokenizer(agents, ",");
+        while(st.hasMoreTokens()) {
+            connections.add(new Connection(st.nextToken().trim()));
+        }
+    }
+
+    /**
+     * Connect to all agents, push the configuration and synchronize their clocks.
+     * @param configs Configuration of each agent in the format of properties file.
+     * @throws IOException If any agent is not available.
+     */
+    public void connect(List<String> configs) throws IOException {
+        for(int i=0;i<connections.size();i++) {
+            Connection connection = connections.get(i);
+            connection.open();
+            connection.dos.writeByte(Constants.AGENT_MSG_CONFIG);
+            Util.writeString(connection.dos, configs.get(i));
+            connection.dos.writeInt(i);
+            long offset = connection.syncClock();
+            connection.dos.writeByte(Constants.AGENT_MSG_OFFSET);
+            connection.dos.writeLong(offset);
+            connection.dos.flush();
+            Loader.LOGGER.info("Agent " + connection.address + " connected (clock offset: " + (-offset) + " milliseconds).");
+        }
+    }
+
+    /**
+     * Wait until all agents finish connecting their clients to the broker.
+     * @throws IOException If any agent fails.
+     */
+    public void waitForReady() throws IOException {
+        for(Connection connection: connections) {
+            connection.expect(Constants.AGENT_MSG_READY);
+        }
+    }
+
+    /**
+     * Let all agents start the measurement at the same time.
+     * @return Measurement start time.
+     * @throws IOException If sending to any agent fails.
+     */
+    public Instant start() throws IOException {
+        Instant startTime = Clock.currentTime().plusMillis(Constants.AGENT_START_DELAY);
+        for(Connection connection: connections) {
+            connection.dos.writeByte(Constants.AGENT_MSG_START);
+            connection.dos.writeLong(startTime.toEpochMilli());
+            connection.dos.flush();
+        }
+        return startTime;
+    }
+
+    /**
+     * Wait for the results of all agents and merge them.
+     * If an agent fails, its result is not included and a warning is logged.
+     * @param recorder Recorder to which the per second aggregates of agents are added.
+     * @return The latest measurement end time of the agents.
+     */
+    public Instant collectResults(Recorder recorder) {
+        Instant endTime = Clock.currentTime();
+        long latest = 0;
+        for(Connection connection: connections) {
+            try {
+                connection.expect(Constants.AGENT_MSG_RESULT);
+                latest = Math.max(latest, connection.dis.readLong());
+                numDropped += connection.dis.readLong();
+                numSpilled += connection.dis.readLong();
+                numBlocked += connection.dis.readLong();
+                recorder.recordInMemory(PerSecondStats.readFrom(connection.dis));
+                deliveryStats.add(DeliveryStats.readFrom(connection.dis));
+                backlogStats.add(BacklogStats.readFrom(connection.dis));
+                outageStats.add(OutageStats.readFrom(connection.dis));
+                payloadStats.add(PayloadStats.readFrom(connection.dis));
+                connectionStats.add(ConnectionStats.readFrom(connection.dis));
+                Loader.LOGGER.info("Received the result from agent " + connection.address + ".");
+            } catch (IOException e) {
+                Loader.LOGGER.warning("Failed to receive the result from agent " + connection.address + ".");
+                e.printStackTrace();
+            }
+        }
+        return latest > 0 ? Instant.ofEpochMilli(latest) : endTime;
+    }
+
+    public void close() {
+        for(Connection connection: connections) {
+            connection.close();
+        }
+    }
+
+    public int getNumAgents() {
+        return connections.size();
+    }
+
+    public long getNumDropped() {
+        return numDropped;
+    }
+
+    public long getNumSpilled() {
+        return numSpilled;
+    }
+
+    public long getNumBlocked() {
+        return numBlocked;
+    }
+
+    public DeliveryStats getDeliveryStats() {
+        return deliveryStats;
+    }
+
+    public BacklogStats getBacklogStats() {
+        return backlogStats;
+    }
+
+    public OutageStats getOutageStats() {
+        return outageStats;
+    }
+
+    public PayloadStats getPayloadStats() {
+        return payloadStats;
+    }
+
+    public ConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
+    private static class Connection {
+        private final String address;
+        private Socket socket;
+        private DataInputStream dis;
+        private DataOutputStream dos;
+
+        private Connection(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Connect to the agent, retrying until AGENT_CONNECT_TIMEOUT elapses so that agents can be started after the controller.
+         */
+        private void open() throws IOException {
+            int index = address.lastIndexOf(':');
+            if(index < 0) {
+                throw new IOException("Invalid agent address: " + address);
+            }
+            String host = address.substring(0, index);
+            int port = Integer.parseInt(address.substring(index+1));
+
+            long deadline = System.currentTimeMillis() + Constants.AGENT_CONNECT_TIMEOUT;
+            while(true) {
+                try {
+                    socket = new Socket();
+                    socket.connect(new InetSocketAddress(host, port));
+                    break;
+                } catch (IOException e) {
+                    socket.close();
+                    if(System.currentTimeMillis() > deadline) {
+                        throw e;
+                    }
+                    try {
+                        Thread.sleep(Constants.AGENT_CONNECT_RETRY_INTERVAL);
+                    } catch (InterruptedException ie) {
+                        throw new IOException(ie);
+                    }
+                }
+            }
+            socket.setTcpNoDelay(true);
+            dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * Estimate the offset of the agent's clock by exchanging timestamps several times.
+         * The sample with the shortest round trip time is used, assuming that the delays of both directions are the same.
+         * @return Offset in milliseconds to be added to the agent's clock to get the controller's clock.
+         */
+        private long syncClock() throws IOException {
+            long bestRtt = Long.MAX_VALUE;
+            long bestOffset = 0;
+            for(int i=0;i<Constants.AGENT_CLOCK_SYNC_ROUNDS;i++) {
+                dos.writeByte(Constants.AGENT_MSG_PING);
+                dos.writeLong(Clock.currentEpochMicros());
+                dos.flush();
+                expect(Constants.AGENT_MSG_PONG);
+                long sentTime = dis.readLong();
+                long agentTime = dis.readLong();
+                long receivedTime = Clock.currentEpochMicros();
+                long rtt = receivedTime - sentTime;
+                if(rtt < bestRtt) {
+                    bestRtt = rtt;
+                    bestOffset = (sentTime + rtt/2) - agentTime;
+                }
+            }
+            return bestOffset / Constants.MILLISECOND_IN_MICRO;
+        }
+
+        private void expect(byte expected) throws IOException {
+            byte type = dis.readByte();
+            if(type != expected) {
+                throw new IOException("Unexpected message from agent " + address + ": " + type);
+            }
+        }
+
+        private void close() {
+            if(socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+public class CsvRecordWriter implements RecordWriter {
+    private FileOutputStream fos = null;
+    private OutputStreamWriter osw = null;
+    private BufferedWriter bw = null;
+
+    public CsvRecordWriter(File file) {
+        try {
+            fos = new FileOutputStream(file, true);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+        osw = new OutputStreamWriter(fos);
+        bw = new BufferedWriter(osw);
+    }
+
+    @Override
+    public void writeStartTime(long startEpochMicros) {
+        try {
+            bw.write(startEpochMicros + ",,,");
+            bw.newLine();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void write(RecordBuffer buffer, long timestamp, long latency, long correctedLatency) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(timestamp);
+        sb.append(",");
+        sb.append(buffer.getClientId());
+        if(buffer.isSend()) {
+            sb.append(",S,");
+        } else {
+            sb.append(",R,");
+            sb.append(latency);
+            if(correctedLatency >= 0) {
+                sb.append(",");
+                sb.append(correctedLatency);
+            }
+        }
+
+        try {
+            bw.write(new String(sb));
+            bw.newLine();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        try{
+            bw.flush();
+            bw.close();
+            osw.close();
+            fos.close();
+        } catch(IOException e){
+            e.printStackTrace();
+        } finally {
+            try {
+                if(bw != null) bw.close();
+                if(osw != null) osw.close();
+                if(fos != null) fos.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts to verify the delivery of messages, indexed by QoS level.
+ * The number of sent messages and the number of subscribers are kept for each topic and topic filter, and indexed by
+ * the QoS of publishers and subscribers respectively. The others are indexed by the QoS of delivered messages,
+ * i.e., the smaller one of them.
+ */
+public class DeliveryStats {
+    private static final int NUM_QOS = 3;
+
+    private final Map<String, long[]> numSent = new HashMap<>();    // Keys are topics.
+    private final Map<String, long[]> numSubscribers = new HashMap<>();    // Keys are topic filters.
+    private final long[] numReceived = new long[NUM_QOS];    // Excluding duplicates.
+    private final long[] numDuplicated = new long[NUM_QOS];
+    private final long[] numOutOfOrder = new long[NUM_QOS];
+    private final long[] numGaps = new long[NUM_QOS];    // Sequence numbers skipped before the last received one.
+    private long[] numExpected = null;    // Cache of calcExpected().
+    private boolean numExpectedShared;
+
+    public void addSent(String topic, int qos, long count) {
+        add(numSent, topic, qos, count);
+    }
+
+    public void addSubscribers(String filter, int qos, long count) {
+        add(numSubscribers, filter, qos, count);
+    }
+
+    private void add(Map<String, long[]> map, String key, int qos, long count) {
+        numExpected = null;
+        long[] counts = map.get(key);
+        if(counts == null) {
+            counts = new long[NUM_QOS];
+            map.put(key, counts);
+        }
+        counts[qos] += count;
+    }
+
+    void addReceived(int qos, long count) {
+        numReceived[qos] += count;
+    }
+
+    void addDuplicated(int qos, long count) {
+        numDuplicated[qos] += count;
+    }
+
+    void addOutOfOrder(int qos, long count) {
+        numOutOfOrder[qos] += count;
+    }
+
+    void addGaps(int qos, long count) {
+        numGaps[qos] += count;
+    }
+
+    public void add(DeliveryStats other) {
+        for(Map.Entry<String, long[]> entry: other.numSent.entrySet()) {
+            for(int i=0;i<NUM_QOS;i++) {
+                add(numSent, entry.getKey(), i, entry.getValue()[i]);
+            }
+        }
+        for(Map.Entry<String, long[]> entry: other.numSubscribers.entrySet()) {
+            for(int i=0;i<NUM_QOS;i++) {
+                add(numSubscribers, entry.getKey(), i, entry.getValue()[i]);
+            }
+        }
+        for(int i=0;i<NUM_QOS;i++) {
+            numReceived[i] += other.numReceived[i];
+            numDuplicated[i] += other.numDuplicated[i];
+            numOutOfOrder[i] += other.numOutOfOrder[i];
+            numGaps[i] += other.numGaps[i];
+        }
+    }
+
+    /**
+     * @param qos QoS of delivered messages.
+     * @param shared If true, each message is delivered to one of subscribers (shared subscription).
+     * @return The number of messages that should be delivered to subscribers with the QoS, i.e., the number of messages sent to
+     *         each topic multiplied by the number of subscribers whose topic filter matches it.
+     *         If no publisher or no subscriber is included in this measurement, -1 is returned.
+     */
+    public long getNumExpected(int qos, boolean shared) {
+        if(numSent.isEmpty() || numSubscribers.isEmpty()) {
+            return -1;
+        }
+        if(numExpected == null || numExpectedShared != shared) {
+            numExpected = calcExpected(shared);
+            numExpectedShared = shared;
+        }
+        return numExpected[qos];
+    }
+
+    private long[] calcExpected(boolean shared) {
+        FilterNode root = new FilterNode();
+        for(Map.Entry<String, long[]> subscribers: numSubscribers.entrySet()) {
+            root.add(subscribers.getKey(), subscribers.getValue());
+        }
+
+        long[] expected = new long[NUM_QOS];
+        for(Map.Entry<String, long[]> sent: numSent.entrySet()) {
+            // Subscribers whose topic filter matches this topic, indexed by QoS.
+            long[] matched = new long[NUM_QOS];
+            String topic = sent.getKey();
+            root.match(topic.split("/", -1), 0, topic.startsWith("$"), matched);
+            long totalMatched = 0;
+            for(int i=0;i<NUM_QOS;i++) {
+                totalMatched += matched[i];
+            }
+            if(totalMatched == 0) {
+                continue;
+            }
+
+            for(int pubQos=0;pubQos<NUM_QOS;pubQos++) {
+                for(int subQos=0;subQos<NUM_QOS;subQos++) {
+                    int qos = Math.min(pubQos, subQos);
+                    if(shared) {
+                        expected[qos] += sent.getValue()[pubQos]*matched[subQos]/totalMatched;
+                    } else {
+                        expected[qos] += sent.getValue()[pubQos]*matched[subQos];
+                    }
+                }
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * @param qos QoS of delivered messages.
+     * @param shared If true, each message is delivered to one of subscribers (shared subscription).
+     * @return The number of messages that were not delivered. If no publisher is included in this measurement,
+     *         it is estimated by the gaps of sequence numbers, and messages sent after the last received one are not counted.
+     */
+    public long getNumLost(int qos, boolean shared) {
+        long expected = getNumExpected(qos, shared);
+        if(expected < 0) {
+            return numGaps[qos];
+        }
+        return Math.max(expected - numReceived[qos], 0);
+    }
+
+    public long getNumReceived(int qos) {
+        return numReceived[qos];
+    }
+
+    public long getNumDuplicated(int qos) {
+        return numDuplicated[qos];
+    }
+
+    public long getNumOutOfOrder(int qos) {
+        return numOutOfOrder[qos];
+    }
+
+    /**
+     * @return true if any message with sequence number was sent or received.
+     */
+    public boolean hasRecords() {
+        if(!numSent.isEmpty()) {
+            return true;
+        }
+        for(int i=0;i<NUM_QOS;i++) {
+            if(numReceived[i] > 0 || numDuplicated[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tree of topic filters split into levels, so that the subscribers matching a topic are found by walking its levels
+     * once instead of comparing the topic with every filter.
+     */
+    private static class FilterNode {
+        private final Map<String, FilterNode> children = new HashMap<>();
+        private FilterNode singleLevel = null;    // Child for "+".
+        private final long[] multiLevel = new long[NUM_QOS];    // Subscribers of filters ending with "#" below this node.
+        private final long[] exact = new long[NUM_QOS];    // Subscribers of filters ending at this node.
+
+        private void add(String filter, long[] counts) {
+            FilterNode node = this;
+            for(String level: filter.split("/", -1)) {
+                if(level.equals("#")) {
+                    addTo(node.multiLevel, counts);
+                    return;
+                }
+                if(level.equals("+")) {
+                    if(node.singleLevel == null) {
+                        node.singleLevel = new FilterNode();
+                    }
+                    node = node.singleLevel;
+                } else {
+                    FilterNode child = node.children.get(level);
+                    if(child == null) {
+                        child = new FilterNode();
+                        node.children.put(level, child);
+                    }
+                    node = child;
+                }
+            }
+            addTo(node.exact, counts);
+        }
+
+        /**
+         * Add the subscribers of the filters matching a topic, following the same rules as TopicGenerator.matches().
+         * @param levels Levels of the topic.
+         * @param index Index of the level corresponding to this node.
+         * @param system true if the topic starts with "$", which is not matched by wildcards at the first level.
+         * @param matched Counts to be added to, indexed by QoS.
+         */
+        private void match(String[] levels, int index, boolean system, long[] matched) {
+            boolean wildcard = index > 0 || !system;
+            if(wildcard) {
+                addTo(matched, multiLevel);
+            }
+            if(index == levels.length) {
+                addTo(matched, exact);
+                return;
+            }
+            FilterNode child = children.get(levels[index]);
+            if(child != null) {
+                child.match(levels, index+1, system, matched);
+            }
+            if(wildcard && singleLevel != null) {
+                singleLevel.match(levels, index+1, system, matched);
+            }
+        }
+
+        private static void addTo(long[] sum, long[] counts) {
+            for(int i=0;i<NUM_QOS;i++) {
+                sum[i] += counts[i];
+            }
+        }
+    }
+
+    /**
+     * Write the counts, e.g., to send them from an agent to the controller.
+     * @param dos Stream to be written.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutputStream dos) throws IOException {
+        writeMap(dos, numSent);
+        writeMap(dos, numSubscribers);
+        for(int i=0;i<NUM_QOS;i++) {
+            dos.writeLong(numReceived[i]);
+            dos.writeLong(numDuplicated[i]);
+            dos.writeLong(numOutOfOrder[i]);
+            dos.writeLong(numGaps[i]);
+        }
+    }
+
+    /**
+     * Read the counts written by writeTo().
+     * @param dis Stream to be read.
+     * @return Counts.
+     * @throws IOException If reading fails.
+     */
+    public static DeliveryStats readFrom(DataInputStream dis) throws IOException {
+        DeliveryStats stats = new DeliveryStats();
+        stats.readMap(dis, stats.numSent);
+        stats.readMap(dis, stats.numSubscribers);
+        for(int i=0;i<NUM_QOS;i++) {
+            stats.numReceived[i] = dis.readLong();
+            stats.numDuplicated[i] = dis.readLong();
+            stats.numOutOfOrder[i] = dis.readLong();
+            stats.numGaps[i] = dis.readLong();
+        }
+        return stats;
+    }
+
+    private static void writeMap(DataOutputStream dos, Map<String, long[]> map) throws IOException {
+        dos.writeInt(map.size());
+        for(Map.Entry<String, long[]> entry: map.entrySet()) {
+            Util.writeString(dos, entry.getKey());
+            for(int i=0;i<NUM_QOS;i++) {
+                dos.writeLong(entry.getValue()[i]);
+            }
+        }
+    }
+
+    private void readMap(DataInputStream dis, Map<String, long[]> map) throws IOException {
+        int size = dis.readInt();
+        for(int i=0;i<size;i++) {
+            String key = Util.readString(dis);
+            for(int j=0;j<NUM_QOS;j++) {
+                add(map, key, j, dis.readLong());
+            }
+        }
+    }
+}
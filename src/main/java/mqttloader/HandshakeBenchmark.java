@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Benchmark of TLS handshakes with the broker, without MQTT clients.
+ * Each handshake opens a TLS connection, sends CONNECT and waits for CONNACK, and then disconnects.
+ * Only the TLS handshake is measured. Waiting for CONNACK lets the client receive session tickets of TLS 1.3,
+ * which are sent by the broker after the handshake.
+ * Handshakes with resumption share an SSL context as MQTT clients do, so that a handshake can resume a session
+ * established by a former one. Handshakes without resumption use a new SSL context each, whose session cache is empty.
+ */
+public class HandshakeBenchmark {
+    private static final int CONNECT_FLAG_USERNAME = 0x80;
+    private static final int CONNECT_FLAG_PASSWORD = 0x40;
+    private static final int CONNECT_FLAG_CLEAN_SESSION = 0x02;
+    private static final int KEEP_ALIVE = 60;    // In seconds.
+
+    private final KeyManager[] keyManagers;
+    private final TrustManager[] trustManagers;
+    private final SSLSocketFactory sharedFactory;
+    private final String host;
+    private final int port;
+    private final String userName;
+    private final String password;
+    private final AtomicInteger numHandshakes = new AtomicInteger();
+    private final LatencyHistogram fullLatency = new LatencyHistogram();
+    private final LatencyHistogram resumedLatency = new LatencyHistogram();
+
+    /**
+     * @param keyManagers Key managers of the client certificate. If null, the client is not authenticated.
+     * @param trustManagers Trust managers of the CA certificate. If null, the default ones are used.
+     * @param host Host name of the broker.
+     * @param port Port number of the broker.
+     * @param userName User name of CONNECT. If null, not sent.
+     * @param password Password of CONNECT. If null, not sent.
+     * @throws GeneralSecurityException If the SSL context cannot be initialized.
+     */
+    public HandshakeBenchmark(KeyManager[] keyManagers, TrustManager[] trustManagers, String host, int port, String userName, String password) throws GeneralSecurityException {
+        this.keyManagers = keyManagers;
+        this.trustManagers = trustManagers;
+        this.sharedFactory = createContext().getSocketFactory();
+        this.host = host;
+        this.port = port;
+        this.userName = userName;
+        this.password = password;
+    }
+
+    /**
+     * Perform a handshake and record its latency. This can be called by multiple threads.
+     * @param resume If true, a session established by a former handshake can be resumed.
+     * @throws IOException If connecting to the broker fails.
+     * @throws GeneralSecurityException If the SSL context cannot be initialized.
+     */
+    public void handshake(boolean resume) throws IOException, GeneralSecurityException {
+        String clientId = Constants.HANDSHAKE_CLIENT_ID_PREFIX + numHandshakes.getAndIncrement();
+        SSLSocketFactory factory = resume ? sharedFactory : createContext().getSocketFactory();
+        try (SSLSocket socket = (SSLSocket)factory.createSocket(host, port)) {
+            long startMillis = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            socket.startHandshake();
+            long latency = (System.nanoTime() - startNanos)/Constants.MICROSECOND_IN_NANO;
+
+            // A resumed session keeps the creation time of the session that was established by the full handshake.
+            SSLSession session = socket.getSession();
+            boolean resumed = session.getCreationTime() < startMillis;
+            synchronized (this) {
+                if(resumed) {
+                    resumedLatency.record(latency);
+                } else {
+                    fullLatency.record(latency);
+                }
+            }
+
+            OutputStream os = socket.getOutputStream();
+            os.write(genConnect(clientId));
+            os.flush();
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            byte[] connack = new byte[4];
+            dis.readFully(connack);
+            if(connack[3] != 0) {
+                throw new IOException("Connection refused by the broker, return code: " + connack[3]);
+            }
+            os.write(new byte[]{(byte)0xe0, 0x00});    // DISCONNECT
+            os.flush();
+        }
+    }
+
+    private SSLContext createContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance(Constants.TLS_PROTOCOL);
+        context.init(keyManagers, trustManagers, null);
+        return context;
+    }
+
+    /**
+     * @param clientId Client ID.
+     * @return CONNECT packet of MQTT v3.1.1.
+     */
+    private byte[] genConnect(String clientId) {
+        int flags = CONNECT_FLAG_CLEAN_SESSION;
+        if(userName != null) {
+            flags |= CONNECT_FLAG_USERNAME;
+        }
+        if(password != null) {
+            flags |= CONNECT_FLAG_PASSWORD;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeString(body, "MQTT");
+        body.write(4);    // Protocol level of v3.1.1.
+        body.write(flags);
+        body.write(KEEP_ALIVE >> 8);
+        body.write(KEEP_ALIVE & 0xff);
+        writeString(body, clientId);
+        if(userName != null) {
+            writeString(body, userName);
+        }
+        if(password != null) {
+            writeString(body, password);
+        }
+
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        packet.write(0x10);
+        int remaining = body.size();
+        do {
+            int digit = remaining % 128;
+            remaining /= 128;
+            packet.write(remaining > 0 ? digit | 0x80 : digit);
+        } while(remaining > 0);
+        byte[] bytes = body.toByteArray();
+        packet.write(bytes, 0, bytes.length);
+        return packet.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream baos, String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        baos.write(bytes.length >> 8);
+        baos.write(bytes.length & 0xff);
+        baos.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return Latencies of full handshakes in microseconds.
+     */
+    public LatencyHistogram getFullLatency() {
+        return fullLatency;
+    }
+
+    /**
+     * @return Latencies of resumed handshakes in microseconds.
+     */
+    public LatencyHistogram getResumedLatency() {
+        return resumedLatency;
+    }
+}
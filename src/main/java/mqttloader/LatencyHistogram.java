@@ -0,0 +1,188 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Fixed-size, log-bucketed histogram of latency values in microseconds.
+ * Values are grouped by their most significant bit and split linearly into sub-buckets within each group,
+ * so that the relative error of a reported value is bounded by 1/2^(SUB_BUCKET_BITS-1) regardless of its magnitude.
+ * Recording is constant-time and histograms can be merged by adding their counts.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = Constants.HISTOGRAM_SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+    private static final long MAX_TRACKABLE_VALUE = (1L << Constants.HISTOGRAM_MAX_VALUE_BITS) - 1;
+    private static final int NUM_BUCKETS = getIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+    private long totalCount = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * Record a latency value.
+     * @param value Latency in microseconds. Negative values are treated as zero, and values larger than the trackable maximum are counted in the last bucket.
+     */
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        counts[getIndex(Math.min(value, MAX_TRACKABLE_VALUE))]++;
+        totalCount++;
+        sum += value;
+        if(value < min) {
+            min = value;
+        }
+        if(value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Add all the values recorded in another histogram to this histogram.
+     * @param other Histogram to be merged.
+     */
+    public void add(LatencyHistogram other) {
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        if(other.min < min) {
+            min = other.min;
+        }
+        if(other.max > max) {
+            max = other.max;
+        }
+    }
+
+    /**
+     * Get the value at the given percentile.
+     * The returned value is the upper bound of the bucket that contains the percentile, capped by the maximum recorded value.
+     * @param percentile Percentile in the range of (0, 100].
+     * @return Latency in microseconds. 0 if no value has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if(totalCount == 0) {
+            return 0;
+        }
+        long targetCount = (long)Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount);
+        if(targetCount < 1) {
+            targetCount = 1;
+        }
+        long accumulated = 0;
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            accumulated += counts[i];
+            if(accumulated >= targetCount) {
+                return Math.max(Math.min(getHighestValue(i), max), min);
+            }
+        }
+        return max;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : (double)sum/totalCount;
+    }
+
+    /**
+     * Write this histogram to a stream, e.g., to send it from an agent to the controller.
+     * Only non-empty buckets are written.
+     * @param dos Stream to be written.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeLong(totalCount);
+        dos.writeLong(sum);
+        dos.writeLong(min);
+        dos.writeLong(max);
+        int numBuckets = 0;
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            if(counts[i] > 0) {
+                numBuckets++;
+            }
+        }
+        dos.writeInt(numBuckets);
+        for(int i=0;i<NUM_BUCKETS;i++) {
+            if(counts[i] > 0) {
+                dos.writeInt(i);
+                dos.writeLong(counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Read a histogram written by writeTo().
+     * @param dis Stream to be read.
+     * @return Histogram.
+     * @throws IOException If reading fails or the stream has an invalid bucket.
+     */
+    public static LatencyHistogram readFrom(DataInputStream dis) throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.totalCount = dis.readLong();
+        histogram.sum = dis.readLong();
+        histogram.min = dis.readLong();
+        histogram.max = dis.readLong();
+        int numBuckets = dis.readInt();
+        for(int i=0;i<numBuckets;i++) {
+            int index = dis.readInt();
+            if(index < 0 || index >= NUM_BUCKETS) {
+                throw new IOException("Invalid histogram bucket: " + index);
+            }
+            histogram.counts[index] = dis.readLong();
+        }
+        return histogram;
+    }
+
+    private static int getIndex(long value) {
+        if(value < SUB_BUCKET_COUNT) {
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift*SUB_BUCKET_HALF_COUNT + (int)(value >>> shift);
+    }
+
+    private static long getHighestValue(int index) {
+        if(index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index/SUB_BUCKET_HALF_COUNT - 1;
+        long lowest = (long)(index - shift*SUB_BUCKET_HALF_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Rolling per second aggregates reported while the measurement is running.
+ * Only the last few seconds are kept, and each second is reported to the console and optionally to a JSON lines file
+ * once it has ended. Records that arrive after their second is reported are not included, but they are still included
+ * in the final results. All methods must be called only by the Recorder thread.
+ */
+public class LiveMetrics {
+    private static final int NUM_SLOTS = 4;
+
+    private final double[] percentiles;
+    private final int[] sendCounts = new int[NUM_SLOTS];
+    private final int[] recvCounts = new int[NUM_SLOTS];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[NUM_SLOTS];
+    private int nextSecond = 0;    // The next second to be reported.
+    private long lastDropped = 0;
+
+    private BufferedWriter bw = null;
+
+    /**
+     * @param file JSON lines file to which the aggregates are written. If null, they are written only to the console.
+     * @param percentiles Latency percentiles to be reported.
+     */
+    public LiveMetrics(File file, double[] percentiles) {
+        this.percentiles = percentiles;
+        for(int i=0;i<NUM_SLOTS;i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        if(file != null) {
+            try {
+                bw = new BufferedWriter(new FileWriter(file));
+                Loader.LOGGER.info("Live metrics file placed at: " + file.getAbsolutePath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void recordSend(int elapsedSecond) {
+        if(isInWindow(elapsedSecond)) {
+            sendCounts[elapsedSecond % NUM_SLOTS]++;
+        }
+    }
+
+    public void recordReceive(int elapsedSecond, long latency) {
+        if(isInWindow(elapsedSecond)) {
+            int index = elapsedSecond % NUM_SLOTS;
+            recvCounts[index]++;
+            latencies[index].record(latency);
+        }
+    }
+
+    private boolean isInWindow(int elapsedSecond) {
+        return elapsedSecond >= nextSecond && elapsedSecond < nextSecond + NUM_SLOTS;
+    }
+
+    /**
+     * Report the seconds that ended at least LIVE_METRICS_DELAY ago.
+     * @param elapsedMicros Elapsed time from the measurement start time in microseconds.
+     * @param queueDepth The number of records waiting in the recorder buffers.
+     * @param numDropped The total number of dropped records so far.
+     */
+    public void report(long elapsedMicros, int queueDepth, long numDropped) {
+        while((long)(nextSecond+1)*Constants.SECOND_IN_MICRO + Constants.LIVE_METRICS_DELAY <= elapsedMicros) {
+            reportNext(queueDepth, numDropped);
+        }
+    }
+
+    private void reportNext(int queueDepth, long numDropped) {
+        int index = nextSecond % NUM_SLOTS;
+        LatencyHistogram histogram = latencies[index];
+
+        StringBuilder console = new StringBuilder();
+        console.append("[").append(nextSecond).append("s] ");
+        console.append("send: ").append(sendCounts[index]).append(" msg/s, ");
+        console.append("recv: ").append(recvCounts[index]).append(" msg/s");
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"elapsed_second\":").append(nextSecond);
+        json.append(",\"send_throughput\":").append(sendCounts[index]);
+        json.append(",\"recv_throughput\":").append(recvCounts[index]);
+        json.append(",\"latency_ms\":{");
+        if(histogram.getTotalCount() > 0) {
+            json.append("\"max\":").append(toMillis(histogram.getMax()));
+            json.append(",\"average\":").append(toMillis(histogram.getMean()));
+            for(double percentile: percentiles) {
+                String value = toMillis(histogram.getValueAtPercentile(percentile));
+                console.append(", p").append(Util.formatPercentile(percentile)).append(": ").append(value).append(" ms");
+                json.append(",\"p").append(Util.formatPercentile(percentile)).append("\":").append(value);
+            }
+        }
+        json.append("}");
+
+        console.append(", queue: ").append(queueDepth);
+        console.append(", dropped: ").append(numDropped - lastDropped);
+        json.append(",\"queue_depth\":").append(queueDepth);
+        json.append(",\"dropped\":").append(numDropped - lastDropped);
+        json.append(",\"total_dropped\":").append(numDropped);
+        json.append("}");
+
+        System.out.println(console);
+        if(bw != null) {
+            try {
+                bw.write(json.toString());
+                bw.newLine();
+                bw.flush();    // So that the file is available even if MQTTLoader crashes.
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        sendCounts[index] = 0;
+        recvCounts[index] = 0;
+        latencies[index] = new LatencyHistogram();
+        lastDropped = numDropped;
+        nextSecond++;
+    }
+
+    private String toMillis(double micros) {
+        return String.format(Locale.ROOT, "%.3f", micros/Constants.MILLISECOND_IN_MICRO);
+    }
+
+    public void close() {
+        if(bw != null) {
+            try {
+                bw.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
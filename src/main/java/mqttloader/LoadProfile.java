@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.util.concurrent.ThreadLocalRandom;
+import mqttloader.Constants.Arrival;
+import mqttloader.Constants.LoadShape;
+
+/**
+ * Time-varying schedule of sending messages, defined by the global target rate of all publishers.
+ * Messages of all publishers are placed on a global position axis, and the send time of position x is the time when
+ * the cumulative number of messages of the profile reaches x.
+ * With uniform arrival, publisher i takes positions i, i+n, i+2n, ... for n publishers, so that the global rate is evenly distributed.
+ * With Poisson arrival, each publisher advances its position by an exponentially distributed amount with mean n instead,
+ * so that the superposed arrivals of all publishers follow a Poisson process with the global rate.
+ */
+public class LoadProfile {
+    private final LoadShape shape;
+    private final Arrival arrival;
+    private final int numPub;
+    private final double rate;
+    private final double startRate;
+    private final double period;
+    private final int numSteps;
+
+    /**
+     * @param shape Shape of the rate over time.
+     * @param arrival Distribution of inter-arrival times.
+     * @param numPub The number of publishers sharing the rate.
+     * @param rate Target rate of all publishers in messages per second.
+     * @param startRate Initial rate of ramp and steps in messages per second.
+     * @param period Duration of the ramp, each step, or interval between bursts in seconds.
+     * @param numSteps The number of steps to reach the target rate.
+     */
+    public LoadProfile(LoadShape shape, Arrival arrival, int numPub, double rate, double startRate, double period, int numSteps) {
+        this.shape = shape;
+        this.arrival = arrival;
+        this.numPub = numPub;
+        this.rate = rate;
+        this.startRate = startRate;
+        this.period = period;
+        this.numSteps = numSteps;
+    }
+
+    /**
+     * @param clientNumber Client number of the publisher.
+     * @return Position of the first message of the publisher.
+     */
+    public double getFirstPosition(int clientNumber) {
+        if(arrival == Arrival.POISSON) {
+            return getNextPosition(0);
+        }
+        return clientNumber;
+    }
+
+    /**
+     * @param position Position of the current message of a publisher.
+     * @return Position of the next message of the publisher.
+     */
+    public double getNextPosition(double position) {
+        if(arrival == Arrival.POISSON) {
+            return position - Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * numPub;
+        }
+        return position + numPub;
+    }
+
+    /**
+     * @param position Position of a message.
+     * @return Send time of the message in microseconds from the start of the profile.
+     */
+    public long getSendTime(double position) {
+        double seconds;
+        switch (shape) {
+            case RAMP:
+                seconds = getRampTime(position);
+                break;
+            case STEPS:
+                seconds = getStepsTime(position);
+                break;
+            case BURSTS:
+                // All messages of a period are sent at its beginning.
+                seconds = Math.floor(position / (rate*period)) * period;
+                break;
+            case CONSTANT:
+            default:
+                seconds = position / rate;
+        }
+        return (long)(seconds * Constants.SECOND_IN_MICRO);
+    }
+
+    /**
+     * Solve startRate*t + (rate-startRate)*t^2/(2*period) = position for t, in which the rate increases linearly.
+     */
+    private double getRampTime(double position) {
+        double total = (startRate + rate) * period / 2;
+        if(position >= total) {
+            return period + (position - total) / rate;
+        }
+        double slope = (rate - startRate) / period;
+        if(slope == 0) {
+            return position / startRate;
+        }
+        return (Math.sqrt(startRate*startRate + 2*slope*position) - startRate) / slope;
+    }
+
+    private double getStepsTime(double position) {
+        for(int i=0;i<numSteps;i++) {
+            double stepRate = startRate + (rate - startRate) * (i+1) / numSteps;
+            double stepMessages = stepRate * period;
+            if(position < stepMessages) {
+                return i*period + position/stepRate;
+            }
+            position -= stepMessages;
+        }
+        return numSteps*period + position/rate;
+    }
+}
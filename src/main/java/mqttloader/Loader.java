@@ -19,13 +19,13 @@ package mqttloader;
 import static java.lang.System.exit;
 import static mqttloader.Constants.Opt;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
@@ -39,18 +39,43 @@ import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.Timer;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-
+import javax.net.SocketFactory;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import mqttloader.broker.EmbeddedBroker;
 import mqttloader.client.AbstractClient;
 import mqttloader.client.AbstractPublisher;
-import mqttloader.client.PublisherV5;
-import mqttloader.client.PublisherV3;
-import mqttloader.client.SubscriberV5;
-import mqttloader.client.SubscriberV3;
+import mqttloader.client.AbstractSubscriber;
+import mqttloader.client.ClientEngine;
+import mqttloader.client.NioEngine;
+import mqttloader.client.PahoEngine;
+import mqttloader.Constants.Arrival;
+import mqttloader.Constants.Engine;
+import mqttloader.Constants.LoadShape;
+import mqttloader.Constants.OutputFormat;
+import mqttloader.Constants.PayloadContent;
+import mqttloader.Constants.PayloadDistribution;
 import mqttloader.Constants.Prop;
+import mqttloader.Constants.RecorderOverflow;
+import mqttloader.Constants.TopicSelection;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -65,10 +90,24 @@ public class Loader {
 
     public static volatile Instant measurementStartTime = null;
     public static volatile Instant measurementEndTime = null;
-    public static volatile Instant lastRecvTime;    // Last time any of subscribers received a message
-    public static long offset;
+    public static volatile long lastRecvEpochMicros;    // Last time any of subscribers received a message
+    public static volatile boolean subscribersOffline = false;
+    public static int agentIndex = 0;    // Index of this agent in the distributed mode, used for unique publisher IDs.
 
     private Recorder recorder;
+    private TopicGenerator topicGenerator;
+    private PayloadGenerator payloadGenerator;
+    private ConnectionStats connectionStats = new ConnectionStats();
+    private MetricsServer metricsServer = null;
+    private Agent agent = null;
+    private final AllocationCounter allocationCounter = new AllocationCounter();
+    private long allocatedBytes = -1;
+    private long cpuTime = -1;
+    private ClientEngine engine = null;
+    private EmbeddedBroker embeddedBroker = null;
+    private ScheduledExecutorService publishService = null;
+    private ScheduledThreadPoolExecutor offlineService = null;
+    private ScheduledThreadPoolExecutor reconnectService = null;
     public static CountDownLatch cdl;
 
     public static final Logger LOGGER = Logger.getLogger(Loader.class.getName());
@@ -76,29 +115,89 @@ public class Loader {
     public Loader(String[] args) {
         PROPS = new Properties(getDefaultProperties());
         loadCommandLineArguments(args);
-        loadConfigurationFile();
+        if(agent != null) {
+            loadConfigurationFromController();
+        } else {
+            loadConfigurationFile();
+        }
 
         LOGGER.setLevel(Level.parse(Util.getPropValue(Prop.LOG_LEVEL)));
         LOGGER.info("MQTTLoader version " + Constants.VERSION + " starting.");
-        LOGGER.info("Configuration file: " + confFile.getAbsolutePath());
+        if(confFile != null) {
+            LOGGER.info("Configuration file: " + confFile.getAbsolutePath());
+        }
+
+        if(Util.hasPropValue(Prop.AGENTS)) {
+            runController();
+            return;
+        }
+
+        if(Util.getPropValueInt(Prop.TLS_HANDSHAKE_BENCHMARK) > 0) {
+            runHandshakeBenchmark();
+            return;
+        }
 
         initFields();
 
+        if(isEmbeddedBroker()) {
+            startEmbeddedBroker();
+        }
+
         LOGGER.info("Preparing clients.");
         prepareClients();
+        if(Util.getPropValueInt(Prop.METRICS_PORT) > 0) {
+            metricsServer = new MetricsServer(recorder, publishers, subscribers);
+            recorder.setMetricsServer(metricsServer);
+            metricsServer.start(Util.getPropValueInt(Prop.METRICS_PORT));
+        }
         recorder.start();
 
+        Instant startTime = null;
+        if(agent != null) {
+            try {
+                agent.notifyReady();
+                startTime = agent.waitForStart();
+            } catch (IOException e) {
+                LOGGER.severe("Lost connection to controller.");
+                e.printStackTrace();
+                exit(1);
+            }
+        }
+
         LOGGER.info("Starting measurement.");
-        startMeasurement();
+        allocationCounter.start();
+        long cpuStartTime = Util.getProcessCpuTime();
+        startMeasurement(startTime);
         waitForMeasurement();
+        allocatedBytes = allocationCounter.stop();
+        if(cpuStartTime >= 0) {
+            cpuTime = Util.getProcessCpuTime() - cpuStartTime;
+        }
 
         LOGGER.info("Terminating clients.");
         disconnectClients();
-        measurementEndTime = Util.getCurrentTimeWithOffset();
+        measurementEndTime = Clock.currentTime();
+        if(embeddedBroker != null) {
+            embeddedBroker.close();
+        }
         recorder.terminate();
 
         LOGGER.info("Calculating results.");
         calcResult();
+
+        if(agent != null) {
+            try {
+                agent.sendResult(measurementEndTime, recorder, getDeliveryStats(), getBacklogStats(), getOutageStats(), getPayloadStats(), connectionStats);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to send the result to controller.");
+                e.printStackTrace();
+            }
+            agent.close();
+        }
+
+        if(metricsServer != null) {
+            metricsServer.stop();
+        }
     }
 
     private Properties getDefaultProperties() {
@@ -142,6 +241,22 @@ public class Loader {
             exit(1);
         }
 
+        if (cmd.hasOption(Opt.CONVERT.getName())){
+            convertRecordFile(new File(cmd.getOptionValue(Opt.CONVERT.getName())));
+            exit(0);
+        }
+
+        if (cmd.hasOption(Opt.AGENT.getName())){
+            try {
+                agent = new Agent(Integer.parseInt(cmd.getOptionValue(Opt.AGENT.getName())));
+            } catch (NumberFormatException e) {
+                LOGGER.severe("Port number of agent must be an integer.");
+                exit(1);
+            }
+            // The configuration is given by the controller.
+            return;
+        }
+
         if (cmd.hasOption(Opt.CONFIG.getName())){
             confFile = new File(cmd.getOptionValue(Opt.CONFIG.getName()));
         } else {
@@ -158,6 +273,36 @@ public class Loader {
         }
     }
 
+    /**
+     * Convert a binary record file into CSV format. The CSV file is placed in the same directory with extension ".csv".
+     * @param binFile Binary record file.
+     */
+    private void convertRecordFile(File binFile) {
+        if (!binFile.exists()) {
+            LOGGER.severe("Unable to find record file.");
+            exit(1);
+        }
+
+        String name = binFile.getName();
+        if (name.endsWith(OutputFormat.BINARY.getExtension())) {
+            name = name.substring(0, name.length()-OutputFormat.BINARY.getExtension().length());
+        }
+        File csvFile = new File(binFile.getAbsoluteFile().getParentFile(), name+OutputFormat.CSV.getExtension());
+
+        BinaryRecordFile recordFile = null;
+        try {
+            recordFile = new BinaryRecordFile(binFile);
+            recordFile.convertToCsv(csvFile);
+            LOGGER.info("Converted record file placed at: " + csvFile.getAbsolutePath());
+        } catch (IOException e) {
+            LOGGER.severe("Failed to convert record file.");
+            e.printStackTrace();
+            exit(1);
+        } finally {
+            if (recordFile != null) recordFile.close();
+        }
+    }
+
     /**
      * Load parameters from configuration file.
      */
@@ -173,7 +318,29 @@ public class Loader {
             return;
         }
 
-        // Validate arguments.
+        validateConfiguration();
+    }
+
+    /**
+     * Load parameters sent from the controller in the distributed mode.
+     */
+    private void loadConfigurationFromController() {
+        try {
+            PROPS.load(new StringReader(agent.waitForController()));
+        } catch (IOException e) {
+            LOGGER.severe("Unable to receive configuration from controller.");
+            e.printStackTrace();
+            exit(1);
+        }
+        Clock.setOffset(agent.getOffset());
+        agentIndex = agent.getIndex();
+        validateConfiguration();
+    }
+
+    /**
+     * Validate parameters.
+     */
+    private void validateConfiguration() {
         Prop prop = Prop.SHARED_SUB;
         String flag = Util.getPropValue(prop);
         if (!flag.equals("true") && !flag.equals("false")) {
@@ -188,272 +355,941 @@ public class Loader {
             exit(1);
         }
 
-        prop = Prop.OUTPUT;
-        if (Util.hasPropValue(prop)) {
-            File dir = new File(Util.getPropValue(prop));
-            if (dir.isFile()) {
-                LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be a directory.");
-                exit(1);
-            }
+        prop = Prop.TOPIC;
+        if (Util.getPropValue(prop).contains("+") || Util.getPropValue(prop).contains("#")) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must not contain wildcards.");
+            exit(1);
         }
 
-        prop = Prop.MQTT_VERSION;
-        int version = Util.getPropValueInt(prop);
-        if(version != 3 && version != 5) {
-            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be 3 or 5.");
+        prop = Prop.NUM_TOPICS;
+        if(Util.getPropValueInt(prop) < 1) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 1.");
+            exit(1);
+        }
+        if(Util.getPropValueInt(prop) > 1 && !Util.getPropValue(Prop.TOPIC).contains(TopicGenerator.PLACEHOLDER_NUMBER)) {
+            LOGGER.severe("\"" + Prop.TOPIC.getName() + "\" in configuration file must contain \"" + TopicGenerator.PLACEHOLDER_NUMBER + "\" when \"" + prop.getName() + "\" is larger than 1.");
             exit(1);
         }
 
-        prop = Prop.QOS_PUB;
-        int pubqos = Util.getPropValueInt(prop);
-        if(pubqos != 0 && pubqos != 1 && pubqos != 2) {
-            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be 0 or 1 or 2.");
+        prop = Prop.TOPIC_SELECTION;
+        if (TopicSelection.of(Util.getPropValue(prop)) == null) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"round_robin\" or \"zipf\".");
             exit(1);
         }
 
-        prop = Prop.QOS_SUB;
-        int subqos = Util.getPropValueInt(prop);
-        if(subqos != 0 && subqos != 1 && subqos != 2) {
-            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be 0 or 1 or 2.");
+        prop = Prop.ZIPF_EXPONENT;
+        if(Util.getPropValueDouble(prop) <= 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be larger than 0.");
             exit(1);
         }
 
-        prop = Prop.PAYLOAD;
-        if(Util.getPropValueInt(prop) < 8) {
-            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 8.");
+        prop = Prop.SUB_TOPIC;
+        if (Util.hasPropValue(prop) && Util.getPropValue(prop).contains(TopicGenerator.PLACEHOLDER_NUMBER)) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must not contain \"" + TopicGenerator.PLACEHOLDER_NUMBER + "\".");
             exit(1);
         }
 
-        prop = Prop.TLS;
+        prop = Prop.PERSISTENT_SESSION;
         flag = Util.getPropValue(prop);
         if (!flag.equals("true") && !flag.equals("false")) {
             LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"true\" or \"false\".");
             exit(1);
         }
 
-        prop = Prop.TLS_ROOTCA_CERT;
-        if (Util.hasPropValue(prop)) {
-            StringTokenizer st = new StringTokenizer(Util.getPropValue(prop), ";");
-            while(st.hasMoreTokens()){
-                if(!new File(st.nextToken()).exists()){
-                    LOGGER.severe("TLS CA certificate file specified by \"" + prop.getName() + "\" does not exist.");
-                    exit(1);
-                }
-            }
+        prop = Prop.SUB_OFFLINE_START;
+        if(Util.getPropValueInt(prop) < 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 0.");
+            exit(1);
         }
 
-        prop = Prop.TLS_CLIENT_CERT_CHAIN;
-        if (Util.hasPropValue(prop)) {
-            StringTokenizer st = new StringTokenizer(Util.getPropValue(prop), ";");
-            while(st.hasMoreTokens()){
-                if(!new File(st.nextToken()).exists()){
-                    LOGGER.severe("TLS client certificate file specified by \"" + prop.getName() + "\" does not exist.");
-                    exit(1);
-                }
-            }
+        prop = Prop.SUB_OFFLINE_PERIOD;
+        if(Util.getPropValueInt(prop) < 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 0.");
+            exit(1);
+        }
+        if(Util.getPropValueInt(prop) > 0 && !Util.getPropValueBool(Prop.PERSISTENT_SESSION)) {
+            LOGGER.severe("\"" + Prop.PERSISTENT_SESSION.getName() + "\" in configuration file must be \"true\" when \"" + prop.getName() + "\" is larger than 0.");
+            exit(1);
         }
 
-        prop = Prop.TLS_CLIENT_KEY;
-        if (Util.hasPropValue(prop)) {
-            if(!new File(Util.getPropValue(prop)).exists()){
-                LOGGER.severe("TLS client key file specified by \"" + prop.getName() + "\" does not exist.");
-                exit(1);
-            }
+        prop = Prop.RECONNECT;
+        flag = Util.getPropValue(prop);
+        if (!flag.equals("true") && !flag.equals("false")) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"true\" or \"false\".");
+            exit(1);
         }
-    }
 
-    /**
-     * Initialize fields that needs parameter values.
-     */
-    private void initFields() {
-        // If there is one or more subscriber(s), need to wait for subscribers' timeout in addition with publishers' completion.
-        cdl = Util.getPropValueInt(Prop.NUM_SUB) > 0 ? new CountDownLatch(Util.getPropValueInt(Prop.NUM_PUB)+1) : new CountDownLatch(Util.getPropValueInt(Prop.NUM_PUB));
-        recorder = new Recorder(getRecFile(), !Util.hasPropValue(Prop.OUTPUT));
-    }
+        prop = Prop.RECONNECT_BACKOFF;
+        if(Util.getPropValueInt(prop) <= 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be larger than 0.");
+            exit(1);
+        }
 
-    /**
-     * Prepare MQTT clients and make them connect to the broker.
-     */
-    private void prepareClients() {
-        String broker = Util.getPropValue(Prop.BROKER);
-        if(!broker.startsWith(Constants.BROKER_PREFIX_TCP) && !broker.startsWith(Constants.BROKER_PREFIX_TLS)) {
-            if(Util.getPropValueBool(Prop.TLS)) {
-                broker = Constants.BROKER_PREFIX_TLS +broker;
-            } else {
-                broker = Constants.BROKER_PREFIX_TCP +broker;
-            }
+        prop = Prop.RECONNECT_MAX_BACKOFF;
+        if(Util.getPropValueInt(prop) < Util.getPropValueInt(Prop.RECONNECT_BACKOFF)) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than \"" + Prop.RECONNECT_BACKOFF.getName() + "\".");
+            exit(1);
         }
 
-        if(!Util.hasPropValue(Prop.BROKER_PORT)) {
-            if(Util.getPropValueBool(Prop.TLS)) {
-                broker = broker + ":" + Constants.BROKER_PORT_TLS;
-            } else {
-                broker = broker + ":" + Constants.BROKER_PORT_TCP;
-            }
-        } else {
-            broker = broker + ":" + Util.getPropValue(Prop.BROKER_PORT);
+        prop = Prop.LOAD_PROFILE;
+        if (LoadShape.of(Util.getPropValue(prop)) == null) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"constant\", \"ramp\", \"steps\" or \"bursts\".");
+            exit(1);
+        }
+        if (LoadShape.of(Util.getPropValue(prop)) != LoadShape.CONSTANT && Util.getPropValueInt(Prop.RATE) <= 0) {
+            LOGGER.severe("\"" + Prop.RATE.getName() + "\" in configuration file must be larger than 0 when \"" + prop.getName() + "\" is not \"constant\".");
+            exit(1);
         }
-        LOGGER.info("Broker: " + broker);
 
-        int version = Util.getPropValueInt(Prop.MQTT_VERSION);
-        String userName = Util.getPropValue(Prop.USERNAME);
-        String password = Util.getPropValue(Prop.PASSWORD);
+        prop = Prop.ARRIVAL;
+        if (Arrival.of(Util.getPropValue(prop)) == null) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"uniform\" or \"poisson\".");
+            exit(1);
+        }
+        if (Arrival.of(Util.getPropValue(prop)) == Arrival.POISSON && Util.getPropValueInt(Prop.RATE) <= 0) {
+            LOGGER.severe("\"" + Prop.RATE.getName() + "\" in configuration file must be larger than 0 when \"" + prop.getName() + "\" is \"poisson\".");
+            exit(1);
+        }
 
-        Properties sslProps = null;
-        if(Util.hasPropValue(Prop.TLS_ROOTCA_CERT)) {
-            sslProps = new Properties();
-            File trustStoreFile;
+        prop = Prop.RATE;
+        if(Util.getPropValueInt(prop) < 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 0.");
+            exit(1);
+        }
 
-            char[] pass;
-            FileOutputStream fos;
-            try {
-                KeyStore trustStore = KeyStore.getInstance("JKS");
-                trustStore.load(null, null);
-                trustStore.setCertificateEntry("rootCA", new Pem(Util.getPropValue(Prop.TLS_ROOTCA_CERT)).getCerts().get(0));
-                
-                pass = Util.genRandomChars(Constants.KEYSTORE_PASSWORD_LENGTH).toCharArray(); 
-                trustStoreFile = File.createTempFile("ml-tmp-truststore", ".jks");
-                trustStoreFile.deleteOnExit();
-                fos = new FileOutputStream(trustStoreFile);
-                trustStore.store(fos, pass);
-                fos.flush();
-                fos.close();
-            } catch (Exception e) {
-                throw new RuntimeException("Cannot build keystore", e);
-            }
-            sslProps.setProperty("com.ibm.ssl.trustStore", trustStoreFile.getPath());
-            sslProps.setProperty("com.ibm.ssl.trustStorePassword", new String(pass));
-            LOGGER.info("Truststore: "+trustStoreFile.getAbsolutePath());
-//            LOGGER.info("Truststore pass: "+new String(pass));
-
-            if(Util.hasPropValue(Prop.TLS_CLIENT_KEY)) {
-                File keyStoreFile;            
-                try {
-                    PrivateKey key = new Pem(Util.getPropValue(Prop.TLS_CLIENT_KEY)).getPrivateKey();
-
-                    // Note: StringTokenizer skips an empty token.
-                    StringTokenizer st = new StringTokenizer(Util.getPropValue(Prop.TLS_CLIENT_CERT_CHAIN), ";");
-                    Certificate[] certArray = new Certificate[st.countTokens()];
-                    for(int i=0;i<certArray.length;i++){
-                        certArray[i] = new Pem(st.nextToken()).getCerts().get(0);
-                    }
+        prop = Prop.RATE_START;
+        if(Util.getPropValueInt(prop) < 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 0.");
+            exit(1);
+        }
 
-                    KeyStore keyStore = KeyStore.getInstance("JKS");
-                    keyStore.load(null, null);
-        
-                    pass = Util.genRandomChars(Constants.KEYSTORE_PASSWORD_LENGTH).toCharArray(); 
-                    keyStoreFile = File.createTempFile("ml-tmp-keystore", ".jks");
-                    keyStoreFile.deleteOnExit();
-                    keyStore.setKeyEntry("client-cert", key, pass, certArray);
-                    fos = new FileOutputStream(keyStoreFile);
-                    keyStore.store(fos, pass);
-                    fos.flush();
-                    fos.close();
-
-                    sslProps.setProperty("com.ibm.ssl.keyStore", keyStoreFile.getPath());
-                    sslProps.setProperty("com.ibm.ssl.clientAuthentication", "true");
-                    sslProps.setProperty("com.ibm.ssl.keyStorePassword", new String(pass));
-                    LOGGER.info("Keystore: "+keyStoreFile.getAbsolutePath());
-//                    LOGGER.info("Keystore pass: "+new String(pass));
-                } catch (Exception e) {
-                    throw new RuntimeException("Cannot build keystore", e);
-                }
-            }
+        prop = Prop.PROFILE_PERIOD;
+        if(Util.getPropValueInt(prop) < 1) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 1.");
+            exit(1);
         }
 
-        int numPub = Util.getPropValueInt(Prop.NUM_PUB);
-        int numSub = Util.getPropValueInt(Prop.NUM_SUB);
-        int pubQos = Util.getPropValueInt(Prop.QOS_PUB);
-        int subQos = Util.getPropValueInt(Prop.QOS_SUB);
-        boolean shSub = Util.getPropValueBool(Prop.SHARED_SUB);
-        boolean retain = Util.getPropValueBool(Prop.RETAIN);
-        String topic = Util.getPropValue(Prop.TOPIC);
-        int payloadSize = Util.getPropValueInt(Prop.PAYLOAD);
-        int numMessage = Util.getPropValueInt(Prop.NUM_MSG);
-        int pubInterval = Util.getPropValueInt(Prop.INTERVAL);
-        for(int i=0;i<numPub;i++){
-            if(version==5){
-                publishers.add(new PublisherV5(i, broker, userName, password, sslProps, pubQos, retain, topic, payloadSize, numMessage, pubInterval, recorder));
-            }else{
-                publishers.add(new PublisherV3(i, broker, userName, password, sslProps, pubQos, retain, topic, payloadSize, numMessage, pubInterval, recorder));
-            }
+        prop = Prop.PROFILE_STEPS;
+        if(Util.getPropValueInt(prop) < 1) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 1.");
+            exit(1);
         }
 
-        for(int i=0;i<numSub;i++){
-            if(version==5){
-                subscribers.add(new SubscriberV5(i, broker, userName, password, sslProps, subQos, shSub, topic, recorder));
-            }else{
-                subscribers.add(new SubscriberV3(i, broker, userName, password, sslProps, subQos, topic, recorder));
+        prop = Prop.OPEN_LOOP;
+        flag = Util.getPropValue(prop);
+        if (!flag.equals("true") && !flag.equals("false")) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"true\" or \"false\".");
+            exit(1);
+        }
+        if (flag.equals("true")) {
+            if (Util.getPropValueInt(Prop.INTERVAL) <= 0 && Util.getPropValueInt(Prop.RATE) <= 0) {
+                LOGGER.severe("\"" + Prop.INTERVAL.getName() + "\" or \"" + Prop.RATE.getName() + "\" in configuration file must be larger than 0 when \"" + prop.getName() + "\" is \"true\".");
+                exit(1);
             }
         }
-    }
 
-    /**
-     * Obtain a File object to be used to store sending/receiving records by Recorder instance.
-     * @return File instance. NULL if the parameter "-im" is specified.
-     */
-    private File getRecFile() {
-        File file = null;
-        if (Util.hasPropValue(Prop.OUTPUT)) {
-            File dir = new File(Util.getPropValue(Prop.OUTPUT));
-            if (!dir.exists()) {
-                dir.mkdirs();
-            }
-//            String date = Constants.DATE_FORMAT_FOR_FILENAME.format(new Date(System.currentTimeMillis() + offset));
-            String date = Constants.DATE_FORMAT_FOR_FILENAME.format(new Date(System.currentTimeMillis()));
-            file = new File(dir, Constants.FILE_NAME_PREFIX+date+".csv");
+        prop = Prop.CLIENT_ENGINE;
+        if (Engine.of(Util.getPropValue(prop)) == null) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"paho\" or \"nio\".");
+            exit(1);
+        }
+        if (Engine.of(Util.getPropValue(prop)) == Engine.NIO && getBrokerUrl().startsWith(Constants.BROKER_PREFIX_TLS)) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"paho\" when TLS is used.");
+            exit(1);
+        }
 
-            if(file.exists()) {
-                file.delete();
-            }
-            try {
-                file.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        prop = Prop.ENGINE_THREADS;
+        if(Util.getPropValueInt(prop) < 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 0.");
+            exit(1);
+        }
 
-            LOGGER.info("Output file placed at: " + file.getAbsolutePath());
+        prop = Prop.ASYNC_PUBLISH;
+        flag = Util.getPropValue(prop);
+        if (!flag.equals("true") && !flag.equals("false")) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"true\" or \"false\".");
+            exit(1);
         }
 
-        return file;
-    }
+        prop = Prop.MAX_INFLIGHT;
+        if(Util.getPropValueInt(prop) < 1 || Util.getPropValueInt(prop) > 65535) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be between 1 and 65535.");
+            exit(1);
+        }
 
-    /**
-     * Start measurement by running publishers.
-     */
-    private void startMeasurement() {
-        offset = Util.getOffsetFromNtpServer();
+        prop = Prop.VIRTUAL_THREADS;
+        flag = Util.getPropValue(prop);
+        if (!flag.equals("true") && !flag.equals("false")) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"true\" or \"false\".");
+            exit(1);
+        }
 
-        // delay: Give ScheduledExecutorService time to setup scheduling.
-        long delay = publishers.size();
+        prop = Prop.PUBLISH_THREADS;
+        if(Util.getPropValueInt(prop) < 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 0.");
+            exit(1);
+        }
 
-        measurementStartTime = Util.getCurrentTimeWithOffset().plusMillis(delay);
-        lastRecvTime = measurementStartTime;
-		recorder.writeStartTime();
+        prop = Prop.CONNECT_THREADS;
+        if(Util.getPropValueInt(prop) < 1) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 1.");
+            exit(1);
+        }
 
-		// publish interval in micro seconds.
-		int interval = Util.getPropValueInt(Prop.INTERVAL);
-		int numPub = publishers.size();
-		for(int i=0;i<numPub;i++){
-            ((AbstractPublisher)publishers.get(i)).start(delay*Constants.MILLISECOND_IN_MICRO+interval*i/numPub);
+        prop = Prop.CONNECT_RATE;
+        if(Util.getPropValueInt(prop) < 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 0.");
+            exit(1);
         }
-    }
 
-    /**
-     * Wait for completion of measurement.
-     * This method waits until all publishers complete sending PUBLISH messages and the time specified by parameter "-st" elapses since all subscribers last received a message.
-     * Nevertheless, when the time specified by parameter "-et" elapses, it goes into a timeout.
-     */
-    private void waitForMeasurement() {
-        Timer timer = null;
-        if(Util.getPropValueInt(Prop.NUM_SUB) > 0){
-            timer = new Timer();
+        prop = Prop.TLS_HANDSHAKE_BENCHMARK;
+        if(Util.getPropValueInt(prop) < 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 0.");
+            exit(1);
+        }
+        if(Util.getPropValueInt(prop) > 0 && (Util.hasPropValue(Prop.AGENTS) || agent != null)) {
+            LOGGER.severe("\"" + prop.getName() + "\" cannot be used with agents.");
+            exit(1);
+        }
+
+        prop = Prop.LIVE_METRICS;
+        flag = Util.getPropValue(prop);
+        if (!flag.equals("true") && !flag.equals("false")) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"true\" or \"false\".");
+            exit(1);
+        }
+
+        prop = Prop.METRICS_PORT;
+        if(Util.getPropValueInt(prop) < 0 || Util.getPropValueInt(prop) > 65535) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be between 0 and 65535.");
+            exit(1);
+        }
+
+        prop = Prop.AGENTS;
+        if (Util.hasPropValue(prop)) {
+            StringTokenizer st = new StringTokenizer(Util.getPropValue(prop), ",");
+            if (!st.hasMoreTokens()) {
+                LOGGER.severe("\"" + prop.getName() + "\" in configuration file must have at least one agent.");
+                exit(1);
+            }
+            while(st.hasMoreTokens()){
+                if(!st.nextToken().trim().matches(".+:[0-9]+")){
+                    LOGGER.severe("Each agent in \"" + prop.getName() + "\" in configuration file must be in the form of host:port.");
+                    exit(1);
+                }
+            }
+        }
+
+        prop = Prop.OUTPUT;
+        if (Util.hasPropValue(prop)) {
+            File dir = new File(Util.getPropValue(prop));
+            if (dir.isFile()) {
+                LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be a directory.");
+                exit(1);
+            }
+        }
+
+        prop = Prop.OUTPUT_FORMAT;
+        if(OutputFormat.of(Util.getPropValue(prop)) == null) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"csv\" or \"binary\".");
+            exit(1);
+        }
+
+        prop = Prop.MQTT_VERSION;
+        int version = Util.getPropValueInt(prop);
+        if(version != 3 && version != 5) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be 3 or 5.");
+            exit(1);
+        }
+
+        prop = Prop.TOPIC_ALIAS;
+        flag = Util.getPropValue(prop);
+        if (!flag.equals("true") && !flag.equals("false")) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"true\" or \"false\".");
+            exit(1);
+        }
+        if(flag.equals("true") && version != 5) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file requires MQTT v5.");
+            exit(1);
+        }
+        if(flag.equals("true") && Engine.of(Util.getPropValue(Prop.CLIENT_ENGINE)) != Engine.NIO) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file requires \"" + Prop.CLIENT_ENGINE.getName() + "\" to be \"nio\".");
+            exit(1);
+        }
+
+        prop = Prop.QOS_PUB;
+        int pubqos = Util.getPropValueInt(prop);
+        if(pubqos != 0 && pubqos != 1 && pubqos != 2) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be 0 or 1 or 2.");
+            exit(1);
+        }
+
+        prop = Prop.QOS_SUB;
+        int subqos = Util.getPropValueInt(prop);
+        if(subqos != 0 && subqos != 1 && subqos != 2) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be 0 or 1 or 2.");
+            exit(1);
+        }
+
+        prop = Prop.PAYLOAD;
+        if(Util.getPropValueInt(prop) < 8) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 8.");
+            exit(1);
+        }
+
+        prop = Prop.PAYLOAD_CONTENT;
+        PayloadContent content = PayloadContent.of(Util.getPropValue(prop));
+        if(content == null) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"zero\" or \"random\" or \"json\" or \"file\".");
+            exit(1);
+        }
+
+        prop = Prop.PAYLOAD_TEMPLATE;
+        if(content == PayloadContent.JSON && !Util.getPropValue(prop).startsWith("{")) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be a JSON object, i.e., start with \"{\".");
+            exit(1);
+        }
+
+        prop = Prop.PAYLOAD_FILE;
+        if(content == PayloadContent.FILE && (!Util.hasPropValue(prop) || !new File(Util.getPropValue(prop)).exists())) {
+            LOGGER.severe("Payload file specified by \"" + prop.getName() + "\" does not exist.");
+            exit(1);
+        }
+
+        prop = Prop.PAYLOAD_DISTRIBUTION;
+        PayloadDistribution distribution = PayloadDistribution.of(Util.getPropValue(prop));
+        if(distribution == null) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"fixed\" or \"uniform\" or \"lognormal\" or \"empirical\".");
+            exit(1);
+        }
+        if(distribution != PayloadDistribution.FIXED && (content == PayloadContent.JSON || content == PayloadContent.FILE)) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"fixed\" when \"" + Prop.PAYLOAD_CONTENT.getName() + "\" is \"json\" or \"file\".");
+            exit(1);
+        }
+
+        prop = Prop.PAYLOAD_MIN;
+        if(Util.getPropValueInt(prop) < 8) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 8.");
+            exit(1);
+        }
+
+        prop = Prop.PAYLOAD_MAX;
+        if(Util.getPropValueInt(prop) < Util.getPropValueInt(Prop.PAYLOAD_MIN)) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than \"" + Prop.PAYLOAD_MIN.getName() + "\".");
+            exit(1);
+        }
+
+        prop = Prop.PAYLOAD_SIGMA;
+        if(Util.getPropValueDouble(prop) <= 0) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be larger than 0.");
+            exit(1);
+        }
+
+        prop = Prop.PAYLOAD_SIZE_FILE;
+        if(distribution == PayloadDistribution.EMPIRICAL && (!Util.hasPropValue(prop) || !new File(Util.getPropValue(prop)).exists())) {
+            LOGGER.severe("Payload size file specified by \"" + prop.getName() + "\" does not exist.");
+            exit(1);
+        }
+
+        // Payloads of JSON documents and sample files always have room for the whole header.
+        if(Util.getPropValueBool(Prop.OPEN_LOOP) && (content == PayloadContent.ZERO || content == PayloadContent.RANDOM)) {
+            prop = distribution == PayloadDistribution.FIXED ? Prop.PAYLOAD : Prop.PAYLOAD_MIN;
+            if (Util.getPropValueInt(prop) < Constants.PAYLOAD_OPEN_LOOP_SIZE) {
+                LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than " + Constants.PAYLOAD_OPEN_LOOP_SIZE + " when \"" + Prop.OPEN_LOOP.getName() + "\" is \"true\".");
+                exit(1);
+            }
+        }
+
+        prop = Prop.RECORDER_BUFFER;
+        if(Util.getPropValueInt(prop) < 1) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be equal to or larger than 1.");
+            exit(1);
+        }
+
+        prop = Prop.RECORDER_OVERFLOW;
+        if(RecorderOverflow.of(Util.getPropValue(prop)) == null) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"block\" or \"drop\" or \"spill\".");
+            exit(1);
+        }
+
+        prop = Prop.LATENCY_PERCENTILES;
+        try {
+            for(double percentile: Util.getPropValueDoubles(prop)) {
+                if(percentile <= 0 || percentile > 100) {
+                    LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be larger than 0 and equal to or less than 100.");
+                    exit(1);
+                }
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be comma-separated numbers.");
+            exit(1);
+        }
+
+        prop = Prop.TLS;
+        flag = Util.getPropValue(prop);
+        if (!flag.equals("true") && !flag.equals("false")) {
+            LOGGER.severe("\"" + prop.getName() + "\" in configuration file must be \"true\" or \"false\".");
+            exit(1);
+        }
+
+        if(isEmbeddedBroker()) {
+            if(Util.getPropValueBool(Prop.TLS)) {
+                LOGGER.severe("\"" + Prop.TLS.getName() + "\" in configuration file must be \"false\" when the embedded broker is used.");
+                exit(1);
+            }
+            if(Util.hasPropValue(Prop.AGENTS) || agent != null) {
+                LOGGER.severe("The embedded broker cannot be used with agents.");
+                exit(1);
+            }
+            if(Util.getPropValueBool(Prop.PERSISTENT_SESSION)) {
+                LOGGER.severe("\"" + Prop.PERSISTENT_SESSION.getName() + "\" in configuration file must be \"false\" when the embedded broker is used.");
+                exit(1);
+            }
+        }
+
+        prop = Prop.TLS_ROOTCA_CERT;
+        if (Util.hasPropValue(prop)) {
+            StringTokenizer st = new StringTokenizer(Util.getPropValue(prop), ";");
+            while(st.hasMoreTokens()){
+                if(!new File(st.nextToken()).exists()){
+                    LOGGER.severe("TLS CA certificate file specified by \"" + prop.getName() + "\" does not exist.");
+                    exit(1);
+                }
+            }
+        }
+
+        prop = Prop.TLS_CLIENT_CERT_CHAIN;
+        if (Util.hasPropValue(prop)) {
+            StringTokenizer st = new StringTokenizer(Util.getPropValue(prop), ";");
+            while(st.hasMoreTokens()){
+                if(!new File(st.nextToken()).exists()){
+                    LOGGER.severe("TLS client certificate file specified by \"" + prop.getName() + "\" does not exist.");
+                    exit(1);
+                }
+            }
+        }
+
+        prop = Prop.TLS_CLIENT_KEY;
+        if (Util.hasPropValue(prop)) {
+            if(!new File(Util.getPropValue(prop)).exists()){
+                LOGGER.severe("TLS client key file specified by \"" + prop.getName() + "\" does not exist.");
+                exit(1);
+            }
+        }
+    }
+
+    /**
+     * Initialize fields that needs parameter values.
+     */
+    private void initFields() {
+        // If there is one or more subscriber(s), need to wait for subscribers' timeout in addition with publishers' completion.
+        cdl = Util.getPropValueInt(Prop.NUM_SUB) > 0 ? new CountDownLatch(Util.getPropValueInt(Prop.NUM_PUB)+1) : new CountDownLatch(Util.getPropValueInt(Prop.NUM_PUB));
+        recorder = new Recorder(getRecFile(), !Util.hasPropValue(Prop.OUTPUT), OutputFormat.of(Util.getPropValue(Prop.OUTPUT_FORMAT)), Util.getPropValueInt(Prop.RECORDER_BUFFER), RecorderOverflow.of(Util.getPropValue(Prop.RECORDER_OVERFLOW)));
+        if(Util.getPropValueBool(Prop.LIVE_METRICS)) {
+            File liveFile = null;
+            if(recorder.getFile() != null) {
+                // Placed next to the record file, e.g., mqttloader_xxxxxxxx-xxxxxx.jsonl.
+                String name = recorder.getFile().getName();
+                liveFile = new File(recorder.getFile().getParentFile(), name.substring(0, name.lastIndexOf('.'))+Constants.LIVE_METRICS_FILE_EXTENSION);
+            }
+            recorder.setLiveMetrics(new LiveMetrics(liveFile, Util.getPropValueDoubles(Prop.LATENCY_PERCENTILES)));
+        }
+    }
+
+    /**
+     * @return true if the broker is not a remote one but the embedded broker started by MQTTLoader.
+     */
+    private boolean isEmbeddedBroker() {
+        return Constants.BROKER_EMBEDDED.equals(Util.getPropValue(Prop.BROKER));
+    }
+
+    /**
+     * Start the embedded broker on the loopback address. The port is given by "broker_port", or an ephemeral one if not given.
+     */
+    private void startEmbeddedBroker() {
+        int port = Util.hasPropValue(Prop.BROKER_PORT) ? Util.getPropValueInt(Prop.BROKER_PORT) : 0;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        try {
+            // Advertised only if enabled, since Paho clients of v5 always use topic aliases when advertised.
+            int topicAliasMaximum = Util.getPropValueBool(Prop.TOPIC_ALIAS) ? Constants.EMBEDDED_BROKER_TOPIC_ALIAS_MAXIMUM : 0;
+            embeddedBroker = new EmbeddedBroker(port, numThreads, topicAliasMaximum);
+        } catch (IOException e) {
+            LOGGER.severe("Failed to start the embedded broker.");
+            e.printStackTrace();
+            exit(1);
+        }
+        LOGGER.info("Embedded broker started on port " + embeddedBroker.getPort() + " (" + numThreads + " threads).");
+    }
+
+    /**
+     * @return URL of the broker, e.g., "tcp://127.0.0.1:1883".
+     */
+    private String getBrokerUrl() {
+        if(isEmbeddedBroker()) {
+            // Before the embedded broker starts, e.g., in validation, the port is not known yet.
+            return Constants.BROKER_PREFIX_TCP + "127.0.0.1:" + (embeddedBroker != null ? embeddedBroker.getPort() : 0);
+        }
+        String broker = Util.getPropValue(Prop.BROKER);
+        if(!broker.startsWith(Constants.BROKER_PREFIX_TCP) && !broker.startsWith(Constants.BROKER_PREFIX_TLS)) {
+            if(Util.getPropValueBool(Prop.TLS)) {
+                broker = Constants.BROKER_PREFIX_TLS +broker;
+            } else {
+                broker = Constants.BROKER_PREFIX_TCP +broker;
+            }
+        }
+
+        if(!Util.hasPropValue(Prop.BROKER_PORT)) {
+            if(broker.startsWith(Constants.BROKER_PREFIX_TLS)) {
+                broker = broker + ":" + Constants.BROKER_PORT_TLS;
+            } else {
+                broker = broker + ":" + Constants.BROKER_PORT_TCP;
+            }
+        } else {
+            broker = broker + ":" + Util.getPropValue(Prop.BROKER_PORT);
+        }
+        return broker;
+    }
+
+    /**
+     * Build the SSL socket factory shared by all clients from the PEM files, without writing keystore files.
+     * Since the SSL context and its session cache are shared, clients can resume TLS sessions of others.
+     * @return SSL socket factory. If the broker is not connected with TLS, null.
+     */
+    private SSLSocketFactory createSocketFactory() {
+        if(!getBrokerUrl().startsWith(Constants.BROKER_PREFIX_TLS)) {
+            return null;
+        }
+        try {
+            SSLContext context = SSLContext.getInstance(Constants.TLS_PROTOCOL);
+            context.init(createKeyManagers(), createTrustManagers(), null);
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException | IOException e) {
+            throw new RuntimeException("Cannot build SSL context", e);
+        }
+    }
+
+    /**
+     * @return Trust managers that trust the CA certificate. If the CA certificate is not specified, null, i.e., the default ones are used.
+     */
+    private TrustManager[] createTrustManagers() throws GeneralSecurityException, IOException {
+        if(!Util.hasPropValue(Prop.TLS_ROOTCA_CERT)) {
+            return null;
+        }
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("rootCA", new Pem(Util.getPropValue(Prop.TLS_ROOTCA_CERT)).getCerts().get(0));
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        return tmf.getTrustManagers();
+    }
+
+    /**
+     * @return Key managers that have the client key and certificate chain. If the client key is not specified, null.
+     */
+    private KeyManager[] createKeyManagers() throws GeneralSecurityException, IOException {
+        if(!Util.hasPropValue(Prop.TLS_CLIENT_KEY)) {
+            return null;
+        }
+        PrivateKey key = new Pem(Util.getPropValue(Prop.TLS_CLIENT_KEY)).getPrivateKey();
+
+        // Note: StringTokenizer skips an empty token.
+        StringTokenizer st = new StringTokenizer(Util.getPropValue(Prop.TLS_CLIENT_CERT_CHAIN), ";");
+        Certificate[] certArray = new Certificate[st.countTokens()];
+        for(int i=0;i<certArray.length;i++){
+            certArray[i] = new Pem(st.nextToken()).getCerts().get(0);
+        }
+
+        // The keystore only exists in memory, but its password is still required.
+        char[] pass = Util.genRandomChars(Constants.KEYSTORE_PASSWORD_LENGTH).toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("client-cert", key, pass, certArray);
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, pass);
+        return kmf.getKeyManagers();
+    }
+
+    /**
+     * Prepare MQTT clients and make them connect to the broker.
+     */
+    private void prepareClients() {
+        String broker = getBrokerUrl();
+        LOGGER.info("Broker: " + broker);
+
+        engine = createEngine(broker);
+
+        int numPub = Util.getPropValueInt(Prop.NUM_PUB);
+        int numSub = Util.getPropValueInt(Prop.NUM_SUB);
+        int pubQos = Util.getPropValueInt(Prop.QOS_PUB);
+        int subQos = Util.getPropValueInt(Prop.QOS_SUB);
+        boolean shSub = Util.getPropValueBool(Prop.SHARED_SUB);
+        boolean retain = Util.getPropValueBool(Prop.RETAIN);
+        topicGenerator = new TopicGenerator(Util.getPropValue(Prop.TOPIC), Util.getPropValueInt(Prop.NUM_TOPICS),
+                TopicSelection.of(Util.getPropValue(Prop.TOPIC_SELECTION)), Util.getPropValueDouble(Prop.ZIPF_EXPONENT));
+        String subTopic = Util.hasPropValue(Prop.SUB_TOPIC) ? Util.getPropValue(Prop.SUB_TOPIC) : null;
+        payloadGenerator = createPayloadGenerator();
+        int numMessage = Util.getPropValueInt(Prop.NUM_MSG);
+        int pubInterval = Util.getPropValueInt(Prop.INTERVAL);
+        boolean openLoop = Util.getPropValueBool(Prop.OPEN_LOOP);
+        boolean persistentSession = Util.getPropValueBool(Prop.PERSISTENT_SESSION);
+        boolean textHeader = payloadGenerator.hasTextHeader();
+
+        // Clients connect to the broker in their constructors, which are run in parallel.
+        List<Callable<AbstractClient>> tasks = new ArrayList<>();
+        for(int i=0;i<numPub;i++){
+            int clientNumber = i;
+            tasks.add(() -> engine.createPublisher(clientNumber, pubQos, retain, topicGenerator, payloadGenerator, numMessage, pubInterval, openLoop, recorder));
+        }
+
+        for(int i=0;i<numSub;i++){
+            String filter = topicGenerator.getFilter(subTopic, i);
+            int clientNumber = i;
+            tasks.add(() -> engine.createSubscriber(clientNumber, subQos, shSub, filter, persistentSession, openLoop, textHeader, recorder));
+        }
+
+        long startNanos = System.nanoTime();
+        List<AbstractClient> clients = runInParallel(tasks, Util.getPropValueInt(Prop.CONNECT_RATE));
+        connectionStats.setConnectTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        publishers.addAll(clients.subList(0, numPub));
+        subscribers.addAll(clients.subList(numPub, clients.size()));
+        LOGGER.info("Connected " + clients.size() + " clients in " + connectionStats.getConnectTime() + " milliseconds.");
+
+        for(AbstractClient client: clients) {
+            if(client.getConnectLatency() >= 0) {
+                connectionStats.recordConnect(client.getConnectLatency());
+            }
+        }
+        for(AbstractClient sub: subscribers) {
+            if(((AbstractSubscriber)sub).getSubscribeLatency() >= 0) {
+                connectionStats.recordSubscribe(((AbstractSubscriber)sub).getSubscribeLatency());
+            }
+        }
+
+        if(Util.getPropValueBool(Prop.RECONNECT)) {
+            // Reconnection attempts of clients are run by the threads of CONNECT_THREADS, like the first connections.
+            reconnectService = new ScheduledThreadPoolExecutor(Util.getPropValueInt(Prop.CONNECT_THREADS));
+            reconnectService.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            long minBackoff = Util.getPropValueInt(Prop.RECONNECT_BACKOFF);
+            long maxBackoff = Util.getPropValueInt(Prop.RECONNECT_MAX_BACKOFF);
+            for(AbstractClient client: clients) {
+                client.enableReconnect(reconnectService, minBackoff, maxBackoff);
+            }
+        }
+    }
+
+    /**
+     * Create the generator of payloads given by the parameters, reading the files of samples and sizes if given.
+     * @return Generator.
+     */
+    private PayloadGenerator createPayloadGenerator() {
+        PayloadContent content = PayloadContent.of(Util.getPropValue(Prop.PAYLOAD_CONTENT));
+        int headerSize = Util.getPropValueBool(Prop.OPEN_LOOP) ? Constants.PAYLOAD_OPEN_LOOP_SIZE : Constants.PAYLOAD_SEQUENCE_SIZE;
+        PayloadGenerator generator;
+        try {
+            if(content == PayloadContent.JSON) {
+                generator = new PayloadGenerator(PayloadGenerator.renderTemplate(Util.getPropValue(Prop.PAYLOAD_TEMPLATE), Constants.PAYLOAD_NUM_DOCUMENTS), headerSize);
+            } else if(content == PayloadContent.FILE) {
+                generator = new PayloadGenerator(PayloadGenerator.readSamples(new File(Util.getPropValue(Prop.PAYLOAD_FILE))), headerSize);
+            } else {
+                PayloadDistribution distribution = PayloadDistribution.of(Util.getPropValue(Prop.PAYLOAD_DISTRIBUTION));
+                int minSize = Util.getPropValueInt(Prop.PAYLOAD_MIN);
+                int maxSize = Util.getPropValueInt(Prop.PAYLOAD_MAX);
+                int[] sizes;
+                if(distribution == PayloadDistribution.EMPIRICAL) {
+                    sizes = PayloadGenerator.readSizes(new File(Util.getPropValue(Prop.PAYLOAD_SIZE_FILE)), minSize, maxSize);
+                } else {
+                    sizes = PayloadGenerator.genSizes(distribution, Util.getPropValueInt(Prop.PAYLOAD), minSize, maxSize, Util.getPropValueDouble(Prop.PAYLOAD_SIGMA));
+                }
+                generator = new PayloadGenerator(sizes, content == PayloadContent.RANDOM);
+            }
+        } catch (IOException e) {
+            LOGGER.severe("Failed to read the payload or size file: " + e.getMessage());
+            e.printStackTrace();
+            exit(1);
+            return null;
+        }
+        LOGGER.info("Payload: " + content.getName() + " (" + generator.getMinSize() + " to " + generator.getMaxSize() + " bytes" + (generator.hasTextHeader() ? ", header in JSON" : "") + ")");
+        return generator;
+    }
+
+    /**
+     * Create the engine of MQTT clients given by the parameter.
+     * @param broker Broker URL.
+     * @return Engine.
+     */
+    private ClientEngine createEngine(String broker) {
+        int version = Util.getPropValueInt(Prop.MQTT_VERSION);
+        String userName = Util.getPropValue(Prop.USERNAME);
+        String password = Util.getPropValue(Prop.PASSWORD);
+        int maxInflight = Util.getPropValueInt(Prop.MAX_INFLIGHT);
+
+        if(Engine.of(Util.getPropValue(Prop.CLIENT_ENGINE)) == Engine.NIO) {
+            int numThreads = Util.getPropValueInt(Prop.ENGINE_THREADS);
+            if(numThreads == 0) {
+                numThreads = Runtime.getRuntime().availableProcessors();
+            }
+            LOGGER.info("Client engine: nio (" + numThreads + " event loops)");
+            try {
+                return new NioEngine(broker, version, userName, password, maxInflight, Util.getPropValueBool(Prop.TOPIC_ALIAS), numThreads);
+            } catch (IOException e) {
+                LOGGER.severe("Failed to start the client engine.");
+                e.printStackTrace();
+                exit(1);
+            }
+        }
+
+        LOGGER.info("Client engine: paho");
+        return new PahoEngine(broker, version, userName, password, createSocketFactory(), Util.getPropValueBool(Prop.ASYNC_PUBLISH), maxInflight);
+    }
+
+    /**
+     * Measure TLS handshakes with the broker instead of MQTT messages.
+     * Full handshakes are measured first, and then handshakes that resume the sessions are measured.
+     */
+    private void runHandshakeBenchmark() {
+        String broker = getBrokerUrl();
+        if(!broker.startsWith(Constants.BROKER_PREFIX_TLS)) {
+            LOGGER.severe("\"" + Prop.TLS_HANDSHAKE_BENCHMARK.getName() + "\" requires TLS connection to the broker.");
+            exit(1);
+        }
+        String hostPort = broker.substring(Constants.BROKER_PREFIX_TLS.length());
+        String host = hostPort.substring(0, hostPort.lastIndexOf(':'));
+        int port = Integer.valueOf(hostPort.substring(hostPort.lastIndexOf(':')+1));
+        LOGGER.info("Broker: " + broker);
+
+        HandshakeBenchmark benchmark = null;
+        try {
+            benchmark = new HandshakeBenchmark(createKeyManagers(), createTrustManagers(), host, port,
+                    Util.getPropValue(Prop.USERNAME), Util.getPropValue(Prop.PASSWORD));
+        } catch (GeneralSecurityException | IOException e) {
+            LOGGER.severe("Cannot build SSL context.");
+            e.printStackTrace();
+            exit(1);
+        }
+        int numHandshakes = Util.getPropValueInt(Prop.TLS_HANDSHAKE_BENCHMARK);
+
+        LOGGER.info("Measuring full handshakes.");
+        long fullTime = runHandshakes(benchmark, numHandshakes, false);
+        LOGGER.info("Measuring resumed handshakes.");
+        long resumedTime = runHandshakes(benchmark, numHandshakes, true);
+
+        System.out.println("-----TLS handshake-----");
+        System.out.println("Number of full handshakes: "+benchmark.getFullLatency().getTotalCount());
+        System.out.println("Number of resumed handshakes: "+benchmark.getResumedLatency().getTotalCount());
+        System.out.println("Handshakes per second without resumption: "+String.format("%.2f", (double)numHandshakes*Constants.SECOND_IN_NANO/fullTime));
+        System.out.println("Handshakes per second with resumption: "+String.format("%.2f", (double)numHandshakes*Constants.SECOND_IN_NANO/resumedTime));
+        if(benchmark.getFullLatency().getTotalCount() > 0) {
+            printLatencySummary(benchmark.getFullLatency(), "full handshake ");
+        }
+        if(benchmark.getResumedLatency().getTotalCount() > 0) {
+            printLatencySummary(benchmark.getResumedLatency(), "resumed handshake ");
+        }
+    }
+
+    /**
+     * @param benchmark Benchmark to record latencies.
+     * @param numHandshakes The number of handshakes.
+     * @param resume If true, sessions are kept to be resumed.
+     * @return Time to perform all handshakes in nanoseconds.
+     */
+    private long runHandshakes(HandshakeBenchmark benchmark, int numHandshakes, boolean resume) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int i=0;i<numHandshakes;i++) {
+            tasks.add(() -> {
+                benchmark.handshake(resume);
+                return null;
+            });
+        }
+        long startNanos = System.nanoTime();
+        runInParallel(tasks, Util.getPropValueInt(Prop.CONNECT_RATE));
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Run tasks, e.g., connecting clients, by the threads of CONNECT_THREADS.
+     * @param tasks Tasks to be run.
+     * @param rate The maximum number of tasks started per second. If 0, tasks are started without limit.
+     * @return Results of the tasks in the same order.
+     */
+    private <T> List<T> runInParallel(List<Callable<T>> tasks, int rate) {
+        ExecutorService service = Executors.newFixedThreadPool(Util.getPropValueInt(Prop.CONNECT_THREADS));
+        long intervalNanos = rate > 0 ? Constants.SECOND_IN_NANO/rate : 0;
+        long startNanos = System.nanoTime();
+        List<Future<T>> futures = new ArrayList<>();
+        for(int i=0;i<tasks.size();i++) {
+            Callable<T> task = tasks.get(i);
+            long startAt = startNanos + i*intervalNanos;
+            futures.add(service.submit(() -> {
+                long wait;
+                while((wait = startAt - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                return task.call();
+            }));
+        }
+
+        List<T> results = new ArrayList<>();
+        try {
+            for(Future<T> future: futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            exit(1);
+        } finally {
+            service.shutdown();
+        }
+        return results;
+    }
+
+    /**
+     * Obtain a File object to be used to store sending/receiving records by Recorder instance.
+     * @return File instance. NULL if the parameter "-im" is specified.
+     */
+    private File getRecFile() {
+        File file = null;
+        if (Util.hasPropValue(Prop.OUTPUT)) {
+            File dir = new File(Util.getPropValue(Prop.OUTPUT));
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+//            String date = Constants.DATE_FORMAT_FOR_FILENAME.format(new Date(System.currentTimeMillis() + offset));
+            String date = Constants.DATE_FORMAT_FOR_FILENAME.format(new Date(System.currentTimeMillis()));
+            file = new File(dir, Constants.FILE_NAME_PREFIX+date+OutputFormat.of(Util.getPropValue(Prop.OUTPUT_FORMAT)).getExtension());
+
+            if(file.exists()) {
+                file.delete();
+            }
+            try {
+                file.createNewFile();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            LOGGER.info("Output file placed at: " + file.getAbsolutePath());
+        }
+
+        return file;
+    }
+
+    /**
+     * Start measurement by running publishers.
+     * @param startTime Measurement start time given by the controller in the distributed mode. If null, it is decided by this method.
+     */
+    private void startMeasurement(Instant startTime) {
+        long delay;
+        if(startTime == null) {
+            Clock.setOffset(Util.getOffsetFromNtpServer());
+
+            // delay: Give ScheduledExecutorService time to setup scheduling.
+            delay = publishers.size();
+            measurementStartTime = Clock.currentTime().plusMillis(delay);
+        } else {
+            // The clock is already synchronized with the controller.
+            delay = Math.max(Duration.between(Clock.currentTime(), startTime).toMillis(), 0);
+            measurementStartTime = startTime;
+        }
+        lastRecvEpochMicros = Util.getEpochMicros(measurementStartTime);
+		recorder.writeStartTime();
+
+		// publish interval in micro seconds.
+		int interval = Util.getPropValueInt(Prop.INTERVAL);
+		int numPub = publishers.size();
+        ThreadFactory threadFactory = null;
+        if(Util.getPropValueBool(Prop.VIRTUAL_THREADS)) {
+            threadFactory = Util.getVirtualThreadFactory("ml-pub-");
+            if(threadFactory == null) {
+                LOGGER.warning("Virtual threads are not supported by this Java runtime. Platform threads are used instead.");
+            } else {
+                LOGGER.info("Publishers run on virtual threads.");
+            }
+        }
+        int numThreads = Util.getPropValueInt(Prop.PUBLISH_THREADS);
+        if(numThreads > 0) {
+            if(threadFactory == null) {
+                publishService = Executors.newScheduledThreadPool(numThreads);
+            } else {
+                publishService = Executors.newScheduledThreadPool(numThreads, threadFactory);
+            }
+        }
+        LoadProfile loadProfile = null;
+        if(Util.getPropValueInt(Prop.RATE) > 0) {
+            loadProfile = new LoadProfile(
+                    LoadShape.of(Util.getPropValue(Prop.LOAD_PROFILE)),
+                    Arrival.of(Util.getPropValue(Prop.ARRIVAL)),
+                    numPub,
+                    Util.getPropValueInt(Prop.RATE),
+                    Util.getPropValueInt(Prop.RATE_START),
+                    Util.getPropValueInt(Prop.PROFILE_PERIOD),
+                    Util.getPropValueInt(Prop.PROFILE_STEPS));
+        }
+		for(int i=0;i<numPub;i++){
+            if(loadProfile != null) {
+                // The gap between publishers is given by the load profile.
+                ((AbstractPublisher)publishers.get(i)).start(publishService, threadFactory, delay*Constants.MILLISECOND_IN_MICRO, loadProfile);
+            } else {
+                ((AbstractPublisher)publishers.get(i)).start(publishService, threadFactory, delay*Constants.MILLISECOND_IN_MICRO+(long)interval*i/numPub, null);
+            }
+        }
+        scheduleOffline(delay);
+    }
+
+    /**
+     * Schedule subscribers to go offline and reconnect, if "subscriber_offline_period" is specified.
+     * While they are offline, the broker queues messages in their persistent sessions.
+     * @param delay Time until the measurement start time in milliseconds.
+     */
+    private void scheduleOffline(long delay) {
+        int period = Util.getPropValueInt(Prop.SUB_OFFLINE_PERIOD);
+        if(period == 0 || subscribers.isEmpty()) {
+            return;
+        }
+        long offlineAt = delay + Util.getPropValueInt(Prop.SUB_OFFLINE_START)*Constants.SECOND_IN_MILLI;
+        offlineService = new ScheduledThreadPoolExecutor(1);
+        // Scheduled tasks are cancelled if the measurement completes before them.
+        offlineService.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        offlineService.schedule(() -> {
+            LOGGER.info("Subscribers going offline.");
+            subscribersOffline = true;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for(AbstractClient sub: subscribers) {
+                tasks.add(() -> {
+                    ((AbstractSubscriber)sub).goOffline();
+                    return null;
+                });
+            }
+            runInParallel(tasks, 0);
+        }, offlineAt, TimeUnit.MILLISECONDS);
+        offlineService.schedule(() -> {
+            LOGGER.info("Reconnecting subscribers.");
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for(AbstractClient sub: subscribers) {
+                tasks.add(() -> {
+                    ((AbstractSubscriber)sub).reconnect();
+                    return null;
+                });
+            }
+            runInParallel(tasks, Util.getPropValueInt(Prop.CONNECT_RATE));
+            lastRecvEpochMicros = Clock.currentEpochMicros();
+            subscribersOffline = false;
+        }, offlineAt + period*Constants.SECOND_IN_MILLI, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for completion of measurement.
+     * This method waits until all publishers complete sending PUBLISH messages and the time specified by parameter "-st" elapses since all subscribers last received a message.
+     * Nevertheless, when the time specified by parameter "-et" elapses, it goes into a timeout.
+     */
+    private void waitForMeasurement() {
+        Timer timer = null;
+        if(Util.getPropValueInt(Prop.NUM_SUB) > 0){
+            timer = new Timer();
             int subTimeout = Util.getPropValueInt(Prop.SUB_TIMEOUT);
             timer.schedule(new RecvTimeoutTask(timer, subTimeout), subTimeout*Constants.SECOND_IN_MILLI);
         }
 
         int execTime = Util.getPropValueInt(Prop.EXEC_TIME);
-        execTime -= (int)(Duration.between(Loader.measurementStartTime, Util.getCurrentTimeWithOffset()).get(ChronoUnit.SECONDS));
+        execTime -= (int)(Duration.between(Loader.measurementStartTime, Clock.currentTime()).get(ChronoUnit.SECONDS));
         if(execTime > 0) {
             try {
                 cdl.await(execTime, TimeUnit.SECONDS);
@@ -477,12 +1313,44 @@ public class Loader {
      * Disconnect MQTT clients from the broker.
      */
     private void disconnectClients() {
-        for(AbstractClient pub: publishers) {
-            pub.disconnect();
+        if(reconnectService != null) {
+            // Cancel pending attempts, and wait for running ones so that clients are not reconnected while disconnecting.
+            reconnectService.shutdown();
+            try {
+                reconnectService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
-        for(AbstractClient sub: subscribers) {
-            sub.disconnect();
+        // Subscribers are disconnected after all publishers, so that they can receive messages sent until the end.
+        runInParallel(getDisconnectTasks(publishers), 0);
+        if(publishService != null) {
+            publishService.shutdown();
         }
+        if(offlineService != null) {
+            // Wait for subscribers that are going offline or reconnecting.
+            offlineService.shutdown();
+            try {
+                offlineService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        runInParallel(getDisconnectTasks(subscribers), 0);
+        if(engine != null) {
+            engine.close();
+        }
+    }
+
+    private List<Callable<Void>> getDisconnectTasks(List<AbstractClient> clients) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(AbstractClient client: clients) {
+            tasks.add(() -> {
+                client.disconnect();
+                return null;
+            });
+        }
+        return tasks;
     }
 
     /**
@@ -490,60 +1358,89 @@ public class Loader {
      */
     private void calcResult() {
         if(Util.hasPropValue(Prop.OUTPUT)) {
-            FileInputStream fis = null;
-            InputStreamReader isr = null;
-            BufferedReader br = null;
-            try{
-                fis = new FileInputStream(recorder.getFile());
-                isr = new InputStreamReader(fis);
-                br = new BufferedReader(isr);
-
-                String str;
-                while ((str = br.readLine()) != null) {
-                    StringTokenizer st = new StringTokenizer(str, ",");
-                    long timestamp = Long.valueOf(st.nextToken());
-					if(!st.hasMoreTokens()) {
-						continue; // skip the first line that only has a timestamp.
-					}
-                    int elapsedTime = (int)((timestamp - Util.getEpochMicros(Loader.measurementStartTime))/Constants.SECOND_IN_MICRO);
-                    st.nextToken(); //client ID
-                    boolean isSend = st.nextToken().equals("S") ? true : false;
-                    if(isSend){
-                        recorder.recordSendInMemory(elapsedTime);
-                    } else {
-                        recorder.recordReceiveInMemory(elapsedTime, Long.valueOf(st.nextToken()));
-                    }
+            RecordFileReader reader = new RecordFileReader(recorder.getFile(), Runtime.getRuntime().availableProcessors());
+            try {
+                if(OutputFormat.of(Util.getPropValue(Prop.OUTPUT_FORMAT)) == OutputFormat.BINARY) {
+                    recorder.recordInMemory(reader.readBinary());
+                } else {
+                    recorder.recordInMemory(reader.readCsv());
                 }
-
-                br.close();
-                isr.close();
-                fis.close();
-            } catch(IOException e){
+            } catch (IOException e) {
                 e.printStackTrace();
-            } finally {
-                try {
-                    if(br != null) br.close();
-                    if(isr != null) isr.close();
-                    if(fis != null) fis.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.exit(1);
+            }
+        }
+
+        // Counted before printResult() trims ramp-up and ramp-down, since bytes and JVM usage cover the whole measurement.
+        long numSent = 0;
+        for(int count: recorder.getSendThroughputs().values()) {
+            numSent += count;
+        }
+        long numReceived = 0;
+        for(int count: recorder.getRecvThroughputs().values()) {
+            numReceived += count;
+        }
+
+        printResult(recorder.getNumDropped(), recorder.getNumSpilled(), recorder.getNumBlocked(), getDeliveryStats(), getBacklogStats(), getOutageStats(), getPayloadStats());
+
+        if(embeddedBroker != null) {
+            System.out.println();
+            System.out.println("-----Embedded broker-----");
+            System.out.println("Received messages: "+embeddedBroker.getNumReceived());
+            System.out.println("Delivered messages: "+embeddedBroker.getNumDelivered());
+            System.out.println("Dropped messages: "+embeddedBroker.getNumDropped());
+        }
+
+        long bytesSent = engine != null ? engine.getNumBytesSent() : -1;
+        if(bytesSent >= 0) {
+            System.out.println();
+            System.out.println("-----Traffic-----");
+            // Including the packets other than PUBLISH, e.g., CONNECT and PUBREL, and the messages sent outside the measurement.
+            System.out.println("Bytes sent by publishers [MB]: "+String.format("%.3f", (double)bytesSent/(1024*1024)));
+            if(numSent > 0) {
+                System.out.println("Bytes sent per message [bytes]: "+String.format("%.1f", (double)bytesSent/numSent));
+            }
+        }
+
+        if(allocatedBytes >= 0 || cpuTime >= 0) {
+            long numMessages = numSent + numReceived;
+            System.out.println();
+            System.out.println("-----JVM-----");
+            if(allocatedBytes >= 0) {
+                System.out.println("Allocated memory [MB]: "+String.format("%.3f", (double)allocatedBytes/(1024*1024)));
+                if(numMessages > 0) {
+                    System.out.println("Allocated memory per message [bytes]: "+String.format("%.1f", (double)allocatedBytes/numMessages));
+                }
+            }
+            if(cpuTime >= 0) {
+                // Messages per CPU second is the throughput that one core of this machine can handle, e.g., to compare client engines.
+                double cpuSeconds = (double)cpuTime/Constants.SECOND_IN_NANO;
+                System.out.println("CPU time [s]: "+String.format("%.3f", cpuSeconds));
+                if(numMessages > 0 && cpuSeconds > 0) {
+                    System.out.println("Messages per CPU second [msg/s]: "+String.format("%.1f", numMessages/cpuSeconds));
                 }
             }
         }
+    }
 
+    /**
+     * Print out the measurement result aggregated in the recorder to console.
+     * @param numDropped The number of records dropped by recorder buffers.
+     * @param numSpilled The number of records spilled by recorder buffers.
+     * @param numBlocked The number of records blocked by recorder buffers.
+     */
+    private void printResult(long numDropped, long numSpilled, long numBlocked, DeliveryStats deliveryStats, BacklogStats backlogStats, OutageStats outageStats, PayloadStats payloadStats) {
         TreeMap<Integer, Integer> sendThroughputs = recorder.getSendThroughputs();
         TreeMap<Integer, Integer> recvThroughputs = recorder.getRecvThroughputs();
-        TreeMap<Integer, Long> latencySums = recorder.getLatencySums();
-        TreeMap<Integer, Long> latencyMaxs = recorder.getLatencyMaxs();
+        TreeMap<Integer, LatencyHistogram> latencyHistograms = recorder.getLatencyHistograms();
+        TreeMap<Integer, LatencyHistogram> correctedLatencyHistograms = recorder.getCorrectedLatencyHistograms();
 
         int rampup = Util.getPropValueInt(Prop.RAMP_UP);
         int rampdown = Util.getPropValueInt(Prop.RAMP_DOWN);
 
         Util.trimTreeMap(sendThroughputs, rampup, rampdown);
         Util.trimTreeMap(recvThroughputs, rampup, rampdown);
-        Util.trimTreeMap(latencySums, rampup, rampdown);
-        Util.trimTreeMap(latencyMaxs, rampup, rampdown);
+        Util.trimTreeMap(latencyHistograms, rampup, rampdown);
+        Util.trimTreeMap(correctedLatencyHistograms, rampup, rampdown);
 
         Util.paddingTreeMap(sendThroughputs);
         Util.paddingTreeMap(recvThroughputs);
@@ -553,37 +1450,329 @@ public class Loader {
         System.out.println("Measurement ended: " + Constants.DATE_FORMAT_FOR_LOG.format(Date.from(measurementEndTime)));
         System.out.println();
         System.out.println("-----Publisher-----");
-        printThroughput(sendThroughputs, true);
+        printThroughput(sendThroughputs, payloadStats.getAverageSentSize(), true);
+        if(payloadStats.getNumSkipped() > 0) {
+            System.out.println("Number of messages skipped by full in-flight windows: "+payloadStats.getNumSkipped());
+        }
         System.out.println();
         System.out.println("-----Subscriber-----");
-        printThroughput(recvThroughputs, false);
+        printThroughput(recvThroughputs, payloadStats.getAverageReceivedSize(), false);
+        printLatency(latencyHistograms, recvThroughputs, "");
+        if(correctedLatencyHistograms.size() > 0) {
+            printLatency(correctedLatencyHistograms, recvThroughputs, "corrected ");
+        }
+
+        if(connectionStats.getConnectLatency().getTotalCount() > 0) {
+            System.out.println();
+            System.out.println("-----Connection-----");
+            System.out.println("Number of connected clients: "+connectionStats.getConnectLatency().getTotalCount());
+            System.out.println("Time to connect all clients [ms]: "+connectionStats.getConnectTime());
+            printLatencySummary(connectionStats.getConnectLatency(), "connect ");
+            if(connectionStats.getSubscribeLatency().getTotalCount() > 0) {
+                printLatencySummary(connectionStats.getSubscribeLatency(), "subscribe ");
+            }
+        }
+
+        if(numDropped > 0 || numSpilled > 0 || numBlocked > 0) {
+            System.out.println();
+            System.out.println("-----Recorder-----");
+            System.out.println("Number of dropped records: "+numDropped);
+            System.out.println("Number of spilled records: "+numSpilled);
+            System.out.println("Number of blocked records: "+numBlocked);
+        }
+
+        if(deliveryStats.hasRecords()) {
+            printDelivery(deliveryStats);
+        }
+
+        if(Util.getPropValueInt(Prop.SUB_OFFLINE_PERIOD) > 0) {
+            printBacklog(backlogStats);
+        }
+
+        if(Util.getPropValueBool(Prop.RECONNECT)) {
+            printReconnection(outageStats, recvThroughputs);
+        }
+    }
+
+    /**
+     * Collect the counts to verify the delivery of messages from publishers and subscribers.
+     * Must be called after the clients are disconnected.
+     * @return Counts of publishers and subscribers of this MQTTLoader.
+     */
+    private DeliveryStats getDeliveryStats() {
+        DeliveryStats stats = new DeliveryStats();
+        if(payloadGenerator.getMinSize() < Constants.PAYLOAD_SEQUENCE_SIZE) {
+            return stats;
+        }
+        int pubQos = Util.getPropValueInt(Prop.QOS_PUB);
+        for(AbstractClient pub: publishers) {
+            ((AbstractPublisher)pub).countSent(stats, pubQos);
+        }
+        String subTopic = Util.hasPropValue(Prop.SUB_TOPIC) ? Util.getPropValue(Prop.SUB_TOPIC) : null;
+        int subQos = Util.getPropValueInt(Prop.QOS_SUB);
+        for(int i=0;i<subscribers.size();i++) {
+            stats.addSubscribers(topicGenerator.getFilter(subTopic, i), subQos, 1);
+        }
+        for(AbstractClient sub: subscribers) {
+            stats.add(((AbstractSubscriber)sub).getSequenceTracker().getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Collect the messages queued while subscribers were offline. Must be called after the clients are disconnected.
+     * @return Stats of subscribers of this MQTTLoader.
+     */
+    private BacklogStats getBacklogStats() {
+        BacklogStats stats = new BacklogStats();
+        for(AbstractClient sub: subscribers) {
+            stats.add(((AbstractSubscriber)sub).getBacklogStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Collect the sizes of payloads sent and received by clients. Must be called after the clients are disconnected.
+     * @return Stats of publishers and subscribers of this MQTTLoader.
+     */
+    private PayloadStats getPayloadStats() {
+        PayloadStats stats = new PayloadStats();
+        for(AbstractClient pub: publishers) {
+            stats.add(pub.getPayloadStats());
+        }
+        for(AbstractClient sub: subscribers) {
+            stats.add(sub.getPayloadStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Collect the outages of clients. Must be called after the clients are disconnected.
+     * @return Stats of publishers and subscribers of this MQTTLoader.
+     */
+    private OutageStats getOutageStats() {
+        OutageStats stats = new OutageStats();
+        for(AbstractClient pub: publishers) {
+            stats.add(pub.getOutageStats());
+        }
+        for(AbstractClient sub: subscribers) {
+            stats.add(sub.getOutageStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Print out the outages of clients and how they recovered after reconnection.
+     * The dip of throughput is shown by the lowest per second throughput and the number of seconds below half of the average.
+     * @param stats Stats of publishers and subscribers.
+     * @param recvThroughputs Per second subscriber-side throughputs.
+     */
+    private void printReconnection(OutageStats stats, TreeMap<Integer, Integer> recvThroughputs) {
+        System.out.println();
+        System.out.println("-----Reconnection-----");
+        System.out.println("Number of connection losses: "+stats.getNumLost());
+        System.out.println("Number of failed reconnection attempts: "+stats.getNumFailedAttempts());
+        System.out.println("Number of messages not sent during outages: "+stats.getNumUnsent());
+        System.out.println("Number of messages missed during outages: "+stats.getNumMissed());
+        if(stats.getOutageTime().getTotalCount() > 0) {
+            printSummary(stats.getOutageTime(), "outage time");
+        }
+        if(stats.getFirstMessageTime().getTotalCount() > 0) {
+            printSummary(stats.getFirstMessageTime(), "time to first message");
+            printSummary(stats.getRecoveryTime(), "recovery time");
+        }
+
+        if(stats.getNumLost() > 0 && recvThroughputs.size() > 0) {
+            long sum = 0;
+            int lowest = Integer.MAX_VALUE;
+            for(int count: recvThroughputs.values()) {
+                sum += count;
+                lowest = Math.min(lowest, count);
+            }
+            double average = (double)sum/recvThroughputs.size();
+            int numDipped = 0;
+            for(int count: recvThroughputs.values()) {
+                if(count < average/2) {
+                    numDipped++;
+                }
+            }
+            System.out.println("Lowest per second throughput [msg/s]: "+lowest);
+            System.out.println("Seconds below half of average throughput: "+numDipped);
+        }
+    }
+
+    /**
+     * Print out the messages queued while subscribers were offline, and how fast they were delivered after reconnection.
+     * Per second results are indexed by the elapsed seconds since the reconnection.
+     * @param stats Stats of subscribers.
+     */
+    private void printBacklog(BacklogStats stats) {
+        int offlineStart = Util.getPropValueInt(Prop.SUB_OFFLINE_START);
+        System.out.println();
+        System.out.println("-----Backlog-----");
+        System.out.println("Offline period [s]: "+offlineStart+" - "+(offlineStart+Util.getPropValueInt(Prop.SUB_OFFLINE_PERIOD)));
+        System.out.println("Number of queued messages: "+stats.getNumQueued());
+        if(stats.getNumQueued() == 0) {
+            return;
+        }
+        double drainSeconds = (double)stats.getDrainTime()/Constants.SECOND_IN_MICRO;
+        System.out.println("Time to drain the backlog [ms]: "+String.format("%.3f", drainSeconds*Constants.SECOND_IN_MILLI));
+        if(drainSeconds > 0) {
+            System.out.println("Drain throughput [msg/s]: "+String.format("%.3f", stats.getNumQueued()/drainSeconds));
+        }
+
+        TreeMap<Integer, Integer> throughputs = stats.getThroughputs();
+        Util.paddingTreeMap(throughputs);
+        System.out.print("Per second drain throughput [msg/s]: ");
+        for(int elapsedSecond: throughputs.keySet()){
+            System.out.print(throughputs.get(elapsedSecond));
+            if(elapsedSecond<throughputs.lastKey()){
+                System.out.print(", ");
+            }
+        }
+        System.out.println();
+        printLatency(stats.getLatencyHistograms(), throughputs, "backlog ");
+    }
+
+    /**
+     * Print out the counts of lost, duplicated and out-of-order messages for each QoS level of delivered messages.
+     * @param stats Counts of publishers and subscribers.
+     */
+    private void printDelivery(DeliveryStats stats) {
+        boolean shared = Util.getPropValueBool(Prop.SHARED_SUB);
+        for(int qos=0;qos<=2;qos++) {
+            long expected = stats.getNumExpected(qos, shared);
+            if(expected <= 0 && stats.getNumReceived(qos) == 0 && stats.getNumDuplicated(qos) == 0) {
+                continue;
+            }
+            System.out.println();
+            System.out.println("-----Delivery (QoS "+qos+")-----");
+            System.out.println("Number of expected messages: "+(expected >= 0 ? String.valueOf(expected) : "-"));
+            System.out.println("Number of received messages: "+stats.getNumReceived(qos));
+            System.out.println("Number of lost messages: "+stats.getNumLost(qos, shared));
+            System.out.println("Number of duplicated messages: "+stats.getNumDuplicated(qos));
+            System.out.println("Number of out-of-order messages: "+stats.getNumOutOfOrder(qos));
+        }
+    }
 
-        long maxLtMicros = 0;
-        double aveLtMicros = 0;
-        long numMsg = 0;
-        for(int elapsedSecond: latencySums.keySet()) {
-            if(latencyMaxs.get(elapsedSecond) > maxLtMicros) {
-                maxLtMicros = latencyMaxs.get(elapsedSecond);
+    /**
+     * Run as the controller of the distributed mode, in which agents run the measurement and this merges their results.
+     */
+    private void runController() {
+        Clock.setOffset(Util.getOffsetFromNtpServer());
+        Controller controller = new Controller(Util.getPropValue(Prop.AGENTS));
+
+        // Agents run the same configuration except for the list of agents.
+        // Parameters prefixed by "agent<N>." override the ones of the N-th agent, e.g., "agent1.num_subscribers = 0".
+        List<String> configs = new ArrayList<>();
+        try {
+            for(int i=0;i<controller.getNumAgents();i++) {
+                String prefix = Constants.AGENT_PROP_PREFIX + i + ".";
+                Properties agentProps = new Properties();
+                for(Object key: PROPS.keySet()) {
+                    String name = (String)key;
+                    if(!name.startsWith(Constants.AGENT_PROP_PREFIX) && !name.equals(Prop.AGENTS.getName())) {
+                        agentProps.setProperty(name, PROPS.getProperty(name));
+                    }
+                }
+                for(Object key: PROPS.keySet()) {
+                    String name = (String)key;
+                    if(name.startsWith(prefix)) {
+                        agentProps.setProperty(name.substring(prefix.length()), PROPS.getProperty(name));
+                    }
+                }
+                StringWriter config = new StringWriter();
+                agentProps.store(config, null);
+                configs.add(config.toString());
             }
-            int numInSec = recvThroughputs.get(elapsedSecond);
-            numMsg += numInSec;
-            double aveInSec = (double)latencySums.get(elapsedSecond)/numInSec;
-            aveLtMicros = aveLtMicros + ((aveInSec-aveLtMicros)*numInSec)/numMsg;
+            LOGGER.info("Connecting to agents.");
+            controller.connect(configs);
+            controller.waitForReady();
+            measurementStartTime = controller.start();
+        } catch (IOException e) {
+            LOGGER.severe("Failed to start measurement on agents.");
+            e.printStackTrace();
+            controller.close();
+            exit(1);
+        }
+        LOGGER.info("Starting measurement on " + controller.getNumAgents() + " agents.");
+
+        // The recorder is used only to merge the results of agents.
+        recorder = new Recorder(null, true, OutputFormat.CSV, 1, RecorderOverflow.BLOCK);
+        measurementEndTime = controller.collectResults(recorder);
+        connectionStats = controller.getConnectionStats();
+        controller.close();
+
+        LOGGER.info("Calculating results.");
+        printResult(controller.getNumDropped(), controller.getNumSpilled(), controller.getNumBlocked(), controller.getDeliveryStats(), controller.getBacklogStats(), controller.getOutageStats(), controller.getPayloadStats());
+    }
+
+    /**
+     * Print out the maximum, average and percentiles of latencies to console.
+     * @param histogram Latencies in microseconds.
+     * @param label Prefix of "latency" in the output, e.g., "connect ".
+     */
+    private void printLatencySummary(LatencyHistogram histogram, String label) {
+        printSummary(histogram, label+"latency");
+    }
+
+    /**
+     * Print out the maximum, average and percentiles of durations to console.
+     * @param histogram Durations in microseconds.
+     * @param name Name of the durations in the output, e.g., "outage time".
+     */
+    private void printSummary(LatencyHistogram histogram, String name) {
+        double maxMillis = (double)histogram.getMax()/Constants.MILLISECOND_IN_MICRO;
+        double aveMillis = histogram.getMean()/Constants.MILLISECOND_IN_MICRO;
+
+        System.out.println("Maximum "+name+" [ms]: "+String.format("%.3f", maxMillis));
+        System.out.println("Average "+name+" [ms]: "+String.format("%.3f", aveMillis));
+
+        for(double percentile: Util.getPropValueDoubles(Prop.LATENCY_PERCENTILES)) {
+            double millis = (double)histogram.getValueAtPercentile(percentile)/Constants.MILLISECOND_IN_MICRO;
+            System.out.println("p"+Util.formatPercentile(percentile)+" "+name+" [ms]: "+String.format("%.3f", millis));
         }
+    }
 
-        double maxLtMillis = (double)maxLtMicros/Constants.MILLISECOND_IN_MICRO;
-        double aveLtMillis = aveLtMicros/Constants.MILLISECOND_IN_MICRO;
+    /**
+     * Print out latency result to console.
+     * @param latencyHistograms Map object storing latency histograms. keys are the elapsed seconds from the measurement start time, and values are the latencies of messages received in that one second.
+     * @param recvThroughputs Map object storing subscriber-side throughput data. Its keys are used as the timeline of per second results.
+     * @param label Prefix of "latency" in the output, e.g., "corrected " for latencies measured from the intended send time.
+     */
+    private void printLatency(TreeMap<Integer, LatencyHistogram> latencyHistograms, TreeMap<Integer, Integer> recvThroughputs, String label) {
+        LatencyHistogram total = new LatencyHistogram();
+        for(LatencyHistogram histogram: latencyHistograms.values()) {
+            total.add(histogram);
+        }
 
-        System.out.println("Maximum latency [ms]: "+String.format("%.3f", maxLtMillis));
-        System.out.println("Average latency [ms]: "+String.format("%.3f", aveLtMillis));
+        printLatencySummary(total, label);
+
+        double[] percentiles = Util.getPropValueDoubles(Prop.LATENCY_PERCENTILES);
+        for(double percentile: percentiles) {
+            System.out.print("Per second p"+Util.formatPercentile(percentile)+" "+label+"latency [ms]: ");
+            for(int elapsedSecond: recvThroughputs.keySet()){
+                LatencyHistogram histogram = latencyHistograms.get(elapsedSecond);
+                if(histogram != null) {
+                    System.out.print(String.format("%.3f", (double)histogram.getValueAtPercentile(percentile)/Constants.MILLISECOND_IN_MICRO));
+                } else {
+                    System.out.print("-");
+                }
+                if(elapsedSecond<recvThroughputs.lastKey()){
+                    System.out.print(", ");
+                }
+            }
+            System.out.println();
+        }
     }
 
     /**
      * Print out throughput result to console.
      * @param throughputs Map object storing throughput data. keys are the elapsed seconds from the measurement start time, and values are the number of messages for that one second.
+     * @param averageSize Average size of payloads in bytes, by which the throughput in messages is converted into bytes.
      * @param forPublisher True if it is the publisher-side throughput. False if it is the subscriber-side throughput.
      */
-    private void printThroughput(TreeMap<Integer, Integer> throughputs, boolean forPublisher) {
+    private void printThroughput(TreeMap<Integer, Integer> throughputs, double averageSize, boolean forPublisher) {
         int maxTh = 0;
         int sumMsg = 0;
         for(int elapsedSecond: throughputs.keySet()){
@@ -597,6 +1786,8 @@ public class Loader {
         double aveTh = throughputs.size()>0 ? (double)sumMsg/throughputs.size() : 0;
         System.out.println("Maximum throughput [msg/s]: "+maxTh);
         System.out.println("Average throughput [msg/s]: "+String.format("%.3f", aveTh));
+        // Payloads only, excluding MQTT headers and topics.
+        System.out.println("Average throughput [MB/s]: "+String.format("%.3f", aveTh*averageSize/(1024*1024)));
         if(forPublisher){
             System.out.println("Number of published messages: "+sumMsg);
         }else{
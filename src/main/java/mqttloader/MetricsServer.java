@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import mqttloader.client.AbstractClient;
+
+/**
+ * HTTP endpoint that exposes the metrics of the measurement in Prometheus text format.
+ * Counters and the latency histogram are updated only by the Recorder thread and read by the HTTP server thread,
+ * so that publishers and subscribers are not affected. Gauges such as connection states are sampled on each scrape.
+ */
+public class MetricsServer {
+    private static final long[] BUCKETS = Constants.METRICS_LATENCY_BUCKETS;
+
+    private final AtomicLong numPublished = new AtomicLong();
+    private final AtomicLong numReceived = new AtomicLong();
+    private final AtomicLongArray latencyCounts = new AtomicLongArray(BUCKETS.length+1);    // The last one is for +Inf.
+    private final AtomicLong latencySum = new AtomicLong();
+
+    private final Recorder recorder;
+    private final List<AbstractClient> publishers;
+    private final List<AbstractClient> subscribers;
+    private HttpServer server;
+
+    /**
+     * @param recorder Recorder that feeds the counters.
+     * @param publishers Publishers whose states are exposed.
+     * @param subscribers Subscribers whose states are exposed.
+     */
+    public MetricsServer(Recorder recorder, List<AbstractClient> publishers, List<AbstractClient> subscribers) {
+        this.recorder = recorder;
+        this.publishers = publishers;
+        this.subscribers = subscribers;
+    }
+
+    /**
+     * Start serving "/metrics".
+     * @param port Port number to listen on.
+     */
+    public void start(int port) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            Loader.LOGGER.warning("Failed to start metrics server on port " + port + ".");
+            e.printStackTrace();
+            return;
+        }
+        server.createContext(Constants.METRICS_PATH, this::handle);
+        server.start();
+        Loader.LOGGER.info("Metrics are served at: http://localhost:" + port + Constants.METRICS_PATH);
+    }
+
+    public void stop() {
+        if(server != null) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Count a sent message. Called only by the Recorder thread.
+     */
+    void recordSend() {
+        numPublished.lazySet(numPublished.get()+1);
+    }
+
+    /**
+     * Count a received message. Called only by the Recorder thread.
+     * @param latency Latency in microseconds.
+     */
+    void recordReceive(long latency) {
+        int index = 0;
+        while(index < BUCKETS.length && latency > BUCKETS[index]) {
+            index++;
+        }
+        latencyCounts.lazySet(index, latencyCounts.get(index)+1);
+        latencySum.lazySet(latencySum.get()+latency);
+        numReceived.lazySet(numReceived.get()+1);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private String render() {
+        StringBuilder sb = new StringBuilder();
+
+        appendHeader(sb, "mqttloader_published_messages_total", "counter", "Number of messages sent by publishers.");
+        sb.append("mqttloader_published_messages_total ").append(numPublished.get()).append("\n");
+
+        appendHeader(sb, "mqttloader_received_messages_total", "counter", "Number of messages received by subscribers.");
+        sb.append("mqttloader_received_messages_total ").append(numReceived.get()).append("\n");
+
+        appendHeader(sb, "mqttloader_latency_seconds", "histogram", "Latency from sending by a publisher to receiving by a subscriber.");
+        long cumulative = 0;
+        for(int i=0;i<BUCKETS.length;i++) {
+            cumulative += latencyCounts.get(i);
+            sb.append("mqttloader_latency_seconds_bucket{le=\"").append(toSeconds(BUCKETS[i])).append("\"} ").append(cumulative).append("\n");
+        }
+        cumulative += latencyCounts.get(BUCKETS.length);
+        sb.append("mqttloader_latency_seconds_bucket{le=\"+Inf\"} ").append(cumulative).append("\n");
+        sb.append("mqttloader_latency_seconds_sum ").append(toSeconds(latencySum.get())).append("\n");
+        sb.append("mqttloader_latency_seconds_count ").append(cumulative).append("\n");
+
+        int numInflight = 0;
+        for(AbstractClient publisher: publishers) {
+            numInflight += publisher.getNumInflight();
+        }
+        appendHeader(sb, "mqttloader_inflight_messages", "gauge", "Number of messages waiting for the completion of PUBLISH.");
+        sb.append("mqttloader_inflight_messages ").append(numInflight).append("\n");
+
+        appendHeader(sb, "mqttloader_clients", "gauge", "Number of clients.");
+        sb.append("mqttloader_clients{role=\"publisher\"} ").append(publishers.size()).append("\n");
+        sb.append("mqttloader_clients{role=\"subscriber\"} ").append(subscribers.size()).append("\n");
+        appendHeader(sb, "mqttloader_connected_clients", "gauge", "Number of clients connected to the broker.");
+        sb.append("mqttloader_connected_clients{role=\"publisher\"} ").append(countConnected(publishers)).append("\n");
+        sb.append("mqttloader_connected_clients{role=\"subscriber\"} ").append(countConnected(subscribers)).append("\n");
+
+        appendHeader(sb, "mqttloader_recorder_dropped_records_total", "counter", "Number of send/receive records dropped because recorder buffers were full.");
+        sb.append("mqttloader_recorder_dropped_records_total ").append(recorder.getNumDropped()).append("\n");
+        appendHeader(sb, "mqttloader_recorder_queue_depth", "gauge", "Number of send/receive records waiting in recorder buffers.");
+        sb.append("mqttloader_recorder_queue_depth ").append(recorder.getQueueDepth()).append("\n");
+
+        return sb.toString();
+    }
+
+    private void appendHeader(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        sb.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+    }
+
+    private int countConnected(List<AbstractClient> clients) {
+        int count = 0;
+        for(AbstractClient client: clients) {
+            if(client.isConnected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private String toSeconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", (double)micros/Constants.SECOND_IN_MICRO);
+    }
+}
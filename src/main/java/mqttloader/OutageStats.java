@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Outages of clients whose connection was lost unexpectedly, e.g., by a restart of the broker, and their recovery.
+ * Since events of a client are recorded by different threads, the methods to record them are synchronized.
+ * They are called only on connection losses, reconnections and the first message after them.
+ */
+public class OutageStats {
+    private final LatencyHistogram outageTime = new LatencyHistogram();
+    private final LatencyHistogram firstMessageTime = new LatencyHistogram();
+    private final LatencyHistogram recoveryTime = new LatencyHistogram();
+    private long numLost = 0;
+    private long numFailedAttempts = 0;
+    private long numUnsent = 0;
+    private long numMissed = 0;
+
+    public synchronized void countLost() {
+        numLost++;
+    }
+
+    public synchronized void countFailedAttempt() {
+        numFailedAttempts++;
+    }
+
+    /**
+     * Count a message that a publisher could not send because it was disconnected.
+     */
+    public synchronized void countUnsent() {
+        numUnsent++;
+    }
+
+    /**
+     * @param count The number of messages that a subscriber did not receive because of outages.
+     */
+    public synchronized void addMissed(long count) {
+        numMissed += count;
+    }
+
+    /**
+     * @param outage Time from losing the connection until reconnecting in microseconds.
+     */
+    public synchronized void recordOutage(long outage) {
+        outageTime.record(outage);
+    }
+
+    /**
+     * @param firstMessage Time from reconnecting until the first message is sent or received in microseconds.
+     * @param recovery Time from losing the connection until the first message is sent or received in microseconds.
+     */
+    public synchronized void recordRecovery(long firstMessage, long recovery) {
+        firstMessageTime.record(firstMessage);
+        recoveryTime.record(recovery);
+    }
+
+    public LatencyHistogram getOutageTime() {
+        return outageTime;
+    }
+
+    public LatencyHistogram getFirstMessageTime() {
+        return firstMessageTime;
+    }
+
+    public LatencyHistogram getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    public long getNumLost() {
+        return numLost;
+    }
+
+    public long getNumFailedAttempts() {
+        return numFailedAttempts;
+    }
+
+    public long getNumUnsent() {
+        return numUnsent;
+    }
+
+    public long getNumMissed() {
+        return numMissed;
+    }
+
+    /**
+     * Merge the stats of another client or MQTTLoader.
+     * @param other Stats to be merged.
+     */
+    public synchronized void add(OutageStats other) {
+        outageTime.add(other.outageTime);
+        firstMessageTime.add(other.firstMessageTime);
+        recoveryTime.add(other.recoveryTime);
+        numLost += other.numLost;
+        numFailedAttempts += other.numFailedAttempts;
+        numUnsent += other.numUnsent;
+        numMissed += other.numMissed;
+    }
+
+    /**
+     * Write the stats, e.g., to send them from an agent to the controller.
+     * @param dos Stream to be written.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeLong(numLost);
+        dos.writeLong(numFailedAttempts);
+        dos.writeLong(numUnsent);
+        dos.writeLong(numMissed);
+        outageTime.writeTo(dos);
+        firstMessageTime.writeTo(dos);
+        recoveryTime.writeTo(dos);
+    }
+
+    /**
+     * Read the stats written by writeTo().
+     * @param dis Stream to be read.
+     * @return Stats.
+     * @throws IOException If reading fails.
+     */
+    public static OutageStats readFrom(DataInputStream dis) throws IOException {
+        OutageStats stats = new OutageStats();
+        stats.numLost = dis.readLong();
+        stats.numFailedAttempts = dis.readLong();
+        stats.numUnsent = dis.readLong();
+        stats.numMissed = dis.readLong();
+        stats.outageTime.add(LatencyHistogram.readFrom(dis));
+        stats.firstMessageTime.add(LatencyHistogram.readFrom(dis));
+        stats.recoveryTime.add(LatencyHistogram.readFrom(dis));
+        return stats;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mqttloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import mqttloader.Constants.PayloadDistribution;
+
+/**
+ * Generator of the content and the size of payloads.
+ * Payloads of zero bytes or random bytes have sizes that follow a distribution, and payloads of JSON documents or sample files
+ * have the sizes of the documents plus the header, i.e., the send time, the publisher ID, the sequence number and the intended send time
+ * written by publishers into each payload.
+ * The header is written in binary at the beginning of payloads, except that if all documents are JSON objects, it is written in hex digits
+ * as their first member "mqttloader", so that payloads remain valid JSON documents.
+ * Sizes, random bytes and documents are prepared before the measurement, so that publishers only pick one of them and copy it for each message.
+ */
+public class PayloadGenerator {
+    public static final String PLACEHOLDER_INT = "{int}";
+    public static final String PLACEHOLDER_FLOAT = "{float}";
+    public static final String PLACEHOLDER_STRING = "{string}";
+    public static final String PLACEHOLDER_BOOL = "{bool}";
+
+    private final int[] sizes;    // Used for zero and random bytes.
+    private final byte[] pool;    // Random bytes. Null for zero bytes and documents.
+    private final byte[][] documents;    // Null for zero and random bytes.
+    private final int headerSize;
+    private final boolean textHeader;
+    private final int minSize;
+    private final int maxSize;
+    private final int[] distinctSizes;    // Sorted.
+    // Arrays of exact payload sizes shared by publishers for reuse, indexed like distinctSizes. Null if all payloads have the same size.
+    private final AtomicReferenceArray<byte[]> exactArrays;
+
+    /**
+     * @param sizes Sizes of payloads, from which one is picked for each message.
+     * @param random If true, payloads are filled with random bytes. Otherwise, they are left as zeros.
+     */
+    public PayloadGenerator(int[] sizes, boolean random) {
+        this.sizes = sizes;
+        this.documents = null;
+        this.headerSize = 0;
+        this.textHeader = false;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for(int size: sizes) {
+            min = Math.min(min, size);
+            max = Math.max(max, size);
+        }
+        this.minSize = min;
+        this.maxSize = max;
+        this.distinctSizes = distinct(sizes);
+        this.exactArrays = createExactArrays(distinctSizes);
+        if(random) {
+            pool = new byte[Constants.PAYLOAD_RANDOM_POOL_SIZE + maxSize];
+            ThreadLocalRandom.current().nextBytes(pool);
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * @param documents Documents, from which one is picked for each message. If all of them are JSON objects, i.e., start with "{",
+     *                  the header in hex digits is inserted as their first member. Otherwise, they are placed after the header in binary.
+     * @param headerSize Size of the header in binary, i.e., 24 bytes in open-loop mode and 16 bytes otherwise.
+     */
+    public PayloadGenerator(byte[][] documents, int headerSize) {
+        this.sizes = null;
+        this.pool = null;
+        boolean json = true;
+        for(byte[] document: documents) {
+            json &= isJsonObject(document);
+        }
+        this.textHeader = json;
+        if(json) {
+            this.documents = new byte[documents.length][];
+            for(int i=0;i<documents.length;i++) {
+                this.documents[i] = insertHeader(documents[i], headerSize);
+            }
+            this.headerSize = 0;
+        } else {
+            this.documents = documents;
+            this.headerSize = headerSize;
+        }
+        int[] sizes = new int[documents.length];
+        for(int i=0;i<documents.length;i++) {
+            sizes[i] = this.headerSize + this.documents[i].length;
+        }
+        this.distinctSizes = distinct(sizes);
+        this.minSize = distinctSizes[0];
+        this.maxSize = distinctSizes[distinctSizes.length-1];
+        this.exactArrays = createExactArrays(distinctSizes);
+    }
+
+    private static boolean isJsonObject(byte[] document) {
+        return document.length >= 2 && document[0] == '{';
+    }
+
+    /**
+     * @return The document with the member "mqttloader", whose value is the hex digits of the header, initially zeros, at the beginning.
+     */
+    private static byte[] insertHeader(byte[] document, int headerSize) {
+        byte[] prefix = Constants.PAYLOAD_JSON_HEADER_PREFIX.getBytes(StandardCharsets.UTF_8);
+        int i = 1;
+        while(i < document.length && Character.isWhitespace(document[i])) {
+            i++;
+        }
+        boolean empty = i < document.length && document[i] == '}';
+        byte[] result = new byte[prefix.length + headerSize*2 + (empty ? 1 : 2) + document.length - 1];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        int index = prefix.length;
+        Arrays.fill(result, index, index + headerSize*2, (byte)'0');
+        index += headerSize*2;
+        result[index++] = '"';
+        if(!empty) {
+            result[index++] = ',';
+        }
+        System.arraycopy(document, 1, result, index, document.length - 1);
+        return result;
+    }
+
+    /**
+     * @return Slots for one array of each of the smallest distinct sizes that fit in PAYLOAD_EXACT_CACHE_SIZE in total,
+     *         or null if there is only one size.
+     */
+    private static AtomicReferenceArray<byte[]> createExactArrays(int[] distinctSizes) {
+        if(distinctSizes.length == 1) {
+            return null;
+        }
+        long sum = 0;
+        int num = 0;
+        while(num < distinctSizes.length && sum + distinctSizes[num] <= Constants.PAYLOAD_EXACT_CACHE_SIZE) {
+            sum += distinctSizes[num++];
+        }
+        return new AtomicReferenceArray<>(num);
+    }
+
+    private static int[] distinct(int[] sizes) {
+        int[] sorted = sizes.clone();
+        Arrays.sort(sorted);
+        int num = 0;
+        for(int i=0;i<sorted.length;i++) {
+            if(i == 0 || sorted[i] != sorted[i-1]) {
+                sorted[num++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, num);
+    }
+
+    /**
+     * Write the content of a payload to be sent now into the buffer. The header is left to be written by the publisher.
+     * For zero bytes, the buffer is not written, and thus it must not be written by others than the header.
+     * @param buffer Buffer whose length is getMaxSize() or larger.
+     * @return Size of the payload.
+     */
+    public int fill(byte[] buffer) {
+        if(documents != null) {
+            byte[] document = documents.length == 1 ? documents[0] : documents[ThreadLocalRandom.current().nextInt(documents.length)];
+            System.arraycopy(document, 0, buffer, headerSize, document.length);
+            return headerSize + document.length;
+        }
+        int size = sizes.length == 1 ? sizes[0] : sizes[ThreadLocalRandom.current().nextInt(sizes.length)];
+        if(pool != null) {
+            System.arraycopy(pool, ThreadLocalRandom.current().nextInt(pool.length - size + 1), buffer, 0, size);
+        }
+        return size;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return true if the header is written in hex digits after PAYLOAD_JSON_HEADER_PREFIX, instead of in binary at the beginning of payloads.
+     */
+    public boolean hasTextHeader() {
+        return textHeader;
+    }
+
+    /**
+     * Take an array released by releaseExact() for a payload, or allocate one if none of that size is available,
+     * e.g., because it is used by another publisher or its size is beyond PAYLOAD_EXACT_CACHE_SIZE.
+     * This can be called by any thread, since the arrays are shared by all publishers.
+     * @param size Size of a payload returned by fill().
+     * @return Array whose length is the given size.
+     */
+    public byte[] takeExact(int size) {
+        byte[] exact = null;
+        if(exactArrays != null) {
+            int index = Arrays.binarySearch(distinctSizes, size);
+            if(index >= 0 && index < exactArrays.length()) {
+                exact = exactArrays.getAndSet(index, null);
+            }
+        }
+        return exact != null ? exact : new byte[size];
+    }
+
+    /**
+     * Release an array returned by takeExact() after the completion of its PUBLISH, so that it is reused for a later payload of the same size.
+     * At most one array of each size is kept, and the others are left to the garbage collector.
+     * @param exact Array returned by takeExact().
+     */
+    public void releaseExact(byte[] exact) {
+        if(exactArrays == null) {
+            return;
+        }
+        int index = Arrays.binarySearch(distinctSizes, exact.length);
+        if(index >= 0 && index < exactArrays.length()) {
+            exactArrays.set(index, exact);
+        }
+    }
+
+    /**
+     * @return true if all payloads have the same size, so that publishers can reuse arrays of that size.
+     */
+    public boolean isFixedSize() {
+        return minSize == maxSize;
+    }
+
+    /**
+     * Sample sizes from a distribution.
+     * @param distribution FIXED, UNIFORM or LOGNORMAL.
+     * @param size Size for FIXED, and the median for LOGNORMAL.
+     * @param minSize The minimum size for UNIFORM and LOGNORMAL.
+     * @param maxSize The maximum size for UNIFORM and LOGNORMAL.
+     * @param sigma Standard deviation of the logarithm of sizes for LOGNORMAL.
+     * @return Sizes.
+     */
+    public static int[] genSizes(PayloadDistribution distribution, int size, int minSize, int maxSize, double sigma) {
+        if(distribution == PayloadDistribution.FIXED) {
+            return new int[]{size};
+        }
+        Random random = ThreadLocalRandom.current();
+        int[] sizes = new int[Constants.PAYLOAD_NUM_SIZES];
+        for(int i=0;i<sizes.length;i++) {
+            if(distribution == PayloadDistribution.UNIFORM) {
+                sizes[i] = minSize + random.nextInt(maxSize - minSize + 1);
+            } else {
+                long sampled = Math.round(size * Math.exp(sigma * random.nextGaussian()));
+                sizes[i] = (int)Math.max(minSize, Math.min(maxSize, sampled));
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Read sizes from a file, e.g., taken from the traffic of a real system. Each line has a size in bytes, and empty lines are skipped.
+     * Since one of the sizes is picked for each message, the frequencies of sizes in the file are reproduced.
+     * @param file File of sizes.
+     * @param minSize Sizes smaller than this are replaced by this.
+     * @param maxSize Sizes larger than this are replaced by this.
+     * @return Sizes.
+     * @throws IOException If reading fails, or the file has no size or a line that is not a number.
+     */
+    public static int[] readSizes(File file, int minSize, int maxSize) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        int[] sizes = new int[lines.size()];
+        int numSizes = 0;
+        for(String line: lines) {
+            line = line.trim();
+            if(line.isEmpty()) {
+                continue;
+            }
+            try {
+                sizes[numSizes++] = Math.max(minSize, Math.min(maxSize, Integer.parseInt(line)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid size \"" + line + "\" in " + file + ".");
+            }
+        }
+        if(numSizes == 0) {
+            throw new IOException("No size in " + file + ".");
+        }
+        return Arrays.copyOf(sizes, numSizes);
+    }
+
+    /**
+     * Render JSON documents from a template, replacing each placeholder by a random value of its own.
+     * "{int}" is replaced by an integer from 0 to 99999, "{float}" by a number from 0.00 to 99.99, "{string}" by 8 alphanumeric characters,
+     * and "{bool}" by true or false. Placeholders in a string, e.g., "\"{string}\"", must be quoted in the template.
+     * @param template Template of documents.
+     * @param numDocuments The number of documents.
+     * @return Documents in UTF-8.
+     */
+    public static byte[][] renderTemplate(String template, int numDocuments) {
+        Random random = ThreadLocalRandom.current();
+        byte[][] documents = new byte[numDocuments][];
+        for(int i=0;i<numDocuments;i++) {
+            StringBuilder sb = new StringBuilder();
+            int index = 0;
+            while(index < template.length()) {
+                if(template.startsWith(PLACEHOLDER_INT, index)) {
+                    sb.append(random.nextInt(100000));
+                    index += PLACEHOLDER_INT.length();
+                } else if(template.startsWith(PLACEHOLDER_FLOAT, index)) {
+                    sb.append(String.format(Locale.ROOT, "%.2f", random.nextInt(10000)/100.0));
+                    index += PLACEHOLDER_FLOAT.length();
+                } else if(template.startsWith(PLACEHOLDER_STRING, index)) {
+                    sb.append(Util.genRandomChars(8));
+                    index += PLACEHOLDER_STRING.length();
+                } else if(template.startsWith(PLACEHOLDER_BOOL, index)) {
+                    sb.append(random.nextBoolean());
+                    index += PLACEHOLDER_BOOL.length();
+                } else {
+                    sb.append(template.charAt(index++));
+                }
+            }
+            documents[i] = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return documents;
+    }
+
+    /**
+     * Read sample payloads, e.g., captured from a real system.
+     * If a directory is given, each file in it is a sample, which can be binary. If a file is given, each non-empty line of it is a sample.
+     * @param path Directory or file of samples.
+     * @return Samples.
+     * @throws IOException If reading fails, or no sample is found.
+     */
+    public static byte[][] readSamples(File path) throws IOException {
+        List<byte[]> samples = new ArrayList<>();
+        if(path.isDirectory()) {
+            File[] files = path.listFiles();
+            if(files != null) {
+                Arrays.sort(files);
+                for(File file: files) {
+                    if(file.isFile()) {
+                        samples.add(Files.readAllBytes(file.toPath()));
+                    }
+                }
+            }
+        } else {
+            for(String line: Files.readAllLines(path.toPath(), StandardCharsets.UTF_8)) {
+                if(!line.isEmpty()) {
+                    samples.add(line.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        if(samples.isEmpty()) {
+            throw new IOException("No sample in " + path + ".");
+        }
+        return samples.toArray(new byte[0][]);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mqttloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The number and the total size of payloads sent by publishers and received by subscribers, to calculate throughputs in bytes,
+ * and the number of messages that publishers skipped at their send times.
+ * recordSent(), recordReceived() and countSkipped() must be called only by the thread of the client, and the others after the client stops.
+ */
+public class PayloadStats {
+    private long numSent = 0;
+    private long bytesSent = 0;
+    private long numReceived = 0;
+    private long bytesReceived = 0;
+    private long numSkipped = 0;
+
+    public void recordSent(int size) {
+        numSent++;
+        bytesSent += size;
+    }
+
+    public void recordReceived(int size) {
+        numReceived++;
+        bytesReceived += size;
+    }
+
+    /**
+     * Count a message that a publisher sending at a fixed interval did not send at its send time, because its in-flight window was full.
+     */
+    public void countSkipped() {
+        numSkipped++;
+    }
+
+    public long getNumSkipped() {
+        return numSkipped;
+    }
+
+    /**
+     * @return Average size of sent payloads in bytes. 0 if no payload was sent.
+     */
+    public double getAverageSentSize() {
+        return numSent > 0 ? (double)bytesSent/numSent : 0;
+    }
+
+    /**
+     * @return Average size of received payloads in bytes. 0 if no payload was received.
+     */
+    public double getAverageReceivedSize() {
+        return numReceived > 0 ? (double)bytesReceived/numReceived : 0;
+    }
+
+    public void add(PayloadStats other) {
+        numSent += other.numSent;
+        bytesSent += other.bytesSent;
+        numReceived += other.numReceived;
+        bytesReceived += other.bytesReceived;
+        numSkipped += other.numSkipped;
+    }
+
+    /**
+     * Write the counts, e.g., to send them from an agent to the controller.
+     * @param dos Stream to be written.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeLong(numSent);
+        dos.writeLong(bytesSent);
+        dos.writeLong(numReceived);
+        dos.writeLong(bytesReceived);
+        dos.writeLong(numSkipped);
+    }
+
+    /**
+     * Read the counts written by writeTo().
+     * @param dis Stream to be read.
+     * @return Counts.
+     * @throws IOException If reading fails.
+     */
+    public static PayloadStats readFrom(DataInputStream dis) throws IOException {
+        PayloadStats stats = new PayloadStats();
+        stats.numSent = dis.readLong();
+        stats.bytesSent = dis.readLong();
+        stats.numReceived = dis.readLong();
+        stats.bytesReceived = dis.readLong();
+        stats.numSkipped = dis.readLong();
+        return stats;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.TreeMap;
+
+/**
+ * Per second aggregates of send/receive records.
+ * Counts and latency histograms are kept in arrays indexed by the elapsed second, so that recording does not allocate objects
+ * except when a new second or a new latency histogram appears. Instances can be merged, which allows parallel aggregation.
+ */
+public class PerSecondStats {
+    private int firstSecond = 0;    // Elapsed second that corresponds to index 0 of the arrays.
+    private int length = 0;    // The number of seconds in use, starting from firstSecond.
+    private int[] sendCounts = new int[0];
+    private int[] recvCounts = new int[0];
+    private LatencyHistogram[] latencies = new LatencyHistogram[0];
+    private LatencyHistogram[] correctedLatencies = new LatencyHistogram[0];
+
+    public void recordSend(int elapsedSecond) {
+        int index = ensure(elapsedSecond);
+        sendCounts[index]++;
+    }
+
+    /**
+     * @param elapsedSecond Elapsed second from the measurement start time.
+     * @param latency Latency in microseconds.
+     * @param correctedLatency Latency from the intended send time in microseconds. Negative if not available.
+     */
+    public void recordReceive(int elapsedSecond, long latency, long correctedLatency) {
+        int index = ensure(elapsedSecond);
+        recvCounts[index]++;
+        record(latencies, index, latency);
+        if(correctedLatency >= 0) {
+            record(correctedLatencies, index, correctedLatency);
+        }
+    }
+
+    private void record(LatencyHistogram[] histograms, int index, long latency) {
+        LatencyHistogram histogram = histograms[index];
+        if(histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms[index] = histogram;
+        }
+        histogram.record(latency);
+    }
+
+    /**
+     * Add all the aggregates of another instance to this instance.
+     * @param other PerSecondStats to be merged.
+     */
+    public void merge(PerSecondStats other) {
+        for(int i=0;i<other.length;i++) {
+            int sendCount = other.sendCounts[i];
+            int recvCount = other.recvCounts[i];
+            if(sendCount == 0 && recvCount == 0) {
+                continue;
+            }
+            int index = ensure(other.firstSecond+i);
+            sendCounts[index] += sendCount;
+            recvCounts[index] += recvCount;
+            merge(latencies, index, other.latencies[i]);
+            merge(correctedLatencies, index, other.correctedLatencies[i]);
+        }
+    }
+
+    private void merge(LatencyHistogram[] histograms, int index, LatencyHistogram histogram) {
+        if(histogram != null) {
+            if(histograms[index] == null) {
+                histograms[index] = new LatencyHistogram();
+            }
+            histograms[index].add(histogram);
+        }
+    }
+
+    /**
+     * Write the aggregates to a stream, e.g., to send them from an agent to the controller.
+     * @param dos Stream to be written.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(firstSecond);
+        dos.writeInt(length);
+        for(int i=0;i<length;i++) {
+            dos.writeInt(sendCounts[i]);
+            dos.writeInt(recvCounts[i]);
+            writeHistogram(dos, latencies[i]);
+            writeHistogram(dos, correctedLatencies[i]);
+        }
+    }
+
+    private static void writeHistogram(DataOutputStream dos, LatencyHistogram histogram) throws IOException {
+        dos.writeBoolean(histogram != null);
+        if(histogram != null) {
+            histogram.writeTo(dos);
+        }
+    }
+
+    /**
+     * Read aggregates written by writeTo().
+     * @param dis Stream to be read.
+     * @return Aggregates.
+     * @throws IOException If reading fails.
+     */
+    public static PerSecondStats readFrom(DataInputStream dis) throws IOException {
+        PerSecondStats stats = new PerSecondStats();
+        int first = dis.readInt();
+        int len = dis.readInt();
+        for(int i=0;i<len;i++) {
+            int sendCount = dis.readInt();
+            int recvCount = dis.readInt();
+            LatencyHistogram latency = dis.readBoolean() ? LatencyHistogram.readFrom(dis) : null;
+            LatencyHistogram correctedLatency = dis.readBoolean() ? LatencyHistogram.readFrom(dis) : null;
+            if(sendCount == 0 && recvCount == 0) {
+                continue;
+            }
+            int index = stats.ensure(first+i);
+            stats.sendCounts[index] = sendCount;
+            stats.recvCounts[index] = recvCount;
+            stats.latencies[index] = latency;
+            stats.correctedLatencies[index] = correctedLatency;
+        }
+        return stats;
+    }
+
+    /**
+     * Get the index for the given elapsed second, growing the arrays if needed.
+     */
+    private int ensure(int elapsedSecond) {
+        if(length == 0) {
+            firstSecond = elapsedSecond;
+        }
+        int index = elapsedSecond - firstSecond;
+        if(index < 0) {
+            int shift = -index;
+            resize(length + shift, shift);
+            firstSecond = elapsedSecond;
+            length += shift;
+            return 0;
+        }
+        if(index >= length) {
+            if(index >= sendCounts.length) {
+                resize(index+1, 0);
+            }
+            length = index+1;
+        }
+        return index;
+    }
+
+    private void resize(int minCapacity, int shift) {
+        int capacity = Math.max(minCapacity, sendCounts.length*2);
+        capacity = Math.max(capacity, 16);
+        int[] newSendCounts = new int[capacity];
+        int[] newRecvCounts = new int[capacity];
+        LatencyHistogram[] newLatencies = new LatencyHistogram[capacity];
+        LatencyHistogram[] newCorrectedLatencies = new LatencyHistogram[capacity];
+        System.arraycopy(sendCounts, 0, newSendCounts, shift, length);
+        System.arraycopy(recvCounts, 0, newRecvCounts, shift, length);
+        System.arraycopy(latencies, 0, newLatencies, shift, length);
+        System.arraycopy(correctedLatencies, 0, newCorrectedLatencies, shift, length);
+        sendCounts = newSendCounts;
+        recvCounts = newRecvCounts;
+        latencies = newLatencies;
+        correctedLatencies = newCorrectedLatencies;
+    }
+
+    /**
+     * @return Map whose keys are the elapsed seconds and values are the number of sent messages. Seconds without any message are not included.
+     */
+    public TreeMap<Integer, Integer> getSendThroughputs() {
+        return toTreeMap(sendCounts);
+    }
+
+    /**
+     * @return Map whose keys are the elapsed seconds and values are the number of received messages. Seconds without any message are not included.
+     */
+    public TreeMap<Integer, Integer> getRecvThroughputs() {
+        return toTreeMap(recvCounts);
+    }
+
+    /**
+     * @return Map whose keys are the elapsed seconds and values are the latency histograms of received messages.
+     */
+    public TreeMap<Integer, LatencyHistogram> getLatencyHistograms() {
+        return toTreeMap(latencies);
+    }
+
+    /**
+     * @return Map whose keys are the elapsed seconds and values are the histograms of latencies from the intended send time. Empty if not in open-loop mode.
+     */
+    public TreeMap<Integer, LatencyHistogram> getCorrectedLatencyHistograms() {
+        return toTreeMap(correctedLatencies);
+    }
+
+    private TreeMap<Integer, LatencyHistogram> toTreeMap(LatencyHistogram[] histograms) {
+        TreeMap<Integer, LatencyHistogram> map = new TreeMap<>();
+        for(int i=0;i<length;i++) {
+            if(histograms[i] != null) {
+                map.put(firstSecond+i, histograms[i]);
+            }
+        }
+        return map;
+    }
+
+    private TreeMap<Integer, Integer> toTreeMap(int[] counts) {
+        TreeMap<Integer, Integer> map = new TreeMap<>();
+        for(int i=0;i<length;i++) {
+            if(counts[i] > 0) {
+                map.put(firstSecond+i, counts[i]);
+            }
+        }
+        return map;
+    }
+
+}
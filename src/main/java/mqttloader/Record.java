@@ -16,59 +16,29 @@
 
 package mqttloader;
 
-import java.time.Instant;
-
+/**
+ * A send/receive record that could not be stored in a RecordBuffer and is spilled to its overflow queue.
+ */
 public class Record {
-    private long sentEpochMicros;
-    private Instant receivedTime;
-    private String clientId;
-    private boolean isSend;
-
-    private boolean isStopSignal = false;
-
-    public Record(long sentEpochMicros, Instant receivedTime, String clientId, boolean isSend) {
-        this.sentEpochMicros = sentEpochMicros;
-        this.receivedTime = receivedTime;
-        this.clientId = clientId;
-        this.isSend = isSend;
-    }
-
-    public Record(long sentEpochMicros, String clientId, boolean isSend) {
-        this(sentEpochMicros, null, clientId, isSend);
-    }
+    private final long timestamp;
+    private final long latency;
+    private final long correctedLatency;
 
-    public Record() {
-        this.isStopSignal = true;
+    public Record(long timestamp, long latency, long correctedLatency) {
+        this.timestamp = timestamp;
+        this.latency = latency;
+        this.correctedLatency = correctedLatency;
     }
 
-    public long getSentEpochMicros() {
-        return sentEpochMicros;
+    public long getTimestamp() {
+        return timestamp;
     }
 
-    public Instant getReceivedTime() {
-        return receivedTime;
-    }
-
-    public String getClientId() {
-        return clientId;
-    }
-
-    public boolean isSend() {
-        return isSend;
-    }
-
-    public boolean isStopSignal() {
-        return isStopSignal;
+    public long getLatency() {
+        return latency;
     }
 
-    public long getLatency() {
-        long latency = Util.getEpochMicros(receivedTime) - sentEpochMicros;
-        if(latency < 0) {
-            // If running MQTTLoader on multiple machines, a slight time error may cause a negative value of latency.
-            Loader.LOGGER.fine("Negative value of latency is converted to zero.");
-            return 0;
-        } else {
-            return latency;
-        }
+    public long getCorrectedLatency() {
+        return correctedLatency;
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import mqttloader.Constants.RecorderOverflow;
+
+/**
+ * Single-producer single-consumer ring buffer of send/receive records of one client.
+ * The producer is the thread that publishes or receives messages for the client, and the consumer is the Recorder thread.
+ * Records are stored in primitive arrays, so that no object is allocated on the producer side unless the buffer overflows with spill policy.
+ */
+public class RecordBuffer {
+    private final int clientNumber;
+    private final String clientId;
+    private final boolean isSend;
+    private final RecorderOverflow overflow;
+    private final int mask;
+    private final long[] timestamps;
+    private final long[] latencies;
+    private final long[] correctedLatencies;
+
+    private final AtomicLong head = new AtomicLong();    // Next slot to be read by the consumer.
+    private final AtomicLong tail = new AtomicLong();    // Next slot to be written by the producer.
+    private long cachedHead = 0;    // Producer-local copy of head.
+
+    private final ConcurrentLinkedQueue<Record> spilled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong numDropped = new AtomicLong();
+    private final AtomicLong numSpilled = new AtomicLong();
+    private final AtomicLong numBlocked = new AtomicLong();
+
+    private volatile boolean closed = false;
+    private volatile boolean finished = false;
+
+    /**
+     * @param clientNumber Client number of the producer.
+     * @param clientId Client ID of the producer.
+     * @param isSend True if the producer is a publisher. False if it is a subscriber.
+     * @param capacity The number of records that can be buffered. It is rounded up to a power of two.
+     * @param overflow Behavior when the buffer is full.
+     */
+    public RecordBuffer(int clientNumber, String clientId, boolean isSend, int capacity, RecorderOverflow overflow) {
+        this.clientNumber = clientNumber;
+        this.clientId = clientId;
+        this.isSend = isSend;
+        this.overflow = overflow;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.latencies = isSend ? null : new long[size];
+        this.correctedLatencies = isSend ? null : new long[size];
+    }
+
+    /**
+     * Record a sending event. Must be called only by the producer thread.
+     * @param sentEpochMicros Send time in Unix time in microseconds.
+     */
+    public void recordSend(long sentEpochMicros) {
+        offer(sentEpochMicros, 0, -1);
+    }
+
+    /**
+     * Record a receiving event. Must be called only by the producer thread.
+     * @param receivedEpochMicros Receive time in Unix time in microseconds.
+     * @param latency Latency in microseconds.
+     * @param correctedLatency Latency from the intended send time in microseconds. -1 if not in open-loop mode.
+     */
+    public void recordReceive(long receivedEpochMicros, long latency, long correctedLatency) {
+        offer(receivedEpochMicros, latency, correctedLatency);
+    }
+
+    private void offer(long timestamp, long latency, long correctedLatency) {
+        if(finished) {
+            numDropped.incrementAndGet();
+            return;
+        }
+        long t = tail.get();
+        if(t - cachedHead > mask) {
+            cachedHead = head.get();
+            if(t - cachedHead > mask) {
+                switch (overflow) {
+                    case DROP:
+                        numDropped.incrementAndGet();
+                        return;
+                    case SPILL:
+                        numSpilled.incrementAndGet();
+                        spilled.add(new Record(timestamp, latency, correctedLatency));
+                        return;
+                    case BLOCK:
+                    default:
+                        numBlocked.incrementAndGet();
+                        while(t - (cachedHead = head.get()) > mask) {
+                            if(closed) {
+                                numDropped.incrementAndGet();
+                                return;
+                            }
+                            LockSupport.parkNanos(Constants.RECORDER_PARK_NANOS);
+                        }
+                }
+            }
+        }
+
+        int index = (int)t & mask;
+        timestamps[index] = timestamp;
+        if(latencies != null) {
+            latencies[index] = latency;
+            correctedLatencies[index] = correctedLatency;
+        }
+        tail.lazySet(t+1);
+    }
+
+    /**
+     * Pass all the buffered records to the recorder. Must be called only by the consumer thread.
+     * @param recorder Recorder that consumes the records.
+     * @return The number of consumed records.
+     */
+    public int drain(Recorder recorder) {
+        long h = head.get();
+        long t = tail.get();
+        for(long i=h;i<t;i++) {
+            int index = (int)i & mask;
+            if(latencies != null) {
+                recorder.consume(this, timestamps[index], latencies[index], correctedLatencies[index]);
+            } else {
+                recorder.consume(this, timestamps[index], 0, -1);
+            }
+        }
+        head.lazySet(t);
+
+        int count = (int)(t - h);
+        Record record;
+        while((record = spilled.poll()) != null) {
+            recorder.consume(this, record.getTimestamp(), record.getLatency(), record.getCorrectedLatency());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Stop blocking the producer. Records that cannot be buffered after this are dropped.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Mark that the consumer has drained the buffer for the last time. Records offered after this,
+     * and records that were offered concurrently with the last drain and remain in the buffer, are counted as dropped.
+     */
+    public void finish() {
+        finished = true;
+    }
+
+    public int size() {
+        return (int)(tail.get() - head.get()) + spilled.size();
+    }
+
+    public int getClientNumber() {
+        return clientNumber;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public boolean isSend() {
+        return isSend;
+    }
+
+    public long getNumDropped() {
+        return numDropped.get() + (finished ? size() : 0);
+    }
+
+    public long getNumSpilled() {
+        return numSpilled.get();
+    }
+
+    public long getNumBlocked() {
+        return numBlocked.get();
+    }
+}
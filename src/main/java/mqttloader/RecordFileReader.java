@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Aggregates a send/receive record file into per second results.
+ * The file is split into chunks aligned to line (CSV) or record (binary) boundaries, and the chunks are parsed in parallel
+ * by mapping them to memory. Each chunk is aggregated into its own PerSecondStats, which are merged at the end.
+ */
+public class RecordFileReader {
+    private final File file;
+    private final int numThreads;
+
+    public RecordFileReader(File file, int numThreads) {
+        this.file = file;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Aggregate a CSV record file.
+     * @return Aggregated results.
+     */
+    public PerSecondStats readCsv() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer first = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Constants.RECORD_FILE_MAX_LINE));
+            long startEpochMicros = parseLong(first);    // The first line only has the measurement start time.
+            long start = 0;
+            while(first.hasRemaining()) {
+                if(first.get() == '\n') {
+                    start = first.position();
+                    break;
+                }
+            }
+            if(start == 0) {
+                return new PerSecondStats();
+            }
+
+            List<long[]> chunks = split(start, size, 1);
+            return aggregate(chunks, chunk -> parseCsvChunk(channel, size, chunk[0], chunk[1], startEpochMicros));
+        }
+    }
+
+    /**
+     * Aggregate a binary record file.
+     * @return Aggregated results.
+     */
+    public PerSecondStats readBinary() throws IOException {
+        BinaryRecordFile recordFile = new BinaryRecordFile(file);
+        try {
+            long startEpochMicros = recordFile.getStartEpochMicros();
+            List<long[]> chunks = split(0, recordFile.getNumRecords(), BinaryRecordFile.RECORD_SIZE);
+            return aggregate(chunks, chunk -> {
+                PerSecondStats stats = new PerSecondStats();
+                recordFile.read(chunk[0], chunk[1]-chunk[0], (timestamp, clientNumber, isSend, latency, correctedLatency) -> {
+                    int elapsedSecond = (int)((timestamp - startEpochMicros)/Constants.SECOND_IN_MICRO);
+                    if(isSend) {
+                        stats.recordSend(elapsedSecond);
+                    } else {
+                        stats.recordReceive(elapsedSecond, latency, correctedLatency);
+                    }
+                });
+                return stats;
+            });
+        } finally {
+            recordFile.close();
+        }
+    }
+
+    /**
+     * Split the range [start, end) into chunks of about RECORD_FILE_CHUNK_SIZE bytes.
+     * @param unitSize Size of a unit in bytes. start and end are given in units.
+     */
+    private List<long[]> split(long start, long end, int unitSize) {
+        long chunkUnits = Math.max(1, Constants.RECORD_FILE_CHUNK_SIZE/unitSize);
+        List<long[]> chunks = new ArrayList<>();
+        for(long s=start;s<end;s+=chunkUnits) {
+            chunks.add(new long[]{s, Math.min(s+chunkUnits, end)});
+        }
+        return chunks;
+    }
+
+    private interface ChunkTask {
+        PerSecondStats run(long[] chunk) throws IOException;
+    }
+
+    private PerSecondStats aggregate(List<long[]> chunks, ChunkTask task) throws IOException {
+        ExecutorService service = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, chunks.size())));
+        try {
+            List<Future<PerSecondStats>> futures = new ArrayList<>();
+            for(long[] chunk: chunks) {
+                futures.add(service.submit(() -> task.run(chunk)));
+            }
+
+            PerSecondStats result = new PerSecondStats();
+            for(Future<PerSecondStats> future: futures) {
+                result.merge(future.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    /**
+     * Parse the lines that start in [start, end).
+     * A line that starts before the chunk is skipped because the previous chunk parses it.
+     */
+    private PerSecondStats parseCsvChunk(FileChannel channel, long size, long start, long end, long startEpochMicros) throws IOException {
+        PerSecondStats stats = new PerSecondStats();
+        long mapStart = start - 1;    // Include the previous byte to check whether the chunk starts at the beginning of a line.
+        long mapEnd = Math.min(size, end + Constants.RECORD_FILE_MAX_LINE);
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        int limit = (int)(end - mapStart);
+
+        if(buf.get() != '\n') {
+            skipLine(buf);
+        }
+        while(buf.position() < limit && buf.hasRemaining()) {
+            if(buf.get(buf.position()) == '\n' || buf.get(buf.position()) == '\r') {
+                buf.get();
+                continue;
+            }
+            long timestamp = parseLong(buf);
+            skipField(buf);    // client ID
+            boolean isSend = buf.get() == 'S';
+            buf.get();    // ','
+            int elapsedSecond = (int)((timestamp - startEpochMicros)/Constants.SECOND_IN_MICRO);
+            if(isSend) {
+                stats.recordSend(elapsedSecond);
+                skipLine(buf);
+            } else {
+                long latency = parseLong(buf);
+                long correctedLatency = -1;
+                if(buf.hasRemaining() && buf.get(buf.position()-1) == ',') {
+                    correctedLatency = parseLong(buf);    // Only in open-loop mode.
+                }
+                stats.recordReceive(elapsedSecond, latency, correctedLatency);
+                skipLine(buf);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Parse a non-negative decimal number and consume the following delimiter.
+     */
+    private static long parseLong(MappedByteBuffer buf) {
+        long value = 0;
+        while(buf.hasRemaining()) {
+            byte b = buf.get(buf.position());
+            if(b < '0' || b > '9') {
+                if(b == ',') {
+                    buf.get();
+                }
+                break;
+            }
+            value = value*10 + (b - '0');
+            buf.get();
+        }
+        return value;
+    }
+
+    private static void skipField(MappedByteBuffer buf) {
+        while(buf.hasRemaining() && buf.get() != ',') {}
+    }
+
+    private static void skipLine(MappedByteBuffer buf) {
+        while(buf.hasRemaining() && buf.get() != '\n') {}
+    }
+}
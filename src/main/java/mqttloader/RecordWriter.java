@@ -0,0 +1,39 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+/**
+ * Writer of send/receive records to the output file. Called only by the Recorder thread.
+ */
+public interface RecordWriter {
+    /**
+     * Write the measurement start time.
+     * @param startEpochMicros Measurement start time in Unix time in microseconds.
+     */
+    void writeStartTime(long startEpochMicros);
+
+    /**
+     * Write a send/receive record.
+     * @param buffer The buffer that the record is taken from. It identifies the client and the event type.
+     * @param timestamp Send time for publishers or receive time for subscribers, in Unix time in microseconds.
+     * @param latency Latency in microseconds. Not used for publishers.
+     * @param correctedLatency Latency from the intended send time in microseconds. -1 if not available.
+     */
+    void write(RecordBuffer buffer, long timestamp, long latency, long correctedLatency);
+
+    void close();
+}
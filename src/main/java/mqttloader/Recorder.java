@@ -16,195 +16,261 @@
 
 package mqttloader;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.time.Duration;
-import java.time.temporal.ChronoUnit;
+import java.util.List;
 import java.util.TreeMap;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import mqttloader.Constants.OutputFormat;
+import mqttloader.Constants.RecorderOverflow;
 
 public class Recorder implements Runnable {
     private final boolean inMemory;
-    private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(1000000);
+    private final int bufferCapacity;
+    private final RecorderOverflow overflow;
+    private final List<RecordBuffer> buffers = new CopyOnWriteArrayList<>();
+    private volatile boolean started = false;
+    private volatile boolean stopped = false;
+    private volatile long startEpochMicros;
 
     private Thread thread;
 
     private File file;
-    private FileOutputStream fos = null;
-    private OutputStreamWriter osw = null;
-    private BufferedWriter bw = null;
+    private RecordWriter writer = null;
 
-    private TreeMap<Integer, Integer> sendThroughputs = new TreeMap<>();
-    private TreeMap<Integer, Integer> recvThroughputs = new TreeMap<>();
-    private TreeMap<Integer, Long> latencySums = new TreeMap<>();
-    private TreeMap<Integer, Long> latencyMaxs = new TreeMap<>();
+    private final PerSecondStats stats = new PerSecondStats();
+    private LiveMetrics liveMetrics = null;
+    private MetricsServer metricsServer = null;
+    private long nextLiveReportNanos = 0;
 
-    public Recorder(File file, boolean inMemory) {
+    public Recorder(File file, boolean inMemory, OutputFormat format, int bufferCapacity, RecorderOverflow overflow) {
         this.inMemory = inMemory;
         this.file = file;
+        this.bufferCapacity = bufferCapacity;
+        this.overflow = overflow;
         if(!inMemory) {
-            try {
-                fos = new FileOutputStream(file, true);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+            if(format == OutputFormat.BINARY) {
+                writer = new BinaryRecordWriter(file);
+            } else {
+                writer = new CsvRecordWriter(file);
             }
-            osw = new OutputStreamWriter(fos);
-            bw = new BufferedWriter(osw);
         }
     }
 
+    /**
+     * Create a buffer for a client to store its send/receive records.
+     * @param clientNumber Client number of the client.
+     * @param clientId Client ID of the client.
+     * @param isSend True if the client is a publisher. False if it is a subscriber.
+     * @return RecordBuffer instance that must be used only by a single thread at a time.
+     */
+    public RecordBuffer createBuffer(int clientNumber, String clientId, boolean isSend) {
+        RecordBuffer buffer = new RecordBuffer(clientNumber, clientId, isSend, bufferCapacity, overflow);
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Enable reporting per second aggregates while the measurement is running. Must be called before start().
+     * @param liveMetrics LiveMetrics instance to which records are passed.
+     */
+    public void setLiveMetrics(LiveMetrics liveMetrics) {
+        this.liveMetrics = liveMetrics;
+    }
+
+    /**
+     * Enable feeding counters of the metrics endpoint. Must be called before start().
+     * @param metricsServer MetricsServer instance to which records are passed.
+     */
+    public void setMetricsServer(MetricsServer metricsServer) {
+        this.metricsServer = metricsServer;
+    }
+
+    /**
+     * Notify the measurement start time. The Recorder thread writes it to the output file before any record.
+     */
     public void writeStartTime(){
-        if(!inMemory) {
-            try {
-                bw.write(Util.getEpochMicros(Loader.measurementStartTime) + ",,,");
-                bw.newLine();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        startEpochMicros = Util.getEpochMicros(Loader.measurementStartTime);
+        started = true;
     }
 
     @Override
     public void run() {
-        thread = Thread.currentThread();
-
-        Record record = null;
-        while (true) {
-            try {
-                record = queue.take();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        while (!started && !stopped) {
+            LockSupport.parkNanos(Constants.RECORDER_PARK_NANOS);
+        }
+        if(!inMemory) {
+            writer.writeStartTime(startEpochMicros);
+        }
+
+        while (!stopped) {
+            if(drainAll() == 0) {
+                LockSupport.parkNanos(Constants.RECORDER_PARK_NANOS);
             }
-            if(record != null) {
-                if(record.isStopSignal()) {
-                    break;
-                }
-
-                if(inMemory) {
-                    recordInMemory(record);
-                } else {
-                    StringBuilder sb = new StringBuilder();
-                    if(record.isSend()){
-                        sb.append(record.getSentEpochMicros());
-                    } else {
-                        sb.append(Util.getEpochMicros(record.getReceivedTime()));
-                    }
-                    sb.append(",");
-                    sb.append(record.getClientId());
-                    if(record.isSend()) {
-                        sb.append(",S,");
-                    } else {
-                        sb.append(",R,");
-                        sb.append(record.getLatency());
-                    }
-
-                    try {
-                        bw.write(new String(sb));
-                        bw.newLine();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+            if(liveMetrics != null) {
+                reportLiveMetrics();
             }
         }
+        drainAll();
+        for(RecordBuffer buffer: buffers) {
+            buffer.finish();
+        }
 
         if(!inMemory) {
-            try{
-                bw.flush();
-                bw.close();
-                osw.close();
-                fos.close();
-            } catch(IOException e){
-                e.printStackTrace();
-            } finally {
-                try {
-                    if(bw != null) bw.close();
-                    if(osw != null) osw.close();
-                    if(fos != null) fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.exit(1);
-                }
-            }
+            writer.close();
+        }
+        if(liveMetrics != null) {
+            liveMetrics.close();
         }
     }
 
-    public void recordInMemory(Record record) {
-        if(record.isSend()) {
-            recordSendInMemory((int)((record.getSentEpochMicros()-Util.getEpochMicros(Loader.measurementStartTime))/Constants.SECOND_IN_MICRO));
-        } else {
-            recordReceiveInMemory((int)(Duration.between(Loader.measurementStartTime, record.getReceivedTime()).get(ChronoUnit.SECONDS)), record.getLatency());
+    private void reportLiveMetrics() {
+        long now = System.nanoTime();
+        if(now < nextLiveReportNanos) {
+            return;
         }
+        nextLiveReportNanos = now + Constants.LIVE_METRICS_CHECK_INTERVAL;
+
+        long elapsedMicros = Clock.currentEpochMicros() - startEpochMicros;
+        liveMetrics.report(elapsedMicros, getQueueDepth(), getNumDropped());
     }
 
-    public void recordSendInMemory(int elapsedSecond) {
-        if(sendThroughputs.containsKey(elapsedSecond)) {
-            sendThroughputs.put(elapsedSecond, sendThroughputs.get(elapsedSecond)+1);
-        } else {
-            sendThroughputs.put(elapsedSecond, 1);
+    private int drainAll() {
+        int count = 0;
+        for(RecordBuffer buffer: buffers) {
+            count += buffer.drain(this);
         }
+        return count;
     }
 
-    public void recordReceiveInMemory(int elapsedSecond, long latency) {
-        if(recvThroughputs.containsKey(elapsedSecond)) {
-            recvThroughputs.put(elapsedSecond, recvThroughputs.get(elapsedSecond)+1);
-        } else {
-            recvThroughputs.put(elapsedSecond, 1);
+    /**
+     * Process a record taken from a RecordBuffer. Called only by the Recorder thread.
+     * @param buffer The buffer that the record is taken from.
+     * @param timestamp Send time for publishers or receive time for subscribers, in Unix time in microseconds.
+     * @param latency Latency in microseconds. Not used for publishers.
+     * @param correctedLatency Latency from the intended send time in microseconds. -1 if not available.
+     */
+    void consume(RecordBuffer buffer, long timestamp, long latency, long correctedLatency) {
+        int elapsedSecond = (int)((timestamp-startEpochMicros)/Constants.SECOND_IN_MICRO);
+        if(liveMetrics != null) {
+            if(buffer.isSend()) {
+                liveMetrics.recordSend(elapsedSecond);
+            } else {
+                liveMetrics.recordReceive(elapsedSecond, latency);
+            }
         }
-
-        if(latencySums.containsKey(elapsedSecond)) {
-            latencySums.put(elapsedSecond, latencySums.get(elapsedSecond)+latency);
-        } else {
-            latencySums.put(elapsedSecond, latency);
+        if(metricsServer != null) {
+            if(buffer.isSend()) {
+                metricsServer.recordSend();
+            } else {
+                metricsServer.recordReceive(latency);
+            }
         }
-
-        if(latencyMaxs.containsKey(elapsedSecond)) {
-            if(latencyMaxs.get(elapsedSecond) < latency) {
-                latencyMaxs.put(elapsedSecond, latency);
+        if(inMemory) {
+            if(buffer.isSend()) {
+                recordSendInMemory(elapsedSecond);
+            } else {
+                recordReceiveInMemory(elapsedSecond, latency, correctedLatency);
             }
         } else {
-            latencyMaxs.put(elapsedSecond, latency);
+            writer.write(buffer, timestamp, latency, correctedLatency);
         }
     }
 
-    public void record(Record record) {
-        queue.offer(record);
+    public void recordSendInMemory(int elapsedSecond) {
+        stats.recordSend(elapsedSecond);
+    }
+
+    public void recordReceiveInMemory(int elapsedSecond, long latency, long correctedLatency) {
+        stats.recordReceive(elapsedSecond, latency, correctedLatency);
+    }
+
+    /**
+     * Add aggregates calculated outside of the Recorder, e.g., from the output file.
+     * @param other Aggregates to be added.
+     */
+    public void recordInMemory(PerSecondStats other) {
+        stats.merge(other);
     }
 
     public void start() {
-        new Thread(this).start();
+        thread = new Thread(this);
+        thread.start();
     }
 
     public void terminate() {
-        queue.offer(Constants.STOP_SIGNAL);
+        for(RecordBuffer buffer: buffers) {
+            buffer.close();
+        }
+        stopped = true;
         try {
             thread.join();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+
+        long numDropped = getNumDropped();
+        if(numDropped > 0) {
+            Loader.LOGGER.warning(numDropped + " records were dropped because recorder buffers were full.");
+        }
+    }
+
+    /**
+     * @return The number of records waiting in the buffers.
+     */
+    public int getQueueDepth() {
+        int sum = 0;
+        for(RecordBuffer buffer: buffers) {
+            sum += buffer.size();
+        }
+        return sum;
+    }
+
+    public long getNumDropped() {
+        long sum = 0;
+        for(RecordBuffer buffer: buffers) {
+            sum += buffer.getNumDropped();
+        }
+        return sum;
+    }
+
+    public long getNumSpilled() {
+        long sum = 0;
+        for(RecordBuffer buffer: buffers) {
+            sum += buffer.getNumSpilled();
+        }
+        return sum;
+    }
+
+    public long getNumBlocked() {
+        long sum = 0;
+        for(RecordBuffer buffer: buffers) {
+            sum += buffer.getNumBlocked();
+        }
+        return sum;
     }
 
     public File getFile() {
         return file;
     }
 
+    public PerSecondStats getStats() {
+        return stats;
+    }
+
     public TreeMap<Integer, Integer> getSendThroughputs() {
-        return sendThroughputs;
+        return stats.getSendThroughputs();
     }
 
     public TreeMap<Integer, Integer> getRecvThroughputs() {
-        return recvThroughputs;
+        return stats.getRecvThroughputs();
     }
 
-    public TreeMap<Integer, Long> getLatencySums() {
-        return latencySums;
+    public TreeMap<Integer, LatencyHistogram> getLatencyHistograms() {
+        return stats.getLatencyHistograms();
     }
 
-    public TreeMap<Integer, Long> getLatencyMaxs() {
-        return latencyMaxs;
+    public TreeMap<Integer, LatencyHistogram> getCorrectedLatencyHistograms() {
+        return stats.getCorrectedLatencyHistograms();
     }
 }
@@ -17,10 +17,9 @@
 package mqttloader;
 
 import static mqttloader.Loader.cdl;
-import java.time.Duration;
-import java.time.temporal.ChronoUnit;
 import java.util.Timer;
 import java.util.TimerTask;
+import mqttloader.client.AbstractClient;
 
 public class RecvTimeoutTask extends TimerTask {
     private Timer timer;
@@ -38,8 +37,11 @@ public class RecvTimeoutTask extends TimerTask {
 
     @Override
     public void run() {
-        long remainingTime = subTimeout - Duration.between(Loader.lastRecvTime, Util.getCurrentTimeWithOffset()).get(ChronoUnit.SECONDS);  // <timeout> - <elapsed time>
-        if (remainingTime <= 0) {
+        long remainingTime = subTimeout - (Clock.currentEpochMicros() - Loader.lastRecvEpochMicros)/Constants.SECOND_IN_MICRO;  // <timeout> - <elapsed time>
+        if (Loader.subscribersOffline || AbstractClient.isAnyInOutage()) {
+            // Subscribers do not receive messages while offline or reconnecting.
+            timer.schedule(new RecvTimeoutTask(timer, subTimeout), subTimeout*Constants.SECOND_IN_MILLI);
+        } else if (remainingTime <= 0) {
             Loader.LOGGER.info("Subscribers timed out.");
             cdl.countDown();
         } else {
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+/**
+ * Tracker of sequence numbers of messages received by a subscriber.
+ * For each publisher, the highest received sequence number and a bitmap of the preceding 63 sequence numbers are kept,
+ * so that duplicated and out-of-order messages are detected with a constant memory and without allocation per message.
+ * A message older than the bitmap is counted as out-of-order, even if it is actually a duplicate.
+ * When the subscriber reconnects, a new epoch starts, and the sequence numbers skipped by the first message from each publisher
+ * in the epoch are counted as missed during the outage.
+ * record() must be called only by the thread of the subscriber, and getStats() after the subscriber stops.
+ */
+public class SequenceTracker {
+    private static final int WINDOW_SIZE = 64;
+
+    // Indexed by agent index and client number of publishers, which compose the publisher ID.
+    private Window[][] windows = new Window[1][];
+    private final DeliveryStats stats = new DeliveryStats();
+    private volatile int epoch = 0;
+    private long numMissedInOutages = 0;
+
+    /**
+     * @param publisherId Publisher ID in the payload.
+     * @param sequence Sequence number in the payload, starting from 0 for each publisher.
+     * @param qos QoS of the received message.
+     */
+    public void record(int publisherId, int sequence, int qos) {
+        Window window = getWindow(publisherId);
+        window.qos = qos;
+        long seq = sequence & 0xffffffffL;
+
+        if(seq > window.highest) {
+            if(window.epoch != epoch) {
+                if(window.highest >= 0) {
+                    numMissedInOutages += seq - window.highest - 1;
+                }
+                window.epoch = epoch;
+            }
+            long shift = seq - window.highest;
+            window.bits = shift >= WINDOW_SIZE ? 1L : (window.bits << shift) | 1L;
+            window.highest = seq;
+            window.numReceived++;
+            stats.addReceived(qos, 1);
+            return;
+        }
+
+        long distance = window.highest - seq;
+        if(distance >= WINDOW_SIZE) {
+            window.numReceived++;
+            stats.addReceived(qos, 1);
+            stats.addOutOfOrder(qos, 1);
+        } else if((window.bits & (1L << distance)) != 0) {
+            stats.addDuplicated(qos, 1);
+        } else {
+            window.bits |= 1L << distance;
+            window.numReceived++;
+            stats.addReceived(qos, 1);
+            stats.addOutOfOrder(qos, 1);
+        }
+    }
+
+    private Window getWindow(int publisherId) {
+        int agentIndex = publisherId >>> Constants.PUBLISHER_ID_AGENT_SHIFT;
+        int clientNumber = publisherId & ((1 << Constants.PUBLISHER_ID_AGENT_SHIFT) - 1);
+
+        if(agentIndex >= windows.length) {
+            Window[][] newWindows = new Window[agentIndex+1][];
+            System.arraycopy(windows, 0, newWindows, 0, windows.length);
+            windows = newWindows;
+        }
+        Window[] clients = windows[agentIndex];
+        if(clients == null || clientNumber >= clients.length) {
+            Window[] newClients = new Window[Math.max(clientNumber+1, clients == null ? 16 : clients.length*2)];
+            if(clients != null) {
+                System.arraycopy(clients, 0, newClients, 0, clients.length);
+            }
+            clients = newClients;
+            windows[agentIndex] = clients;
+        }
+        if(clients[clientNumber] == null) {
+            clients[clientNumber] = new Window();
+        }
+        return clients[clientNumber];
+    }
+
+    /**
+     * Start a new epoch when the subscriber reconnects. This can be called by a thread other than the subscriber.
+     */
+    public void startEpoch() {
+        epoch++;
+    }
+
+    /**
+     * @return The number of messages from each publisher that were skipped between the epochs.
+     */
+    public long getNumMissedInOutages() {
+        return numMissedInOutages;
+    }
+
+    /**
+     * @return Counts of this subscriber, including the gaps of sequence numbers.
+     */
+    public DeliveryStats getStats() {
+        DeliveryStats result = new DeliveryStats();
+        result.add(stats);
+        for(Window[] clients: windows) {
+            if(clients == null) {
+                continue;
+            }
+            for(Window window: clients) {
+                if(window != null) {
+                    result.addGaps(window.qos, Math.max(window.highest + 1 - window.numReceived, 0));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static class Window {
+        private long highest = -1;
+        private long bits = 0;    // The n-th bit is set if the sequence number (highest - n) was received.
+        private long numReceived = 0;
+        private int qos = 0;
+        private int epoch = 0;
+    }
+}
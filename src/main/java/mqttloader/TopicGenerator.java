@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+import java.util.concurrent.ThreadLocalRandom;
+import mqttloader.Constants.TopicSelection;
+
+/**
+ * Generator of topics from a template such as "site/{n}/device/{id}/telemetry".
+ * "{id}" is replaced by the client number, and "{n}" by the topic number from 0 to (numTopics - 1).
+ * Topic names are generated before the measurement, so that publishers only pick one of them for each message.
+ */
+public class TopicGenerator {
+    public static final String PLACEHOLDER_ID = "{id}";
+    public static final String PLACEHOLDER_NUMBER = "{n}";
+
+    private final String template;
+    private final int numTopics;
+    private final double[] zipfCdf;
+    private String[] sharedTopics = null;    // Used if the template does not have "{id}".
+
+    /**
+     * @param template Topic template.
+     * @param numTopics The number of values of "{n}".
+     * @param selection How publishers pick a topic for each message.
+     * @param zipfExponent Exponent of the Zipf distribution. The probability of the k-th topic is proportional to 1/(k+1)^zipfExponent.
+     */
+    public TopicGenerator(String template, int numTopics, TopicSelection selection, double zipfExponent) {
+        this.template = template;
+        this.numTopics = template.contains(PLACEHOLDER_NUMBER) ? numTopics : 1;
+
+        if(selection == TopicSelection.ZIPF && this.numTopics > 1) {
+            zipfCdf = new double[this.numTopics];
+            double sum = 0;
+            for(int i=0;i<this.numTopics;i++) {
+                sum += 1.0 / Math.pow(i+1, zipfExponent);
+                zipfCdf[i] = sum;
+            }
+            for(int i=0;i<this.numTopics;i++) {
+                zipfCdf[i] /= sum;
+            }
+        } else {
+            zipfCdf = null;
+        }
+    }
+
+    /**
+     * @param clientNumber Client number of the publisher.
+     * @return Topics to which the publisher sends messages. Publishers may share the same array.
+     */
+    public String[] getTopics(int clientNumber) {
+        if(!template.contains(PLACEHOLDER_ID)) {
+            if(sharedTopics == null) {
+                sharedTopics = genTopics(template);
+            }
+            return sharedTopics;
+        }
+        return genTopics(template.replace(PLACEHOLDER_ID, String.valueOf(clientNumber)));
+    }
+
+    private String[] genTopics(String base) {
+        String[] topics = new String[numTopics];
+        for(int i=0;i<numTopics;i++) {
+            topics[i] = base.replace(PLACEHOLDER_NUMBER, String.valueOf(i));
+        }
+        return topics;
+    }
+
+    /**
+     * @param clientNumber Client number of the publisher.
+     * @return Index of the first topic of the publisher. In round robin, publishers start from different topics.
+     */
+    public int getFirstIndex(int clientNumber) {
+        if(zipfCdf != null) {
+            return getNextIndex(0);
+        }
+        return clientNumber % numTopics;
+    }
+
+    /**
+     * @param index Index of the current topic.
+     * @return Index of the topic of the next message.
+     */
+    public int getNextIndex(int index) {
+        if(zipfCdf == null) {
+            return index+1 < numTopics ? index+1 : 0;
+        }
+        int found = Arrays.binarySearch(zipfCdf, ThreadLocalRandom.current().nextDouble());
+        return Math.min(found >= 0 ? found : -found-1, numTopics-1);
+    }
+
+    /**
+     * @param filterTemplate Topic filter given by the parameter. If null, a filter that matches all topics of the template is used,
+     *                       i.e., the levels having a placeholder are replaced by "+".
+     * @param clientNumber Client number of the subscriber, which replaces "{id}" in filterTemplate.
+     * @return Topic filter of the subscriber.
+     */
+    public String getFilter(String filterTemplate, int clientNumber) {
+        if(filterTemplate != null) {
+            return filterTemplate.replace(PLACEHOLDER_ID, String.valueOf(clientNumber));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        StringTokenizer st = new StringTokenizer(template, "/", true);
+        while(st.hasMoreTokens()) {
+            String level = st.nextToken();
+            if(level.contains(PLACEHOLDER_ID) || level.contains(PLACEHOLDER_NUMBER)) {
+                sb.append("+");
+            } else {
+                sb.append(level);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check whether a topic matches a topic filter, following the rules of MQTT wildcards.
+     * @param filter Topic filter that may have "+" and "#".
+     * @param topic Topic name.
+     * @return true if matched.
+     */
+    public static boolean matches(String filter, String topic) {
+        if(topic.startsWith("$") && (filter.startsWith("+") || filter.startsWith("#"))) {
+            return false;
+        }
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+        for(int i=0;i<filterLevels.length;i++) {
+            if(filterLevels[i].equals("#")) {
+                return true;
+            }
+            if(i >= topicLevels.length) {
+                return false;
+            }
+            if(!filterLevels[i].equals("+") && !filterLevels[i].equals(topicLevels[i])) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+}
@@ -16,19 +16,25 @@
 
 package mqttloader;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.StringTokenizer;
 import java.util.TreeMap;
+import java.util.concurrent.ThreadFactory;
 import mqttloader.Constants.Prop;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
@@ -37,6 +43,7 @@ import org.apache.commons.net.ntp.TimeInfo;
 
 public class Util {
     private static final String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
     private static Random random = new Random();
 
     public static String getPropValue(Prop prop) {
@@ -47,6 +54,19 @@ public class Util {
         return Integer.valueOf(Loader.PROPS.getProperty(prop.getName()));
     }
 
+    public static double getPropValueDouble(Prop prop) {
+        return Double.valueOf(Loader.PROPS.getProperty(prop.getName()));
+    }
+
+    public static double[] getPropValueDoubles(Prop prop) {
+        StringTokenizer st = new StringTokenizer(Loader.PROPS.getProperty(prop.getName()), ",");
+        double[] values = new double[st.countTokens()];
+        for(int i=0;i<values.length;i++) {
+            values[i] = Double.valueOf(st.nextToken().trim());
+        }
+        return values;
+    }
+
     public static boolean getPropValueBool(Prop prop) {
         if (Loader.PROPS.getProperty(prop.getName()).equals("true")) {
             return true;
@@ -133,6 +153,33 @@ public class Util {
         return offset;
     }
 
+    /**
+     * Get a factory of virtual threads via reflection, so that this class can be compiled for Java 8.
+     * @param namePrefix Prefix of thread names.
+     * @return ThreadFactory that creates virtual threads. NULL if the running JVM does not support virtual threads (i.e., before Java 21).
+     */
+    public static ThreadFactory getVirtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return CPU time used by all threads of this JVM in nanoseconds. -1 if not supported by the running JVM.
+     */
+    public static long getProcessCpuTime() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if(bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
     public static String genRandomChars(int length) {
         StringBuilder sb = new StringBuilder();
         for(int i=0;i<length;i++) {
@@ -141,12 +188,148 @@ public class Util {
         return new String(sb);
     }
 
-    public static byte[] genPayloads(int size, long currentTime) {
-        return ByteBuffer.allocate(size).putLong(currentTime).array();
+    /**
+     * Write a long value into a byte array as 16 lowercase hex digits in ASCII without allocating any object, e.g., inside a JSON document.
+     * @param bytes Byte array to be written.
+     * @param offset Index of the first digit.
+     * @param value Value to be written.
+     */
+    public static void putHexLong(byte[] bytes, int offset, long value) {
+        for(int i=15;i>=0;i--) {
+            bytes[offset+i] = (byte)HEX_DIGITS[(int)value & 0xf];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Write an int value into a byte array as 8 lowercase hex digits in ASCII without allocating any object.
+     * @param bytes Byte array to be written.
+     * @param offset Index of the first digit.
+     * @param value Value to be written.
+     */
+    public static void putHexInt(byte[] bytes, int offset, int value) {
+        for(int i=7;i>=0;i--) {
+            bytes[offset+i] = (byte)HEX_DIGITS[value & 0xf];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Read a long value written by putHexLong().
+     * @param bytes Byte array to be read.
+     * @param offset Index of the first digit.
+     * @return Value.
+     */
+    public static long getHexLong(byte[] bytes, int offset) {
+        long value = 0;
+        for(int i=0;i<16;i++) {
+            value = (value << 4) | Character.digit(bytes[offset+i], 16);
+        }
+        return value;
+    }
+
+    /**
+     * Read an int value written by putHexInt().
+     * @param bytes Byte array to be read.
+     * @param offset Index of the first digit.
+     * @return Value.
+     */
+    public static int getHexInt(byte[] bytes, int offset) {
+        int value = 0;
+        for(int i=0;i<8;i++) {
+            value = (value << 4) | Character.digit(bytes[offset+i], 16);
+        }
+        return value;
+    }
+
+    /**
+     * Write a long value into a byte array in big-endian without allocating any object.
+     * @param bytes Byte array to be written.
+     * @param offset Index of the first byte.
+     * @param value Value to be written.
+     */
+    public static void putLong(byte[] bytes, int offset, long value) {
+        for(int i=7;i>=0;i--) {
+            bytes[offset+i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Write an int value into a byte array in big-endian without allocating any object.
+     * @param bytes Byte array to be written.
+     * @param offset Index of the first byte.
+     * @param value Value to be written.
+     */
+    public static void putInt(byte[] bytes, int offset, int value) {
+        for(int i=3;i>=0;i--) {
+            bytes[offset+i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Read an int value written by putInt().
+     * @param bytes Byte array to be read.
+     * @param offset Index of the first byte.
+     * @return Value.
+     */
+    public static int getInt(byte[] bytes, int offset) {
+        int value = 0;
+        for(int i=0;i<4;i++) {
+            value = (value << 8) | (bytes[offset+i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Read a long value written by putLong().
+     * @param bytes Byte array to be read.
+     * @param offset Index of the first byte.
+     * @return Value.
+     */
+    public static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for(int i=0;i<8;i++) {
+            value = (value << 8) | (bytes[offset+i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * @param percentile Percentile value.
+     * @return String representation without trailing ".0", e.g., "99" for 99.0 and "99.9" for 99.9.
+     */
+    public static String formatPercentile(double percentile) {
+        if(percentile == Math.rint(percentile)) {
+            return String.valueOf((long)percentile);
+        } else {
+            return String.valueOf(percentile);
+        }
+    }
+
+    /**
+     * Write a string prefixed by its length in bytes. Unlike DataOutputStream.writeUTF(), it has no limit of length.
+     * @param dos Stream to be written.
+     * @param str String to be written.
+     * @throws IOException If writing fails.
+     */
+    public static void writeString(DataOutputStream dos, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
     }
 
-    public static Instant getCurrentTimeWithOffset() {
-        return Instant.now().plusMillis(Loader.offset);
+    /**
+     * Read a string written by writeString().
+     * @param dis Stream to be read.
+     * @return String.
+     * @throws IOException If reading fails.
+     */
+    public static String readString(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     public static long getEpochMicros(Instant time) {
@@ -0,0 +1,512 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mqttloader.broker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import mqttloader.Constants;
+import mqttloader.broker.EmbeddedBroker.Route;
+import mqttloader.broker.EmbeddedBroker.SharedGroup;
+import mqttloader.broker.EmbeddedBroker.Subscription;
+import mqttloader.client.MqttCodec;
+
+/**
+ * Connection of a client to the embedded broker. Packets are received by the loop to which the connection is assigned,
+ * and messages to this connection are written to its output buffer by the loops of publishers.
+ */
+class BrokerConnection {
+    private final EmbeddedBroker broker;
+    private final BrokerLoop loop;
+    private final SocketChannel channel;
+    private volatile SelectionKey key = null;
+    private ByteBuffer in = ByteBuffer.allocate(Constants.NIO_BUFFER_SIZE);
+    private final Object writeLock = new Object();
+    private ByteBuffer out = ByteBuffer.allocate(Constants.NIO_BUFFER_SIZE);    // Guarded by writeLock.
+    private boolean writePending = false;    // Guarded by writeLock. True if the loop of this connection is writing the rest of out.
+    private boolean closed = false;    // Guarded by writeLock.
+    private int nextPacketId = 0;    // Guarded by writeLock.
+    private volatile int version = 4;
+    private byte[][] topicAliases = new byte[0][];    // Indexed by Topic Alias from the client, used only by the thread of this loop.
+    private final boolean[] dirty;    // Indexed by loops. Each element is accessed only by the thread of the loop.
+
+    // Routes of recently published topics, used only by the thread of this loop.
+    private final byte[][] cachedTopics = new byte[Constants.EMBEDDED_BROKER_TOPIC_CACHE_SIZE][];
+    private final Route[] cachedRoutes = new Route[Constants.EMBEDDED_BROKER_TOPIC_CACHE_SIZE];
+
+    BrokerConnection(EmbeddedBroker broker, BrokerLoop loop, SocketChannel channel) {
+        this.broker = broker;
+        this.loop = loop;
+        this.channel = channel;
+        this.dirty = new boolean[loop.getNumLoops()];
+    }
+
+    /**
+     * Called by the loop.
+     */
+    void onRegister(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Called by the loop.
+     */
+    void onReadable() {
+        try {
+            if(channel.read(in) < 0) {
+                close();
+                return;
+            }
+            processInput();
+        } catch (IOException | RuntimeException e) {
+            // Malformed packets also close the connection.
+            close();
+        }
+    }
+
+    /**
+     * Called by the loop.
+     */
+    void onWritable() {
+        boolean failed = false;
+        synchronized (writeLock) {
+            if(closed) {
+                return;
+            }
+            try {
+                write();
+                if(out.position() == 0) {
+                    writePending = false;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+        if(failed) {
+            close();
+        }
+    }
+
+    /**
+     * Called by the loop.
+     */
+    void enableWriteInterest() {
+        synchronized (writeLock) {
+            SelectionKey k = key;
+            if(writePending && !closed && k != null && k.isValid()) {
+                k.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Write the buffered packets to the socket, and let the loop of this connection write the rest if any.
+     * Called at the end of a selection by a loop that buffered packets.
+     */
+    void flush(BrokerLoop from) {
+        dirty[from.getIndex()] = false;
+        boolean failed = false;
+        synchronized (writeLock) {
+            if(closed || writePending) {
+                return;
+            }
+            try {
+                write();
+                if(out.position() > 0) {
+                    writePending = true;
+                    loop.requestWrite(this);
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+        if(failed) {
+            close();
+        }
+    }
+
+    /**
+     * Close the connection and remove its subscriptions. Can be called by any thread. Does nothing if already closed.
+     */
+    void close() {
+        synchronized (writeLock) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+        }
+        SelectionKey k = key;
+        if(k != null) {
+            k.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        broker.unsubscribe(this, null);
+    }
+
+    /**
+     * Dispatch the complete packets in the input buffer, and keep the incomplete one at the head of it.
+     */
+    private void processInput() throws IOException {
+        byte[] buf = in.array();
+        int limit = in.position();
+        int pos = 0;
+        int required = 0;
+        while(limit - pos >= 2) {
+            long var = MqttCodec.readVarInt(buf, pos+1, limit);
+            if(var < 0) {
+                break;
+            }
+            int start = (int)(var >>> 32);
+            int length = (int)var;
+            if(limit - start < length) {
+                required = start - pos + length;
+                break;
+            }
+            dispatch(buf[pos] & 0xff, buf, start, length);
+            pos = start + length;
+        }
+
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        in.position(limit - pos);
+        if(required > in.capacity()) {
+            // The buffer is enlarged only for a packet larger than it.
+            ByteBuffer larger = ByteBuffer.allocate(required);
+            larger.put(buf, 0, limit - pos);
+            in = larger;
+        }
+    }
+
+    private void dispatch(int header, byte[] buf, int offset, int length) throws IOException {
+        switch(MqttCodec.getType(header)) {
+            case MqttCodec.CONNECT:
+                onConnect(buf, offset);
+                break;
+            case MqttCodec.PUBLISH:
+                onPublish(header, buf, offset, length);
+                break;
+            case MqttCodec.PUBREL:
+                sendAck(MqttCodec.PUBCOMP, MqttCodec.readUnsignedShort(buf, offset));
+                break;
+            case MqttCodec.SUBSCRIBE:
+                onSubscribe(buf, offset, length);
+                break;
+            case MqttCodec.UNSUBSCRIBE:
+                onUnsubscribe(buf, offset, length);
+                break;
+            case MqttCodec.PINGREQ:
+                sendEmpty(MqttCodec.PINGRESP);
+                break;
+            case MqttCodec.DISCONNECT:
+                close();
+                break;
+            default:
+                // PUBACK from subscribers needs nothing, since messages are not retransmitted.
+        }
+    }
+
+    private void onConnect(byte[] buf, int offset) throws IOException {
+        int i = offset + 2 + MqttCodec.readUnsignedShort(buf, offset);
+        version = buf[i] == 5 ? 5 : 4;
+        synchronized (writeLock) {
+            if(closed) {
+                return;
+            }
+            int topicAliasMaximum = broker.getTopicAliasMaximum();
+            if(version == 5 && topicAliasMaximum > 0) {
+                reserve(8);
+                out.put((byte)(MqttCodec.CONNACK << 4)).put((byte)6).put((byte)0).put((byte)0);
+                out.put((byte)3).put((byte)MqttCodec.PROP_TOPIC_ALIAS_MAXIMUM).putShort((short)topicAliasMaximum);
+            } else if(version == 5) {
+                reserve(5);
+                out.put((byte)(MqttCodec.CONNACK << 4)).put((byte)3).put((byte)0).put((byte)0).put((byte)0);
+            } else {
+                reserve(4);
+                out.put((byte)(MqttCodec.CONNACK << 4)).put((byte)2).put((byte)0).put((byte)0);
+            }
+        }
+        markDirty(loop);
+    }
+
+    private void onPublish(int header, byte[] buf, int offset, int length) throws IOException {
+        int qos = (header >> 1) & 3;
+        int end = offset + length;
+        int topicLength = MqttCodec.readUnsignedShort(buf, offset);
+        int topicOffset = offset + 2;
+        int i = topicOffset + topicLength;
+        int packetId = 0;
+        if(qos > 0) {
+            packetId = MqttCodec.readUnsignedShort(buf, i);
+            i += 2;
+        }
+        byte[] topicBuf = buf;
+        if(version == 5) {
+            int alias = MqttCodec.readTwoByteProperty(buf, i, end, MqttCodec.PROP_TOPIC_ALIAS);
+            long var = MqttCodec.readVarInt(buf, i, end);
+            if(var < 0) {
+                throw new IOException("Malformed PUBLISH.");
+            }
+            i = (int)(var >>> 32) + (int)var;
+            if(alias > broker.getTopicAliasMaximum()) {
+                throw new IOException("Invalid topic alias: " + alias);
+            }
+            if(alias > 0) {
+                if(topicLength > 0) {
+                    setTopicAlias(alias, buf, topicOffset, topicLength);
+                } else {
+                    topicBuf = alias < topicAliases.length ? topicAliases[alias] : null;
+                    if(topicBuf == null) {
+                        throw new IOException("Unknown topic alias: " + alias);
+                    }
+                    topicOffset = 0;
+                    topicLength = topicBuf.length;
+                }
+            }
+        }
+        broker.countReceived();
+
+        Route route = lookup(topicBuf, topicOffset, topicLength);
+        int deliveredQos = Math.min(qos, 1);
+        for(Subscription subscription: route.direct) {
+            deliver(subscription, topicBuf, topicOffset, topicLength, deliveredQos, buf, i, end - i);
+        }
+        for(SharedGroup group: route.groups) {
+            Subscription subscription = group.pick();
+            if(subscription != null) {
+                deliver(subscription, topicBuf, topicOffset, topicLength, deliveredQos, buf, i, end - i);
+            }
+        }
+
+        if(qos == 1) {
+            sendAck(MqttCodec.PUBACK, packetId);
+        } else if(qos == 2) {
+            sendAck(MqttCodec.PUBREC, packetId);
+        }
+    }
+
+    private void setTopicAlias(int alias, byte[] buf, int offset, int length) {
+        if(alias >= topicAliases.length) {
+            topicAliases = Arrays.copyOf(topicAliases, Math.min(Math.max(alias+1, topicAliases.length*2), broker.getTopicAliasMaximum()+1));
+        }
+        byte[] topic = topicAliases[alias];
+        if(topic == null || !equals(topic, buf, offset, length)) {
+            topicAliases[alias] = Arrays.copyOfRange(buf, offset, offset+length);
+        }
+    }
+
+    private void deliver(Subscription subscription, byte[] topicBuf, int topicOffset, int topicLength, int qos, byte[] payloadBuf, int payloadOffset, int payloadLength) {
+        boolean delivered = subscription.connection.write(loop, topicBuf, topicOffset, topicLength, Math.min(qos, subscription.qos), payloadBuf, payloadOffset, payloadLength);
+        broker.countDelivered(delivered);
+    }
+
+    /**
+     * Buffer a PUBLISH packet to this connection, to be flushed by the loop at the end of the selection.
+     * @param from Loop of the publisher, which calls this method.
+     * @return false if the connection is closed or its output buffer is full.
+     */
+    private boolean write(BrokerLoop from, byte[] topicBuf, int topicOffset, int topicLength, int qos, byte[] payloadBuf, int payloadOffset, int payloadLength) {
+        int remainingLength = 2 + topicLength + (qos > 0 ? 2 : 0) + (version == 5 ? 1 : 0) + payloadLength;
+        int size = MqttCodec.getHeaderSize(remainingLength) + remainingLength;
+        synchronized (writeLock) {
+            if(closed || out.position() + size > Constants.EMBEDDED_BROKER_MAX_BUFFER) {
+                return false;
+            }
+            reserve(size);
+            out.put((byte)(MqttCodec.PUBLISH << 4 | qos << 1));
+            MqttCodec.writeVarInt(out, remainingLength);
+            out.putShort((short)topicLength);
+            out.put(topicBuf, topicOffset, topicLength);
+            if(qos > 0) {
+                nextPacketId = nextPacketId % 0xffff + 1;
+                out.putShort((short)nextPacketId);
+            }
+            if(version == 5) {
+                out.put((byte)0);
+            }
+            out.put(payloadBuf, payloadOffset, payloadLength);
+        }
+        markDirty(from);
+        return true;
+    }
+
+    /**
+     * @return Subscriptions matching the topic. Cached by the topic bytes, so that no string is created for known topics.
+     */
+    private Route lookup(byte[] buf, int offset, int length) {
+        int hash = 0;
+        for(int i=0;i<length;i++) {
+            hash = 31*hash + buf[offset+i];
+        }
+        int index = (hash ^ (hash >>> 16)) & (Constants.EMBEDDED_BROKER_TOPIC_CACHE_SIZE - 1);
+
+        byte[] cached = cachedTopics[index];
+        Route route = cachedRoutes[index];
+        if(cached != null && route.version == broker.getVersion() && equals(cached, buf, offset, length)) {
+            return route;
+        }
+        byte[] topic = Arrays.copyOfRange(buf, offset, offset+length);
+        route = broker.route(new String(topic, StandardCharsets.UTF_8));
+        cachedTopics[index] = topic;
+        cachedRoutes[index] = route;
+        return route;
+    }
+
+    private static boolean equals(byte[] topic, byte[] buf, int offset, int length) {
+        if(topic.length != length) {
+            return false;
+        }
+        for(int i=0;i<length;i++) {
+            if(topic[i] != buf[offset+i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void onSubscribe(byte[] buf, int offset, int length) throws IOException {
+        int end = offset + length;
+        int packetId = MqttCodec.readUnsignedShort(buf, offset);
+        int i = skipProperties(buf, offset+2, end);
+        byte[] codes = new byte[length];
+        int numCodes = 0;
+        while(i < end) {
+            int filterLength = MqttCodec.readUnsignedShort(buf, i);
+            String filter = new String(buf, i+2, filterLength, StandardCharsets.UTF_8);
+            i += 2 + filterLength;
+            int qos = Math.min(buf[i] & 3, 1);
+            i++;
+            broker.subscribe(this, filter, qos);
+            codes[numCodes++] = (byte)qos;
+        }
+        sendAcks(MqttCodec.SUBACK, packetId, codes, numCodes);
+    }
+
+    private void onUnsubscribe(byte[] buf, int offset, int length) throws IOException {
+        int end = offset + length;
+        int packetId = MqttCodec.readUnsignedShort(buf, offset);
+        int i = skipProperties(buf, offset+2, end);
+        int numCodes = 0;
+        while(i < end) {
+            int filterLength = MqttCodec.readUnsignedShort(buf, i);
+            broker.unsubscribe(this, new String(buf, i+2, filterLength, StandardCharsets.UTF_8));
+            i += 2 + filterLength;
+            numCodes++;
+        }
+        // Reason codes of v5 are all 0 (success).
+        sendAcks(MqttCodec.UNSUBACK, packetId, new byte[numCodes], version == 5 ? numCodes : 0);
+    }
+
+    private int skipProperties(byte[] buf, int offset, int limit) throws IOException {
+        if(version != 5) {
+            return offset;
+        }
+        long var = MqttCodec.readVarInt(buf, offset, limit);
+        if(var < 0) {
+            throw new IOException("Malformed properties.");
+        }
+        return (int)(var >>> 32) + (int)var;
+    }
+
+    /**
+     * Send SUBACK or UNSUBACK.
+     */
+    private void sendAcks(int type, int packetId, byte[] codes, int numCodes) {
+        int remainingLength = 2 + (version == 5 ? 1 : 0) + numCodes;
+        synchronized (writeLock) {
+            if(closed) {
+                return;
+            }
+            reserve(MqttCodec.getHeaderSize(remainingLength) + remainingLength);
+            out.put((byte)(type << 4));
+            MqttCodec.writeVarInt(out, remainingLength);
+            out.putShort((short)packetId);
+            if(version == 5) {
+                out.put((byte)0);
+            }
+            out.put(codes, 0, numCodes);
+        }
+        markDirty(loop);
+    }
+
+    private void sendAck(int type, int packetId) {
+        synchronized (writeLock) {
+            if(closed) {
+                return;
+            }
+            reserve(4);
+            MqttCodec.writeAck(out, type, packetId);
+        }
+        markDirty(loop);
+    }
+
+    private void sendEmpty(int type) {
+        synchronized (writeLock) {
+            if(closed) {
+                return;
+            }
+            reserve(2);
+            MqttCodec.writeEmpty(out, type);
+        }
+        markDirty(loop);
+    }
+
+    private void markDirty(BrokerLoop from) {
+        if(!dirty[from.getIndex()]) {
+            dirty[from.getIndex()] = true;
+            from.markDirty(this);
+        }
+    }
+
+    /**
+     * Must be called with writeLock held.
+     */
+    private void reserve(int size) {
+        if(out.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity()*2, out.position() + size));
+            out.flip();
+            larger.put(out);
+            out = larger;
+        }
+    }
+
+    /**
+     * Must be called with writeLock held.
+     */
+    private void write() throws IOException {
+        out.flip();
+        try {
+            if(out.hasRemaining()) {
+                channel.write(out);
+            }
+        } finally {
+            out.compact();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mqttloader.broker;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import mqttloader.Constants;
+
+/**
+ * Thread of the embedded broker that receives packets of many connections by a selector.
+ * Packets to be sent while processing a selection, including messages to subscribers handled by other loops,
+ * are buffered and flushed together at the end of the selection.
+ */
+class BrokerLoop implements Runnable {
+    private final EmbeddedBroker broker;
+    private final int index;
+    private final int numLoops;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<BrokerConnection> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<BrokerConnection> writeRequests = new ConcurrentLinkedQueue<>();
+    private final List<BrokerConnection> dirty = new ArrayList<>();    // Connections to be flushed at the end of the selection.
+    private volatile boolean running = true;
+
+    BrokerLoop(EmbeddedBroker broker, int index, int numLoops, String name) throws IOException {
+        this.broker = broker;
+        this.index = index;
+        this.numLoops = numLoops;
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Accept connections by this loop. Must be called before start().
+     */
+    void listen(ServerSocketChannel server) throws ClosedChannelException {
+        server.register(selector, SelectionKey.OP_ACCEPT, broker);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    int getNumLoops() {
+        return numLoops;
+    }
+
+    /**
+     * Start receiving packets of the connection. Can be called by any thread.
+     */
+    void register(BrokerConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Send the rest of packets that could not be written at once. Can be called by any thread.
+     */
+    void requestWrite(BrokerConnection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Flush the connection at the end of the current selection. Must be called by the thread of this loop.
+     */
+    void markDirty(BrokerConnection connection) {
+        dirty.add(connection);
+    }
+
+    @Override
+    public void run() {
+        while(running) {
+            try {
+                selector.select(Constants.NIO_SELECT_TIMEOUT);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            BrokerConnection connection;
+            while((connection = registrations.poll()) != null) {
+                connection.onRegister(selector);
+            }
+            while((connection = writeRequests.poll()) != null) {
+                connection.enableWriteInterest();
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while(it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if(!(key.attachment() instanceof BrokerConnection)) {
+                    if(key.isValid() && key.isAcceptable()) {
+                        broker.accept();
+                    }
+                    continue;
+                }
+                connection = (BrokerConnection)key.attachment();
+                if(key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                if(key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            }
+
+            for(int i=0;i<dirty.size();i++) {
+                dirty.get(i).flush(this);
+            }
+            dirty.clear();
+        }
+
+        for(SelectionKey key: selector.keys()) {
+            if(key.attachment() instanceof BrokerConnection) {
+                ((BrokerConnection)key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
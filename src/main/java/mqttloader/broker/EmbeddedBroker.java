@@ -0,0 +1,311 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package mqttloader.broker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import mqttloader.Constants;
+import mqttloader.TopicGenerator;
+
+/**
+ * Minimal MQTT broker running in the process of MQTTLoader and listening on the loopback address, to measure the ceiling
+ * of MQTTLoader itself and to run end-to-end measurements without a network.
+ * It supports MQTT v3.1.1 and v5, QoS 0 and 1, wildcards and shared subscriptions. QoS 2 is accepted from publishers
+ * but delivered as QoS 1. Sessions, retained messages, will messages and authentication are not supported.
+ * Connections are distributed to selector threads, and messages are copied directly from the input buffer of the publisher
+ * to the output buffers of subscribers, which are written to the sockets at most once per selection.
+ */
+public class EmbeddedBroker {
+    private final ServerSocketChannel server;
+    private final BrokerLoop[] loops;
+    private final int topicAliasMaximum;
+    private int nextLoop = 0;    // Used only by the thread of the first loop, which accepts connections.
+
+    private final List<Subscription> subscriptions = new ArrayList<>();    // Guarded by this.
+    private final Map<String, SharedGroup> sharedGroups = new HashMap<>();    // Guarded by this. Keys are "<share name>/<topic filter>".
+    private volatile Subscription[] snapshot = new Subscription[0];
+    private volatile int version = 0;    // Incremented when subscriptions change, to invalidate the cached routes.
+
+    private final LongAdder numReceived = new LongAdder();
+    private final LongAdder numDelivered = new LongAdder();
+    private final LongAdder numDropped = new LongAdder();
+
+    /**
+     * Start listening.
+     * @param port Port number. If 0, an ephemeral port is used.
+     * @param numThreads The number of selector threads.
+     * @param topicAliasMaximum Topic Alias Maximum advertised to clients of v5. If 0, topic aliases are not accepted.
+     * @throws IOException If failed to listen.
+     */
+    public EmbeddedBroker(int port, int numThreads, int topicAliasMaximum) throws IOException {
+        this.topicAliasMaximum = topicAliasMaximum;
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), Constants.EMBEDDED_BROKER_BACKLOG);
+        server.configureBlocking(false);
+
+        loops = new BrokerLoop[numThreads];
+        for(int i=0;i<numThreads;i++) {
+            loops[i] = new BrokerLoop(this, i, numThreads, "mqttloader-broker-"+i);
+        }
+        loops[0].listen(server);
+        for(BrokerLoop loop: loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * @return Port number on which the broker is listening.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    int getTopicAliasMaximum() {
+        return topicAliasMaximum;
+    }
+
+    /**
+     * Stop listening and close all connections.
+     */
+    public void close() {
+        for(BrokerLoop loop: loops) {
+            loop.close();
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The number of PUBLISH packets received from publishers.
+     */
+    public long getNumReceived() {
+        return numReceived.sum();
+    }
+
+    /**
+     * @return The number of PUBLISH packets sent to subscribers.
+     */
+    public long getNumDelivered() {
+        return numDelivered.sum();
+    }
+
+    /**
+     * @return The number of messages not delivered because the subscriber was too slow or disconnected.
+     */
+    public long getNumDropped() {
+        return numDropped.sum();
+    }
+
+    /**
+     * Called by the first loop when the server socket is acceptable.
+     */
+    void accept() {
+        try {
+            SocketChannel channel;
+            while((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                BrokerLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.register(new BrokerConnection(this, loop, channel));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param connection Connection of the subscriber.
+     * @param filter Topic filter, which may be a shared subscription "$share/{ShareName}/{filter}".
+     * @param qos Granted QoS.
+     */
+    synchronized void subscribe(BrokerConnection connection, String filter, int qos) {
+        SharedGroup group = null;
+        if(filter.startsWith("$share/")) {
+            int slash = filter.indexOf('/', "$share/".length());
+            if(slash > 0) {
+                String key = filter.substring("$share/".length());
+                filter = filter.substring(slash+1);
+                group = sharedGroups.get(key);
+                if(group == null) {
+                    group = new SharedGroup();
+                    sharedGroups.put(key, group);
+                }
+            }
+        }
+
+        // A subscription to the same filter replaces the existing one.
+        removeSubscriptions(connection, filter, group);
+        Subscription subscription = new Subscription(connection, filter, qos, group);
+        subscriptions.add(subscription);
+        if(group != null) {
+            group.update(subscriptions);
+        }
+        publishSnapshot();
+    }
+
+    /**
+     * @param connection Connection of the subscriber.
+     * @param filter Topic filter given by SUBSCRIBE. If null, all subscriptions of the connection are removed.
+     */
+    synchronized void unsubscribe(BrokerConnection connection, String filter) {
+        SharedGroup group = null;
+        if(filter != null && filter.startsWith("$share/")) {
+            int slash = filter.indexOf('/', "$share/".length());
+            if(slash > 0) {
+                group = sharedGroups.get(filter.substring("$share/".length()));
+                filter = filter.substring(slash+1);
+            }
+        }
+        removeSubscriptions(connection, filter, group);
+        publishSnapshot();
+    }
+
+    private void removeSubscriptions(BrokerConnection connection, String filter, SharedGroup group) {
+        List<SharedGroup> changed = new ArrayList<>();
+        Iterator<Subscription> it = subscriptions.iterator();
+        while(it.hasNext()) {
+            Subscription subscription = it.next();
+            if(subscription.connection == connection && (filter == null || (subscription.filter.equals(filter) && subscription.group == group))) {
+                it.remove();
+                if(subscription.group != null) {
+                    changed.add(subscription.group);
+                }
+            }
+        }
+        for(SharedGroup g: changed) {
+            g.update(subscriptions);
+        }
+    }
+
+    private void publishSnapshot() {
+        snapshot = subscriptions.toArray(new Subscription[0]);
+        version++;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * @param topic Topic name of a message.
+     * @return Subscriptions to which messages of the topic are delivered.
+     */
+    Route route(String topic) {
+        // The version is read before the snapshot, so that a route built from a newer snapshot is rebuilt later rather than kept stale.
+        int v = version;
+        List<Subscription> direct = new ArrayList<>();
+        List<SharedGroup> groups = new ArrayList<>();
+        for(Subscription subscription: snapshot) {
+            if(!TopicGenerator.matches(subscription.filter, topic)) {
+                continue;
+            }
+            if(subscription.group == null) {
+                direct.add(subscription);
+            } else if(!groups.contains(subscription.group)) {
+                groups.add(subscription.group);
+            }
+        }
+        return new Route(v, direct.toArray(new Subscription[0]), groups.toArray(new SharedGroup[0]));
+    }
+
+    void countReceived() {
+        numReceived.increment();
+    }
+
+    void countDelivered(boolean delivered) {
+        if(delivered) {
+            numDelivered.increment();
+        } else {
+            numDropped.increment();
+        }
+    }
+
+    static class Subscription {
+        final BrokerConnection connection;
+        final String filter;
+        final int qos;
+        final SharedGroup group;    // null if not a shared subscription.
+
+        Subscription(BrokerConnection connection, String filter, int qos, SharedGroup group) {
+            this.connection = connection;
+            this.filter = filter;
+            this.qos = qos;
+            this.group = group;
+        }
+    }
+
+    /**
+     * Subscriptions sharing a share name and a topic filter, to which messages are delivered in round robin.
+     */
+    static class SharedGroup {
+        private volatile Subscription[] members = new Subscription[0];
+        private final AtomicInteger next = new AtomicInteger();
+
+        private void update(List<Subscription> subscriptions) {
+            List<Subscription> list = new ArrayList<>();
+            for(Subscription subscription: subscriptions) {
+                if(subscription.group == this) {
+                    list.add(subscription);
+                }
+            }
+            members = list.toArray(new Subscription[0]);
+        }
+
+        /**
+         * @return Subscription to which the next message is delivered. null if no member.
+         */
+        Subscription pick() {
+            Subscription[] m = members;
+            if(m.length == 0) {
+                return null;
+            }
+            return m[(next.getAndIncrement() & Integer.MAX_VALUE) % m.length];
+        }
+    }
+
+    /**
+     * Subscriptions matching a topic, cached by connections of publishers.
+     */
+    static class Route {
+        final int version;
+        final Subscription[] direct;
+        final SharedGroup[] groups;
+
+        Route(int version, Subscription[] direct, SharedGroup[] groups) {
+            this.version = version;
+            this.direct = direct;
+            this.groups = groups;
+        }
+    }
+}
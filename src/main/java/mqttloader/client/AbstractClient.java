@@ -16,8 +16,28 @@
 
 package mqttloader.client;
 
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import mqttloader.Constants;
+import mqttloader.Loader;
+import mqttloader.OutageStats;
+import mqttloader.PayloadStats;
+
 public abstract class AbstractClient {
+    private static final AtomicInteger numInOutage = new AtomicInteger();
+
     protected final String clientId;
+    protected long connectLatency = -1;
+    protected final OutageStats outageStats = new OutageStats();
+    protected final PayloadStats payloadStats = new PayloadStats();
+    private ScheduledExecutorService reconnectService = null;
+    private long minBackoff;
+    private long maxBackoff;
+    protected volatile boolean disconnecting = false;    // True while disconnected on purpose, so that it is not reconnected.
+    private volatile long outageStartNanos = -1;    // When the connection was lost. -1 if not in an outage.
+    private volatile long reconnectedNanos = -1;    // When reconnected. -1 if the first message after reconnection has been done.
 
     public AbstractClient(String clientId) {
         this.clientId = clientId;
@@ -25,7 +45,136 @@ public abstract class AbstractClient {
 
     public abstract void disconnect();
 
+    /**
+     * Make this client reconnect automatically when the connection is lost unexpectedly.
+     * @param service Scheduler of reconnection attempts, shared by clients.
+     * @param minBackoff Delay before the first attempt in milliseconds. It is doubled for each failed attempt.
+     * @param maxBackoff The maximum delay between attempts in milliseconds.
+     */
+    public void enableReconnect(ScheduledExecutorService service, long minBackoff, long maxBackoff) {
+        this.reconnectService = service;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Called by the callback of the MQTT client when the connection is lost.
+     */
+    protected void onConnectionLost() {
+        if(reconnectService == null || disconnecting || isInOutage()) {
+            return;
+        }
+        Loader.LOGGER.warning("Connection lost (" + clientId + ").");
+        outageStartNanos = System.nanoTime();
+        reconnectedNanos = -1;
+        numInOutage.incrementAndGet();
+        outageStats.countLost();
+        scheduleReconnect(minBackoff);
+    }
+
+    private void scheduleReconnect(long backoff) {
+        try {
+            reconnectService.schedule(() -> {
+                if(disconnecting) {
+                    return;
+                }
+                if(tryReconnect()) {
+                    long now = System.nanoTime();
+                    outageStats.recordOutage((now - outageStartNanos)/Constants.MICROSECOND_IN_NANO);
+                    reconnectedNanos = now;
+                    onReconnected();
+                    numInOutage.decrementAndGet();
+                    Loader.LOGGER.info("Reconnected (" + clientId + ").");
+                } else {
+                    outageStats.countFailedAttempt();
+                    scheduleReconnect(Math.min(backoff*2, maxBackoff));
+                }
+            }, backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The measurement has ended.
+        }
+    }
+
+    /**
+     * Try to reconnect to the broker, e.g., connect with the same options and subscribe again.
+     * @return true if succeeded.
+     */
+    protected boolean tryReconnect() {
+        return false;
+    }
+
+    /**
+     * Called after reconnection and before the first message after it.
+     */
+    protected void onReconnected() {}
+
+    /**
+     * Called when a message is sent or received, to record the time until the first message after reconnection.
+     */
+    protected void checkRecovery() {
+        long reconnected = reconnectedNanos;
+        if(reconnected >= 0) {
+            long now = System.nanoTime();
+            outageStats.recordRecovery((now - reconnected)/Constants.MICROSECOND_IN_NANO, (now - outageStartNanos)/Constants.MICROSECOND_IN_NANO);
+            reconnectedNanos = -1;
+            outageStartNanos = -1;
+        }
+    }
+
+    protected boolean isReconnectEnabled() {
+        return reconnectService != null;
+    }
+
+    /**
+     * @return true if this client lost the connection and has not reconnected yet.
+     */
+    protected boolean isInOutage() {
+        return outageStartNanos >= 0 && reconnectedNanos < 0;
+    }
+
+    /**
+     * @return Outages of this client. Must be read after this client is disconnected.
+     */
+    public OutageStats getOutageStats() {
+        return outageStats;
+    }
+
+    /**
+     * @return Sizes of payloads sent or received by this client. Must be read after this client is disconnected.
+     */
+    public PayloadStats getPayloadStats() {
+        return payloadStats;
+    }
+
+    /**
+     * @return true if any client lost the connection and has not reconnected yet.
+     */
+    public static boolean isAnyInOutage() {
+        return numInOutage.get() > 0;
+    }
+
+    public abstract boolean isConnected();
+
+    /**
+     * @return The number of messages waiting for the completion of PUBLISH.
+     */
+    public int getNumInflight() {
+        return 0;
+    }
+
     public String getClientId() {
         return clientId;
     }
+
+    /**
+     * @return Time from starting to connect until receiving CONNACK in microseconds, including TCP (and TLS) handshake.
+     *         -1 if not connected.
+     */
+    public long getConnectLatency() {
+        return connectLatency;
+    }
+
+    protected static long getElapsedMicros(long startNanos) {
+        return (System.nanoTime() - startNanos)/Constants.MICROSECOND_IN_NANO;
+    }
 }
@@ -21,34 +21,90 @@ import static mqttloader.Constants.PUB_CLIENT_ID_PREFIX;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import mqttloader.Clock;
+import mqttloader.Constants;
+import mqttloader.DeliveryStats;
+import mqttloader.LoadProfile;
 import mqttloader.Loader;
-import mqttloader.Record;
+import mqttloader.PayloadGenerator;
+import mqttloader.RecordBuffer;
 import mqttloader.Recorder;
+import mqttloader.TopicGenerator;
+import mqttloader.Util;
 
 public abstract class AbstractPublisher extends AbstractClient implements Runnable {
-    protected final String topic;
-    protected final int payloadSize;
+    private final int clientNumber;
+    private final TopicGenerator topicGenerator;
+    private final String[] topics;
+    private final long[] numSentPerTopic;
+    private int topicIndex;
+    protected int currentTopicIndex;    // Index of the topic picked by nextTopic() last.
+    protected final PayloadGenerator payloadGenerator;
+    protected int payloadLength;    // Size of the payload generated last.
     protected int numMessage;
     protected final int pubInterval;
+    protected final boolean openLoop;
+    private long firstIntendedEpochMicros;
+    private long numSent = 0;
+    private final int publisherId;
+    private int sequence = 0;
+    private long intendedEpochMicros;
+    private LoadProfile loadProfile;
+    private double position;
 
     protected ScheduledExecutorService service;
-    protected ScheduledFuture<?> future;
+    private boolean ownService;
+    protected volatile ScheduledFuture<?> future;
     protected volatile boolean cancelled = false;
-    private Recorder recorder;
+    private volatile boolean running = false;
+    private final RecordBuffer recordBuffer;
+    private final byte[] payload;
 
-    public AbstractPublisher(int clientNumber, String topic, int payloadSize, int numMessage, int pubInterval, Recorder recorder) {
+    public AbstractPublisher(int clientNumber, TopicGenerator topicGenerator, PayloadGenerator payloadGenerator, int numMessage, int pubInterval, boolean openLoop, Recorder recorder) {
         super(PUB_CLIENT_ID_PREFIX + String.format("%05d", clientNumber));
-        this.topic = topic;
-        this.payloadSize = payloadSize;
+        this.clientNumber = clientNumber;
+        this.topicGenerator = topicGenerator;
+        this.topics = topicGenerator.getTopics(clientNumber);
+        this.numSentPerTopic = new long[topics.length];
+        this.topicIndex = topicGenerator.getFirstIndex(clientNumber);
+        this.payloadGenerator = payloadGenerator;
         this.numMessage = numMessage;
         this.pubInterval = pubInterval;
-        this.recorder = recorder;
+        this.openLoop = openLoop;
+        this.recordBuffer = recorder.createBuffer(clientNumber, clientId, true);
+        this.payload = new byte[payloadGenerator.getMaxSize()];
+        this.publisherId = Loader.agentIndex << Constants.PUBLISHER_ID_AGENT_SHIFT | clientNumber;
     }
 
-    public void start(long delay) {
-        service = Executors.newSingleThreadScheduledExecutor();
-        if(pubInterval==0){
+    /**
+     * Start publishing.
+     * @param sharedService Scheduler shared by publishers. If null, a dedicated thread is created for this publisher.
+     * @param threadFactory Factory of the dedicated thread, e.g., for virtual threads. If null, the default factory is used.
+     * @param delay Delay before sending the first message in microseconds. If loadProfile is given, it is the start time of the profile.
+     * @param loadProfile Schedule of sending messages. If null, messages are sent at the fixed interval.
+     */
+    public void start(ScheduledExecutorService sharedService, ThreadFactory threadFactory, long delay, LoadProfile loadProfile) {
+        if(sharedService == null) {
+            if(threadFactory == null) {
+                service = Executors.newSingleThreadScheduledExecutor();
+            } else {
+                service = Executors.newSingleThreadScheduledExecutor(threadFactory);
+            }
+            ownService = true;
+        } else {
+            service = sharedService;
+            ownService = false;
+        }
+        this.loadProfile = loadProfile;
+        firstIntendedEpochMicros = Clock.currentEpochMicros() + delay;
+        if(loadProfile != null){
+            position = loadProfile.getFirstPosition(clientNumber);
+            long sendTime = loadProfile.getSendTime(position);
+            intendedEpochMicros = firstIntendedEpochMicros + sendTime;
+            future = service.schedule(this, delay + sendTime, TimeUnit.MICROSECONDS);
+        }else if(pubInterval==0){
             future = service.schedule(this, delay, TimeUnit.MICROSECONDS);
         }else{
             future = service.scheduleAtFixedRate(this, delay, pubInterval, TimeUnit.MICROSECONDS);
@@ -57,36 +113,106 @@ public abstract class AbstractPublisher extends AbstractClient implements Runnab
 
     @Override
     public void run() {
-        if(pubInterval==0){
-            continuousRun();
-        }else{
-            periodicalRun();
+        running = true;
+        try {
+            if(loadProfile != null){
+                profiledRun();
+            }else if(pubInterval==0){
+                continuousRun();
+            }else{
+                periodicalRun();
+            }
+        } finally {
+            running = false;
         }
     }
 
+    /**
+     * Send up to PUBLISH_BATCH_SIZE messages and schedule this task again for the remaining ones.
+     * By yielding the thread after each batch, publishers sharing a scheduler make progress fairly.
+     */
     private void continuousRun() {
-        for(int i=0;i<numMessage;i++){
+        for(int i=0;i<Constants.PUBLISH_BATCH_SIZE && numMessage>0;i++){
             if(cancelled) {
                 Loader.LOGGER.info("Publish task cancelled (" + clientId + ").");
+                numMessage = 0;
                 break;
             }
+            if(!isWritable()) {
+                future = service.schedule(this, Constants.PUBLISH_RETRY_DELAY, TimeUnit.MICROSECONDS);
+                return;
+            }
             if(isConnected()) {
                 publish();
             } else {
-                Loader.LOGGER.warning("Failed to publish (" + clientId + ").");
+                failedToPublish();
             }
+            numMessage--;
+        }
+
+        if(numMessage > 0) {
+            future = service.schedule(this, 0, TimeUnit.MICROSECONDS);
+            return;
         }
 
         Loader.LOGGER.info("Completed to publish (" + clientId + ").");
         Loader.cdl.countDown();
     }
 
-    private void periodicalRun() {
-        if(numMessage > 0) {
+    /**
+     * Send the messages whose send time given by the load profile has come, up to PUBLISH_BATCH_SIZE,
+     * and schedule this task again for the next one.
+     */
+    private void profiledRun() {
+        for(int i=0;i<Constants.PUBLISH_BATCH_SIZE && numMessage>0;i++){
+            if(cancelled) {
+                Loader.LOGGER.info("Publish task cancelled (" + clientId + ").");
+                numMessage = 0;
+                break;
+            }
+            long wait = intendedEpochMicros - Clock.currentEpochMicros();
+            if(wait > 0) {
+                future = service.schedule(this, wait, TimeUnit.MICROSECONDS);
+                return;
+            }
+            if(!isWritable()) {
+                future = service.schedule(this, Constants.PUBLISH_RETRY_DELAY, TimeUnit.MICROSECONDS);
+                return;
+            }
             if(isConnected()) {
                 publish();
             } else {
-                Loader.LOGGER.warning("Failed to publish (" + clientId + ").");
+                failedToPublish();
+            }
+            numMessage--;
+            position = loadProfile.getNextPosition(position);
+            intendedEpochMicros = firstIntendedEpochMicros + loadProfile.getSendTime(position);
+        }
+
+        if(numMessage > 0) {
+            future = service.schedule(this, 0, TimeUnit.MICROSECONDS);
+            return;
+        }
+
+        Loader.LOGGER.info("Completed to publish (" + clientId + ").");
+        Loader.cdl.countDown();
+    }
+
+    /**
+     * Send a message at the fixed interval. If the in-flight window is full at the send time, the message is skipped instead of
+     * waiting for the window, so that the thread, which may be shared by other publishers, is not blocked and the schedule is kept.
+     */
+    private void periodicalRun() {
+        if(numMessage > 0) {
+            // In open-loop mode, the schedule is fixed regardless of how long each publish takes.
+            intendedEpochMicros = firstIntendedEpochMicros + numSent*pubInterval;
+            numSent++;
+            if(!isConnected()) {
+                failedToPublish();
+            } else if(!isWritable()) {
+                payloadStats.countSkipped();
+            } else {
+                publish();
             }
 
             numMessage--;
@@ -97,25 +223,191 @@ public abstract class AbstractPublisher extends AbstractClient implements Runnab
         }
     }
 
+    /**
+     * Generate payload of a message to be sent now. Its size is set to payloadLength.
+     * The same array is reused for every message, so that it must be used only by publishers that wait for the completion of each PUBLISH,
+     * or copied, e.g., by trimPayload(), before the next message.
+     * @param sentEpochMicros Actual send time in Unix time in microseconds.
+     * @return Payload in the first payloadLength bytes of the array, whose length is the maximum size of payloads.
+     *         If large enough, it also has the publisher ID and the sequence number, and in open-loop mode, the intended send time of the message.
+     */
+    protected byte[] genPayload(long sentEpochMicros) {
+        return genPayload(payload, sentEpochMicros);
+    }
+
+    /**
+     * Generate payload of a message to be sent now into the given buffer. Its size is set to payloadLength.
+     * @param buffer Buffer whose length is the maximum size of payloads.
+     * @param sentEpochMicros Actual send time in Unix time in microseconds.
+     * @return The given buffer.
+     */
+    protected byte[] genPayload(byte[] buffer, long sentEpochMicros) {
+        payloadLength = payloadGenerator.fill(buffer);
+        payloadStats.recordSent(payloadLength);
+        return stampPayload(buffer, sentEpochMicros);
+    }
+
+    /**
+     * Copy the payload into an array of its exact size, e.g., for Paho clients that send the whole array.
+     * The array is taken from those shared by all publishers through the payload generator, and allocated only if none of that size is available.
+     * @param buffer Payload generated by genPayload().
+     * @return Array of the payload only. If all payloads have the same size, the given buffer is returned.
+     */
+    protected byte[] trimPayload(byte[] buffer) {
+        if(payloadGenerator.isFixedSize()) {
+            return buffer;
+        }
+        byte[] exact = payloadGenerator.takeExact(payloadLength);
+        System.arraycopy(buffer, 0, exact, 0, payloadLength);
+        return exact;
+    }
+
+    /**
+     * Release an array returned by trimPayload() after the completion of its PUBLISH, so that it is reused for a later payload of the same size.
+     * This can be called by a thread other than the publisher, e.g., a callback of an asynchronous client.
+     * @param exact Array returned by trimPayload().
+     */
+    protected void releasePayload(byte[] exact) {
+        if(!payloadGenerator.isFixedSize()) {
+            payloadGenerator.releaseExact(exact);
+        }
+    }
+
+    /**
+     * Write the header of a message to be sent now into the payload in place. The other bytes are left as they are.
+     * The header consists of the send time (8 bytes), the publisher ID (4 bytes), the sequence number (4 bytes) and
+     * the intended send time in open-loop mode (8 bytes). The publisher ID and the sequence number are omitted if
+     * the payload is smaller than 16 bytes. For JSON documents, the same fields are written in hex digits after PAYLOAD_JSON_HEADER_PREFIX.
+     * @param buffer Payload whose size is payloadLength.
+     * @param sentEpochMicros Actual send time in Unix time in microseconds.
+     * @return The given payload.
+     */
+    private byte[] stampPayload(byte[] buffer, long sentEpochMicros) {
+        if(payloadGenerator.hasTextHeader()) {
+            int offset = Constants.PAYLOAD_JSON_HEADER_PREFIX.length();
+            Util.putHexLong(buffer, offset, sentEpochMicros);
+            Util.putHexInt(buffer, offset+16, publisherId);
+            Util.putHexInt(buffer, offset+24, sequence++);
+            if(openLoop) {
+                Util.putHexLong(buffer, offset+32, intendedEpochMicros);
+            }
+            return buffer;
+        }
+        Util.putLong(buffer, 0, sentEpochMicros);
+        if(payloadLength >= Constants.PAYLOAD_SEQUENCE_SIZE) {
+            Util.putInt(buffer, 8, publisherId);
+            Util.putInt(buffer, 12, sequence++);
+        }
+        if(openLoop) {
+            Util.putLong(buffer, 16, intendedEpochMicros);
+        }
+        return buffer;
+    }
+
+    /**
+     * @param buffer Payload generated by genPayload().
+     * @return Send time written in the payload.
+     */
+    protected long getSentEpochMicros(byte[] buffer) {
+        if(payloadGenerator.hasTextHeader()) {
+            return Util.getHexLong(buffer, Constants.PAYLOAD_JSON_HEADER_PREFIX.length());
+        }
+        return Util.getLong(buffer, 0);
+    }
+
     protected void recordSend(long sentEpochMicros) {
-        recorder.record(new Record(sentEpochMicros, clientId, true));
+        checkRecovery();
+        recordBuffer.recordSend(sentEpochMicros);
 //        Loader.LOGGER.fine("Published a message to topic \"" + topic + "\" (" + clientId + ").");
     }
 
-    protected void terminateTasks() {
-        if(!future.isDone()) {
-            cancelled = true;
-            future.cancel(false);
+    /**
+     * Called when a message cannot be sent, e.g., because the connection is lost.
+     * If reconnection is enabled, such messages are counted as unsent instead of being logged one by one.
+     */
+    protected void failedToPublish() {
+        if(isReconnectEnabled()) {
+            outageStats.countUnsent();
+        } else {
+            Loader.LOGGER.warning("Failed to publish (" + clientId + ").");
         }
+    }
 
-        service.shutdown();
-        try {
-            service.awaitTermination(1, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Pick the topic of a message to be sent now. Its index is set to currentTopicIndex,
+     * to be passed to countSentToTopic() when the message has been sent.
+     * @return Topic.
+     */
+    protected String nextTopic() {
+        currentTopicIndex = topicIndex;
+        topicIndex = topicGenerator.getNextIndex(currentTopicIndex);
+        return topics[currentTopicIndex];
+    }
+
+    /**
+     * Count a message that has been sent, i.e., completed for QoS 1 and 2, so that subscribers are expected to receive it.
+     * Messages that failed to be sent are not counted. This must be called by a single thread at a time,
+     * e.g., the thread of the publisher or the callback thread of an asynchronous client.
+     * @param topicIndex Index of the topic set to currentTopicIndex by nextTopic().
+     */
+    protected void countSentToTopic(int topicIndex) {
+        numSentPerTopic[topicIndex]++;
+    }
+
+    /**
+     * Add the number of messages sent to each topic. Must be called after this publisher stops.
+     * @param stats Counts to which the numbers are added.
+     * @param qos QoS of this publisher.
+     */
+    public void countSent(DeliveryStats stats, int qos) {
+        for(int i=0;i<topics.length;i++) {
+            if(numSentPerTopic[i] > 0) {
+                stats.addSent(topics[i], qos, numSentPerTopic[i]);
+            }
+        }
+    }
+
+    protected void terminateTasks() {
+        cancelled = true;
+        future.cancel(false);
+
+        if(ownService) {
+            service.shutdown();
+            try {
+                service.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        } else {
+            // The shared scheduler is shut down by Loader. Wait for the running task of this publisher only.
+            long deadline = System.currentTimeMillis() + Constants.SECOND_IN_MILLI;
+            while(running && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
         }
     }
 
+    /**
+     * Check whether a message can be sent without blocking the thread.
+     * @return False if the publisher should retry later, e.g., when its in-flight window is full.
+     */
+    protected boolean isWritable() {
+        return true;
+    }
+
     protected abstract void publish();
-    protected abstract boolean isConnected();
+
+    /**
+     * Message in flight of an asynchronous client, passed to its callbacks as the user context.
+     * Instances are reused, so that nothing is allocated per message to track it.
+     */
+    protected static class InflightMessage {
+        byte[] payload;
+        int topicIndex;
+    }
 }
@@ -18,32 +18,151 @@ package mqttloader.client;
 
 import static mqttloader.Constants.SUB_CLIENT_ID_PREFIX;
 
-import java.nio.ByteBuffer;
-import java.time.Instant;
+import mqttloader.BacklogStats;
+import mqttloader.Clock;
+import mqttloader.Constants;
 import mqttloader.Loader;
-import mqttloader.Record;
+import mqttloader.OutageStats;
+import mqttloader.RecordBuffer;
 import mqttloader.Recorder;
+import mqttloader.SequenceTracker;
 import mqttloader.Util;
 
 public abstract class AbstractSubscriber extends AbstractClient {
-    private Recorder recorder;
+    private final RecordBuffer recordBuffer;
+    private final boolean openLoop;
+    private final boolean textHeader;    // Whether payloads have the header in hex digits, given by the configuration shared with publishers.
+    private final int headerLength;    // Minimum length of payloads having the header, i.e., the send time and the intended send time in open-loop mode.
+    private final SequenceTracker sequenceTracker = new SequenceTracker();
+    private final BacklogStats backlogStats = new BacklogStats();
+    private volatile long reconnectEpochMicros = -1;    // Time when this subscriber started to reconnect. -1 if not reconnected.
+    protected long subscribeLatency = -1;
 
-    public AbstractSubscriber(int clientNumber, Recorder recorder) {
+    public AbstractSubscriber(int clientNumber, boolean openLoop, boolean textHeader, Recorder recorder) {
         super(SUB_CLIENT_ID_PREFIX + String.format("%05d", clientNumber));
-        this.recorder = recorder;
+        this.openLoop = openLoop;
+        this.textHeader = textHeader;
+        if(textHeader) {
+            // The publisher ID and the sequence number are always written in hex digits.
+            headerLength = Constants.PAYLOAD_JSON_HEADER_PREFIX.length() + 2*(openLoop ? Constants.PAYLOAD_OPEN_LOOP_SIZE : Constants.PAYLOAD_SEQUENCE_SIZE);
+        } else {
+            headerLength = openLoop ? Constants.PAYLOAD_OPEN_LOOP_SIZE : 8;
+        }
+        this.recordBuffer = recorder.createBuffer(clientNumber, clientId, false);
+    }
+
+    protected void recordReceive(String topic, byte[] payload, int qos) {
+        recordReceive(payload, 0, payload.length, qos);
+//        Loader.LOGGER.fine("Received a message on topic \"" + topic + "\" (" + clientId + ").");
     }
 
-    protected void recordReceive(String topic, byte[] payload) {
+    /**
+     * @param buffer Array having the payload, e.g., the input buffer of the connection.
+     * @param offset Index of the payload.
+     * @param length Length of the payload.
+     * @param qos QoS of the received message.
+     */
+    protected void recordReceive(byte[] buffer, int offset, int length, int qos) {
         // Skip if preparation has not been completed yet.
         if(Loader.measurementStartTime==null) {
             return;
         }
 
-        Instant receivedTime = Util.getCurrentTimeWithOffset();
-        long sentTime = ByteBuffer.wrap(payload).getLong();
+        checkRecovery();
+        if(length < headerLength) {
+            // Not sent by MQTTLoader with the same configuration, e.g., by other clients of the broker.
+            Loader.LOGGER.fine("Received a payload too short for the header (" + clientId + ").");
+            return;
+        }
+        long receivedEpochMicros = Clock.currentEpochMicros();
+        // JSON documents have the header in hex digits as their first member, while other payloads start with the header in binary.
+        int header = textHeader ? offset + Constants.PAYLOAD_JSON_HEADER_PREFIX.length() : offset;
+        long sentTime = textHeader ? Util.getHexLong(buffer, header) : Util.getLong(buffer, header);
 
-        recorder.record(new Record(sentTime, receivedTime, clientId, false));
-        Loader.lastRecvTime = receivedTime;
-//        Loader.LOGGER.fine("Received a message on topic \"" + topic + "\" (" + clientId + ").");
+        long latency = getLatency(receivedEpochMicros, sentTime);
+        long correctedLatency = -1;
+        if(openLoop) {
+            // Latency from the intended send time includes the delay of sending caused by stalls (coordinated omission).
+            correctedLatency = getLatency(receivedEpochMicros, textHeader ? Util.getHexLong(buffer, header+32) : Util.getLong(buffer, header+16));
+        }
+
+        recordBuffer.recordReceive(receivedEpochMicros, latency, correctedLatency);
+        long reconnected = reconnectEpochMicros;
+        if(reconnected >= 0 && sentTime < reconnected) {
+            // Sent while this subscriber was offline, and thus queued by the broker.
+            backlogStats.record(receivedEpochMicros - reconnected, latency);
+        }
+        payloadStats.recordReceived(length);
+        if(textHeader) {
+            sequenceTracker.record(Util.getHexInt(buffer, header+16), Util.getHexInt(buffer, header+24), qos);
+        } else if(length >= Constants.PAYLOAD_SEQUENCE_SIZE) {
+            sequenceTracker.record(Util.getInt(buffer, header+8), Util.getInt(buffer, header+12), qos);
+        }
+        Loader.lastRecvEpochMicros = receivedEpochMicros;
+    }
+
+    /**
+     * Disconnect from the broker, keeping the persistent session so that the broker queues messages for this subscriber.
+     */
+    public abstract void goOffline();
+
+    /**
+     * Reconnect to the broker after goOffline(), and receive the messages queued in the persistent session.
+     */
+    public void reconnect() {
+        reconnectEpochMicros = Clock.currentEpochMicros();
+        resumeSession();
+        disconnecting = false;
+    }
+
+    protected abstract void resumeSession();
+
+    @Override
+    protected void onReconnected() {
+        sequenceTracker.startEpoch();
+        // Avoid the receive timeout right after reconnection.
+        Loader.lastRecvEpochMicros = Clock.currentEpochMicros();
+    }
+
+    /**
+     * @return Outages of this subscriber, including the messages missed during them. Must be read after this subscriber is disconnected.
+     */
+    @Override
+    public OutageStats getOutageStats() {
+        OutageStats stats = new OutageStats();
+        stats.add(outageStats);
+        stats.addMissed(sequenceTracker.getNumMissedInOutages());
+        return stats;
+    }
+
+    /**
+     * @return Time from sending SUBSCRIBE until receiving SUBACK in microseconds. -1 if not subscribed.
+     */
+    public long getSubscribeLatency() {
+        return subscribeLatency;
+    }
+
+    /**
+     * @return Tracker of sequence numbers. Its counts must be read after this subscriber is disconnected.
+     */
+    public SequenceTracker getSequenceTracker() {
+        return sequenceTracker;
+    }
+
+    /**
+     * @return Messages received after reconnection that were queued by the broker. Must be read after this subscriber is disconnected.
+     */
+    public BacklogStats getBacklogStats() {
+        return backlogStats;
+    }
+
+    private long getLatency(long receivedEpochMicros, long sentEpochMicros) {
+        long latency = receivedEpochMicros - sentEpochMicros;
+        if(latency < 0) {
+            // If running MQTTLoader on multiple machines, a slight time error may cause a negative value of latency.
+            Loader.LOGGER.fine("Negative value of latency is converted to zero.");
+            return 0;
+        }
+        return latency;
     }
 }
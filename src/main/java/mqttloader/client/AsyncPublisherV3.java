@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import javax.net.SocketFactory;
+
+import mqttloader.Clock;
+import mqttloader.Loader;
+import mqttloader.PayloadGenerator;
+import mqttloader.Recorder;
+import mqttloader.TopicGenerator;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Publisher that does not wait for the completion of each PUBLISH.
+ * Up to maxInflight messages can be in flight at the same time.
+ */
+public class AsyncPublisherV3 extends AbstractPublisher implements IMqttActionListener, MqttCallback {
+    private MqttAsyncClient client;
+    private final MqttConnectOptions options = new MqttConnectOptions();
+    private final int qos;
+    private final boolean retain;
+    private Semaphore inflight;
+    private int maxInflight;
+    private ArrayBlockingQueue<InflightMessage> inflightPool;
+
+    public AsyncPublisherV3(int clientNumber, String broker, String userName, String password, SocketFactory socketFactory, int qos, boolean retain, TopicGenerator topicGenerator, PayloadGenerator payloadGenerator, int numMessage, int pubInterval, boolean openLoop, int maxInflight, Recorder recorder) {
+        super(clientNumber, topicGenerator, payloadGenerator, numMessage, pubInterval, openLoop, recorder);
+        this.qos = qos;
+        this.retain = retain;
+
+        options.setMqttVersion(4);
+        options.setCleanSession(true);
+        options.setMaxInflight(maxInflight);
+        if(userName != null) options.setUserName(userName);
+        if(password != null) options.setPassword(password.toCharArray());
+        if(socketFactory != null) {
+            options.setSocketFactory(socketFactory);
+        }
+        try {
+            client = new MqttAsyncClient(broker, clientId, new MemoryPersistence());
+            client.setCallback(this);
+            long connectStart = System.nanoTime();
+            IMqttToken token = client.connect(options);
+            token.waitForCompletion();
+            connectLatency = getElapsedMicros(connectStart);
+            Loader.LOGGER.info("Publisher " + clientId + " connected.");
+        } catch (MqttException e) {
+            Loader.LOGGER.warning("Publisher failed to connect (" + clientId + ").");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        this.maxInflight = maxInflight;
+        inflight = new Semaphore(maxInflight);
+        inflightPool = new ArrayBlockingQueue<>(maxInflight);
+        for(int i=0;i<maxInflight;i++) {
+            inflightPool.offer(new InflightMessage());
+        }
+    }
+
+    @Override
+    protected void publish() {
+        try {
+            inflight.acquire();
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        // Each in-flight message needs its own payload until its completion. They are reused, so that at most maxInflight payloads are allocated.
+        // If sizes vary, payloads are copied into arrays of their exact sizes, which are reused by trimPayload() instead.
+        // A permit of inflight guarantees a free InflightMessage.
+        InflightMessage inflightMessage = inflightPool.poll();
+        long sentEpochMicros = Clock.currentEpochMicros();
+        if(payloadGenerator.isFixedSize()) {
+            if(inflightMessage.payload == null) {
+                inflightMessage.payload = new byte[payloadGenerator.getMaxSize()];
+            }
+            genPayload(inflightMessage.payload, sentEpochMicros);
+        } else {
+            inflightMessage.payload = trimPayload(genPayload(sentEpochMicros));
+        }
+        MqttMessage message = new MqttMessage(inflightMessage.payload);
+        message.setQos(qos);
+        message.setRetained(retain);
+        try {
+            String topic = nextTopic();
+            inflightMessage.topicIndex = currentTopicIndex;
+            client.publish(topic, message, inflightMessage, this);
+        } catch (MqttException me) {
+            release(inflightMessage);
+            if(isReconnectEnabled()) {
+                // The connection may be lost after checking isConnected().
+                failedToPublish();
+                return;
+            }
+            me.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onSuccess(IMqttToken asyncActionToken) {
+        InflightMessage inflightMessage = (InflightMessage)asyncActionToken.getUserContext();
+        countSentToTopic(inflightMessage.topicIndex);
+        recordSend(getSentEpochMicros(inflightMessage.payload));
+        release(inflightMessage);
+    }
+
+    @Override
+    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+        release((InflightMessage)asyncActionToken.getUserContext());
+        failedToPublish();
+    }
+
+    private void release(InflightMessage inflightMessage) {
+        if(!payloadGenerator.isFixedSize()) {
+            releasePayload(inflightMessage.payload);
+            inflightMessage.payload = null;
+        }
+        inflightPool.offer(inflightMessage);
+        inflight.release();
+    }
+
+    @Override
+    protected boolean isWritable() {
+        return inflight.availablePermits() > 0;
+    }
+
+    @Override
+    public int getNumInflight() {
+        return maxInflight - inflight.availablePermits();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    @Override
+    public void disconnect() {
+        disconnecting = true;
+        terminateTasks();
+
+        if (client.isConnected()) {
+            try {
+                client.disconnect().waitForCompletion();
+                Loader.LOGGER.info("Publisher " + clientId + " disconnected.");
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    protected boolean tryReconnect() {
+        try {
+            client.connect(options).waitForCompletion();
+            return true;
+        } catch (MqttException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        onConnectionLost();
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) throws Exception {}
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader.client;
+
+import mqttloader.PayloadGenerator;
+import mqttloader.Recorder;
+import mqttloader.TopicGenerator;
+
+/**
+ * Implementation of MQTT clients behind AbstractPublisher and AbstractSubscriber.
+ * Settings common to all clients, e.g., the broker and the MQTT version, are given to the constructor of each engine.
+ * Clients connect to the broker in the create methods, which can be called by multiple threads in parallel.
+ */
+public interface ClientEngine {
+    AbstractPublisher createPublisher(int clientNumber, int qos, boolean retain, TopicGenerator topicGenerator, PayloadGenerator payloadGenerator, int numMessage, int pubInterval, boolean openLoop, Recorder recorder);
+
+    AbstractSubscriber createSubscriber(int clientNumber, int qos, boolean shSub, String topic, boolean persistentSession, boolean openLoop, boolean textHeader, Recorder recorder);
+
+    /**
+     * @return The number of bytes that publishers wrote to the sockets, i.e., MQTT packets without TCP/IP headers. -1 if not counted.
+     */
+    long getNumBytesSent();
+
+    /**
+     * Release the resources of this engine, e.g., its threads. Must be called after all clients are disconnected.
+     */
+    void close();
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import mqttloader.Constants;
+
+/**
+ * Thread that receives packets of many connections by a selector.
+ * Packets are sent by the threads of clients, e.g., publishers, and only the rest that cannot be written at once is sent by this thread.
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<NioConnection> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> writeRequests = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start receiving packets of the connection. Can be called by any thread.
+     */
+    void register(NioConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Send the rest of packets that could not be written at once. Can be called by any thread.
+     */
+    void requestWrite(NioConnection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastCheckNanos = System.nanoTime();
+        while(running) {
+            try {
+                selector.select(Constants.NIO_SELECT_TIMEOUT);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            NioConnection connection;
+            while((connection = registrations.poll()) != null) {
+                connection.onRegister(selector);
+            }
+            while((connection = writeRequests.poll()) != null) {
+                connection.enableWriteInterest();
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while(it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                connection = (NioConnection)key.attachment();
+                if(key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                if(key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            }
+
+            long now = System.nanoTime();
+            if(now - lastCheckNanos >= Constants.NIO_SELECT_TIMEOUT*Constants.MICROSECOND_IN_NANO*Constants.MILLISECOND_IN_MICRO) {
+                for(SelectionKey key: selector.keys()) {
+                    if(key.isValid()) {
+                        ((NioConnection)key.attachment()).checkKeepAlive(now);
+                    }
+                }
+                lastCheckNanos = now;
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
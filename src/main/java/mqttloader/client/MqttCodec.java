@@ -0,0 +1,296 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoder and decoder of the MQTT v3.1.1 and v5 packets used by NioConnection and the embedded broker.
+ * Packets are written into and read from byte arrays given by the caller, so that no object is allocated per message.
+ * Properties of v5 are not sent, except for Session Expiry Interval in CONNECT.
+ */
+public final class MqttCodec {
+    public static final int CONNECT = 1;
+    public static final int CONNACK = 2;
+    public static final int PUBLISH = 3;
+    public static final int PUBACK = 4;
+    public static final int PUBREC = 5;
+    public static final int PUBREL = 6;
+    public static final int PUBCOMP = 7;
+    public static final int SUBSCRIBE = 8;
+    public static final int SUBACK = 9;
+    public static final int UNSUBSCRIBE = 10;
+    public static final int UNSUBACK = 11;
+    public static final int PINGREQ = 12;
+    public static final int PINGRESP = 13;
+    public static final int DISCONNECT = 14;
+
+    private static final int PROP_SESSION_EXPIRY_INTERVAL = 0x11;
+    public static final int PROP_RECEIVE_MAXIMUM = 0x21;
+    public static final int PROP_TOPIC_ALIAS_MAXIMUM = 0x22;
+    public static final int PROP_TOPIC_ALIAS = 0x23;
+
+    static final byte[] EMPTY_TOPIC = new byte[0];    // Topic of PUBLISH that refers to the topic by its alias.
+
+    private MqttCodec() {}
+
+    public static int getType(int header) {
+        return header >> 4;
+    }
+
+    /**
+     * @return The number of bytes of the fixed header of a packet whose remaining length is the given one.
+     */
+    public static int getHeaderSize(int remainingLength) {
+        return 1 + getVarIntSize(remainingLength);
+    }
+
+    public static int getVarIntSize(int value) {
+        int size = 1;
+        while(value >= 128) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void writeVarInt(ByteBuffer buf, int value) {
+        do {
+            int b = value & 0x7f;
+            value >>>= 7;
+            if(value > 0) {
+                b |= 0x80;
+            }
+            buf.put((byte)b);
+        } while(value > 0);
+    }
+
+    /**
+     * Read a variable byte integer.
+     * @param buf Array having the integer.
+     * @param offset Index of the first byte.
+     * @param limit End index of the readable bytes.
+     * @return The value in the lower 32 bits and the index after it in the upper 32 bits, or -1 if the integer is incomplete.
+     * @throws IOException If the integer is longer than 4 bytes.
+     */
+    public static long readVarInt(byte[] buf, int offset, int limit) throws IOException {
+        int value = 0;
+        for(int i=0;i<4;i++) {
+            if(offset+i >= limit) {
+                return -1;
+            }
+            int b = buf[offset+i] & 0xff;
+            value |= (b & 0x7f) << (7*i);
+            if((b & 0x80) == 0) {
+                return (long)(offset+i+1) << 32 | value;
+            }
+        }
+        throw new IOException("Malformed variable byte integer.");
+    }
+
+    public static int readUnsignedShort(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) << 8 | (buf[offset+1] & 0xff);
+    }
+
+    static void writeString(ByteBuffer buf, byte[] str) {
+        buf.putShort((short)str.length);
+        buf.put(str);
+    }
+
+    static byte[] encodeString(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static int getConnectSize(int version, byte[] clientId, byte[] userName, byte[] password, long sessionExpiry) {
+        int length = getConnectRemainingLength(version, clientId, userName, password, sessionExpiry);
+        return getHeaderSize(length) + length;
+    }
+
+    private static int getConnectRemainingLength(int version, byte[] clientId, byte[] userName, byte[] password, long sessionExpiry) {
+        int length = 10 + 2 + clientId.length;
+        if(version == 5) {
+            length += sessionExpiry > 0 ? 6 : 1;
+        }
+        if(userName != null) {
+            length += 2 + userName.length;
+        }
+        if(password != null) {
+            length += 2 + password.length;
+        }
+        return length;
+    }
+
+    static void writeConnect(ByteBuffer buf, int version, byte[] clientId, byte[] userName, byte[] password, boolean cleanStart, long sessionExpiry, int keepAlive) {
+        buf.put((byte)(CONNECT << 4));
+        writeVarInt(buf, getConnectRemainingLength(version, clientId, userName, password, sessionExpiry));
+        buf.putShort((short)4);
+        buf.put((byte)'M').put((byte)'Q').put((byte)'T').put((byte)'T');
+        buf.put((byte)(version == 5 ? 5 : 4));
+        int flags = cleanStart ? 0x02 : 0;
+        if(userName != null) {
+            flags |= 0x80;
+        }
+        if(password != null) {
+            flags |= 0x40;
+        }
+        buf.put((byte)flags);
+        buf.putShort((short)keepAlive);
+        if(version == 5) {
+            if(sessionExpiry > 0) {
+                writeVarInt(buf, 5);
+                buf.put((byte)PROP_SESSION_EXPIRY_INTERVAL);
+                buf.putInt((int)sessionExpiry);
+            } else {
+                writeVarInt(buf, 0);
+            }
+        }
+        writeString(buf, clientId);
+        if(userName != null) {
+            writeString(buf, userName);
+        }
+        if(password != null) {
+            writeString(buf, password);
+        }
+    }
+
+    static int getSubscribeSize(int version, byte[] filter) {
+        int length = getSubscribeRemainingLength(version, filter);
+        return getHeaderSize(length) + length;
+    }
+
+    private static int getSubscribeRemainingLength(int version, byte[] filter) {
+        return 2 + (version == 5 ? 1 : 0) + 2 + filter.length + 1;
+    }
+
+    static void writeSubscribe(ByteBuffer buf, int version, int packetId, byte[] filter, int qos) {
+        buf.put((byte)(SUBSCRIBE << 4 | 0x02));
+        writeVarInt(buf, getSubscribeRemainingLength(version, filter));
+        buf.putShort((short)packetId);
+        if(version == 5) {
+            writeVarInt(buf, 0);
+        }
+        writeString(buf, filter);
+        buf.put((byte)qos);
+    }
+
+    /**
+     * @param topicAlias Topic Alias of v5. 0 if not used.
+     */
+    static int getPublishSize(int version, byte[] topic, int topicAlias, int qos, int payloadLength) {
+        int length = getPublishRemainingLength(version, topic, topicAlias, qos, payloadLength);
+        return getHeaderSize(length) + length;
+    }
+
+    private static int getPublishRemainingLength(int version, byte[] topic, int topicAlias, int qos, int payloadLength) {
+        int length = 2 + topic.length + (qos > 0 ? 2 : 0) + payloadLength;
+        if(version == 5) {
+            length += topicAlias > 0 ? 4 : 1;
+        }
+        return length;
+    }
+
+    /**
+     * @param topic Topic name. EMPTY_TOPIC if the topic is given only by topicAlias.
+     * @param topicAlias Topic Alias of v5. 0 if not used.
+     */
+    static void writePublish(ByteBuffer buf, int version, byte[] topic, int topicAlias, int qos, boolean retain, int packetId, byte[] payload, int payloadLength) {
+        buf.put((byte)(PUBLISH << 4 | qos << 1 | (retain ? 1 : 0)));
+        writeVarInt(buf, getPublishRemainingLength(version, topic, topicAlias, qos, payloadLength));
+        writeString(buf, topic);
+        if(qos > 0) {
+            buf.putShort((short)packetId);
+        }
+        if(version == 5) {
+            if(topicAlias > 0) {
+                writeVarInt(buf, 3);
+                buf.put((byte)PROP_TOPIC_ALIAS);
+                buf.putShort((short)topicAlias);
+            } else {
+                writeVarInt(buf, 0);
+            }
+        }
+        buf.put(payload, 0, payloadLength);
+    }
+
+    /**
+     * Write PUBACK, PUBREC, PUBREL or PUBCOMP without reason code, which means success in v5.
+     */
+    public static void writeAck(ByteBuffer buf, int type, int packetId) {
+        buf.put((byte)(type << 4 | (type == PUBREL ? 0x02 : 0)));
+        buf.put((byte)2);
+        buf.putShort((short)packetId);
+    }
+
+    public static void writeEmpty(ByteBuffer buf, int type) {
+        buf.put((byte)(type << 4));
+        buf.put((byte)0);
+    }
+
+    /**
+     * Find a property of two byte integer, e.g., Receive Maximum in CONNACK or Topic Alias in PUBLISH of v5.
+     * @param offset Index of the property length.
+     * @param limit Index after the packet.
+     * @param id Identifier of the property.
+     * @return Value of the property, or 0 if not found.
+     * @throws IOException If the properties are malformed.
+     */
+    public static int readTwoByteProperty(byte[] buf, int offset, int limit, int id) throws IOException {
+        long var = readVarInt(buf, offset, limit);
+        if(var < 0) {
+            return 0;
+        }
+        int i = (int)(var >>> 32);
+        int end = Math.min(i + (int)var, limit);
+        while(i < end) {
+            int found = buf[i++] & 0xff;
+            if(found == id) {
+                return readUnsignedShort(buf, i);
+            }
+            i = skipProperty(buf, found, i, end);
+        }
+        return 0;
+    }
+
+    /**
+     * @return Index after the value of the property.
+     */
+    private static int skipProperty(byte[] buf, int id, int offset, int limit) throws IOException {
+        switch(id) {
+            case 0x01: case 0x17: case 0x19: case 0x24: case 0x25: case 0x28: case 0x29: case 0x2A:
+                return offset + 1;
+            case 0x13: case 0x21: case 0x22: case 0x23:
+                return offset + 2;
+            case 0x02: case 0x11: case 0x18: case 0x27:
+                return offset + 4;
+            case 0x0B:
+                long var = readVarInt(buf, offset, limit);
+                if(var < 0) {
+                    throw new IOException("Malformed property.");
+                }
+                return (int)(var >>> 32);
+            case 0x03: case 0x08: case 0x09: case 0x12: case 0x15: case 0x16: case 0x1A: case 0x1C: case 0x1F:
+                return offset + 2 + readUnsignedShort(buf, offset);
+            case 0x26:
+                int next = offset + 2 + readUnsignedShort(buf, offset);
+                return next + 2 + readUnsignedShort(buf, next);
+            default:
+                throw new IOException("Unknown property: " + id);
+        }
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+import mqttloader.Constants;
+
+/**
+ * MQTT connection over a non-blocking socket channel, whose packets are received by an event loop shared with other connections.
+ * Connecting and subscribing are done in blocking mode by the calling thread, and then the channel is handed over to the event loop.
+ * Packets are encoded into a buffer allocated once per connection and written by the sending thread. If the socket cannot take all of them,
+ * the rest is written by the event loop.
+ */
+class NioConnection {
+    /**
+     * Receiver of the packets and the events of a connection.
+     */
+    interface Handler {
+        /**
+         * Called for each packet except CONNACK, SUBACK and PINGRESP, by the event loop or by the thread connecting in blocking mode.
+         * @param header The first byte of the fixed header.
+         * @param buf Array having the packet. It is reused for the following packets.
+         * @param offset Index of the variable header.
+         * @param length Remaining length of the packet.
+         */
+        void onPacket(int header, byte[] buf, int offset, int length) throws IOException;
+
+        /**
+         * Called when the connection is closed, whether on purpose or not.
+         */
+        void onClosed();
+    }
+
+    private final EventLoop loop;
+    private final InetSocketAddress address;
+    private final int version;
+    private final byte[] userName;
+    private final byte[] password;
+    private final Handler handler;
+    private final LongAdder bytesSent;
+    private final Object writeLock = new Object();
+    private volatile SocketChannel channel = null;    // Changed with writeLock held. null if closed.
+    private volatile SelectionKey key = null;    // Changed with writeLock held. null if closed or not registered yet.
+    private ByteBuffer in = ByteBuffer.allocate(Constants.NIO_BUFFER_SIZE);
+    private ByteBuffer out = ByteBuffer.allocate(Constants.NIO_BUFFER_SIZE);    // Guarded by writeLock.
+    private boolean writePending = false;    // Guarded by writeLock. True if the event loop is writing the rest of out.
+    private volatile int numPendingBytes = 0;
+    private volatile boolean open = false;
+    private volatile long lastSentNanos;
+    private int connAckCode;
+    private int subAckCode;
+    private int receiveMaximum = 0;
+    private int topicAliasMaximum = 0;
+    private volatile int generation = 0;
+
+    /**
+     * @param bytesSent Counter of bytes written to the socket. null if not counted.
+     */
+    NioConnection(EventLoop loop, InetSocketAddress address, int version, String userName, String password, Handler handler, LongAdder bytesSent) {
+        this.loop = loop;
+        this.address = address;
+        this.version = version;
+        this.userName = userName != null ? MqttCodec.encodeString(userName) : null;
+        this.password = password != null ? MqttCodec.encodeString(password) : null;
+        this.handler = handler;
+        this.bytesSent = bytesSent;
+    }
+
+    /**
+     * Connect to the broker and wait for CONNACK in blocking mode. start() must be called after it.
+     * @param clientId Client ID.
+     * @param cleanStart Clean session of v3.1.1 or clean start of v5.
+     * @param sessionExpiry Session Expiry Interval of v5 in seconds.
+     * @throws IOException If failed to connect or the broker refused it.
+     */
+    void connect(String clientId, boolean cleanStart, long sessionExpiry) throws IOException {
+        SocketChannel ch = SocketChannel.open();
+        try {
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ch.connect(address);
+            in.clear();
+            connAckCode = -1;
+            byte[] id = MqttCodec.encodeString(clientId);
+            synchronized (writeLock) {
+                channel = ch;
+                out.clear();
+                writePending = false;
+                reserve(MqttCodec.getConnectSize(version, id, userName, password, sessionExpiry));
+                MqttCodec.writeConnect(out, version, id, userName, password, cleanStart, sessionExpiry, Constants.KEEP_ALIVE_INTERVAL);
+                flush();
+            }
+            while(connAckCode < 0) {
+                readBlocking();
+            }
+            if(connAckCode != 0) {
+                throw new IOException("Connection refused by the broker: " + connAckCode);
+            }
+            generation++;
+        } catch (IOException e) {
+            synchronized (writeLock) {
+                channel = null;
+            }
+            ch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Subscribe to a topic filter and wait for SUBACK in blocking mode. Must be called between connect() and start().
+     * @throws IOException If failed to subscribe or the broker refused it.
+     */
+    void subscribe(String filter, int qos) throws IOException {
+        byte[] encoded = MqttCodec.encodeString(filter);
+        subAckCode = -1;
+        synchronized (writeLock) {
+            reserve(MqttCodec.getSubscribeSize(version, encoded));
+            MqttCodec.writeSubscribe(out, version, 1, encoded, qos);
+            flush();
+        }
+        while(subAckCode < 0) {
+            readBlocking();
+        }
+        if(subAckCode >= 0x80) {
+            throw new IOException("Subscription refused by the broker: " + subAckCode);
+        }
+    }
+
+    /**
+     * Hand over the connection to the event loop.
+     * @throws IOException If the channel is closed.
+     */
+    void start() throws IOException {
+        SocketChannel ch;
+        synchronized (writeLock) {
+            ch = channel;
+        }
+        if(ch == null) {
+            throw new EOFException("Connection closed.");
+        }
+        ch.configureBlocking(false);
+        open = true;
+        loop.register(this);
+    }
+
+    /**
+     * Send DISCONNECT and close the connection.
+     */
+    void disconnect() {
+        if(!sendEmpty(MqttCodec.DISCONNECT)) {
+            return;
+        }
+        // The rest of the packets may be written by the event loop.
+        long deadline = System.currentTimeMillis() + Constants.NIO_DISCONNECT_TIMEOUT;
+        while(numPendingBytes > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Close the connection and notify the handler. Does nothing if already closed.
+     */
+    void close() {
+        SocketChannel ch;
+        SelectionKey k;
+        synchronized (writeLock) {
+            ch = channel;
+            if(ch == null) {
+                return;
+            }
+            channel = null;
+            // Cleared together with the channel, so that a key seen with writeLock held is not the one of a closed channel.
+            k = key;
+            key = null;
+            writePending = false;
+            numPendingBytes = 0;
+        }
+        open = false;
+        if(k != null) {
+            k.cancel();
+        }
+        try {
+            ch.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        handler.onClosed();
+    }
+
+    /**
+     * @return true if connected and handed over to the event loop.
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return false if the socket is not taking packets as fast as they are sent, and thus the sender should wait.
+     */
+    boolean isWritable() {
+        return numPendingBytes < Constants.NIO_BUFFER_SIZE;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return Receive Maximum advertised by the broker in CONNACK of v5. 0 if not advertised.
+     */
+    int getReceiveMaximum() {
+        return receiveMaximum;
+    }
+
+    /**
+     * @return Topic Alias Maximum advertised by the broker in CONNACK of v5. 0 if not advertised, i.e., topic aliases cannot be used.
+     */
+    int getTopicAliasMaximum() {
+        return topicAliasMaximum;
+    }
+
+    /**
+     * @return The number of successful connections. Topic aliases are valid only in the connection where they are sent with the topic.
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param topic Topic name. MqttCodec.EMPTY_TOPIC if the topic is given only by topicAlias.
+     * @param topicAlias Topic Alias of v5. 0 if not used.
+     * @return false if the connection is closed.
+     */
+    boolean sendPublish(byte[] topic, int topicAlias, int qos, boolean retain, int packetId, byte[] payload, int payloadLength) {
+        boolean failed;
+        synchronized (writeLock) {
+            if(channel == null) {
+                return false;
+            }
+            reserve(MqttCodec.getPublishSize(version, topic, topicAlias, qos, payloadLength));
+            MqttCodec.writePublish(out, version, topic, topicAlias, qos, retain, packetId, payload, payloadLength);
+            failed = !tryFlush();
+        }
+        if(failed) {
+            close();
+        }
+        return !failed;
+    }
+
+    /**
+     * Send PUBACK, PUBREC, PUBREL or PUBCOMP.
+     * @return false if the connection is closed.
+     */
+    boolean sendAck(int type, int packetId) {
+        boolean failed;
+        synchronized (writeLock) {
+            if(channel == null) {
+                return false;
+            }
+            reserve(4);
+            MqttCodec.writeAck(out, type, packetId);
+            failed = !tryFlush();
+        }
+        if(failed) {
+            close();
+        }
+        return !failed;
+    }
+
+    private boolean sendEmpty(int type) {
+        boolean failed;
+        synchronized (writeLock) {
+            if(channel == null) {
+                return false;
+            }
+            reserve(2);
+            MqttCodec.writeEmpty(out, type);
+            failed = !tryFlush();
+        }
+        if(failed) {
+            close();
+        }
+        return !failed;
+    }
+
+    /**
+     * Called by the event loop to send PINGREQ if nothing has been sent for a while.
+     */
+    void checkKeepAlive(long nowNanos) {
+        if(open && nowNanos - lastSentNanos >= Constants.KEEP_ALIVE_INTERVAL*Constants.SECOND_IN_NANO/2) {
+            sendEmpty(MqttCodec.PINGREQ);
+        }
+    }
+
+    /**
+     * Called by the event loop.
+     */
+    void onRegister(Selector selector) {
+        try {
+            synchronized (writeLock) {
+                if(channel == null) {
+                    return;
+                }
+                key = channel.register(selector, writePending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ, this);
+            }
+            // Packets may have been received together with CONNACK or SUBACK.
+            processInput();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Called by the event loop.
+     */
+    void onReadable() {
+        try {
+            SocketChannel ch = channel;
+            if(ch == null || ch.read(in) < 0) {
+                close();
+                return;
+            }
+            processInput();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Called by the event loop.
+     */
+    void onWritable() {
+        boolean failed = false;
+        synchronized (writeLock) {
+            if(channel == null || key == null) {
+                return;
+            }
+            try {
+                write();
+                if(out.position() == 0) {
+                    writePending = false;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+        if(failed) {
+            close();
+        }
+    }
+
+    /**
+     * Called by the event loop.
+     */
+    void enableWriteInterest() {
+        synchronized (writeLock) {
+            SelectionKey k = key;
+            if(writePending && k != null && k.isValid()) {
+                k.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void readBlocking() throws IOException {
+        if(channel.read(in) < 0) {
+            throw new EOFException("Connection closed by the broker.");
+        }
+        processInput();
+    }
+
+    /**
+     * Dispatch the complete packets in the input buffer, and keep the incomplete one at the head of it.
+     */
+    private void processInput() throws IOException {
+        byte[] buf = in.array();
+        int limit = in.position();
+        int pos = 0;
+        int required = 0;
+        while(limit - pos >= 2) {
+            long var = MqttCodec.readVarInt(buf, pos+1, limit);
+            if(var < 0) {
+                break;
+            }
+            int start = (int)(var >>> 32);
+            int length = (int)var;
+            if(limit - start < length) {
+                required = start - pos + length;
+                break;
+            }
+            dispatch(buf[pos] & 0xff, buf, start, length);
+            pos = start + length;
+        }
+
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        in.position(limit - pos);
+        if(required > in.capacity()) {
+            // The buffer is enlarged only for a packet larger than it.
+            ByteBuffer larger = ByteBuffer.allocate(required);
+            larger.put(buf, 0, limit - pos);
+            in = larger;
+        }
+    }
+
+    private void dispatch(int header, byte[] buf, int offset, int length) throws IOException {
+        switch(MqttCodec.getType(header)) {
+            case MqttCodec.CONNACK:
+                connAckCode = buf[offset+1] & 0xff;
+                if(version == 5 && connAckCode == 0) {
+                    receiveMaximum = MqttCodec.readTwoByteProperty(buf, offset+2, offset+length, MqttCodec.PROP_RECEIVE_MAXIMUM);
+                    topicAliasMaximum = MqttCodec.readTwoByteProperty(buf, offset+2, offset+length, MqttCodec.PROP_TOPIC_ALIAS_MAXIMUM);
+                }
+                break;
+            case MqttCodec.SUBACK:
+                subAckCode = buf[offset+length-1] & 0xff;
+                break;
+            case MqttCodec.PINGRESP:
+                break;
+            case MqttCodec.DISCONNECT:
+                throw new EOFException("Disconnected by the broker.");
+            default:
+                handler.onPacket(header, buf, offset, length);
+        }
+    }
+
+    /**
+     * Must be called with writeLock held.
+     */
+    private void reserve(int size) {
+        if(out.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity()*2, out.position() + size));
+            out.flip();
+            larger.put(out);
+            out = larger;
+        }
+    }
+
+    /**
+     * Write the output buffer to the socket, and let the event loop write the rest if any. Must be called with writeLock held.
+     */
+    private void flush() throws IOException {
+        if(writePending) {
+            // Packets are written in order by the event loop.
+            numPendingBytes = out.position();
+            return;
+        }
+        write();
+        if(out.position() > 0) {
+            writePending = true;
+            loop.requestWrite(this);
+        }
+    }
+
+    private boolean tryFlush() {
+        try {
+            flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Must be called with writeLock held.
+     */
+    private void write() throws IOException {
+        out.flip();
+        try {
+            if(out.hasRemaining()) {
+                int written = channel.write(out);
+                if(bytesSent != null) {
+                    bytesSent.add(written);
+                }
+                lastSentNanos = System.nanoTime();
+            }
+        } finally {
+            out.compact();
+            numPendingBytes = out.position();
+        }
+    }
+}
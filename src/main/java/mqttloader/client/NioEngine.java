@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import mqttloader.Constants;
+import mqttloader.PayloadGenerator;
+import mqttloader.Recorder;
+import mqttloader.TopicGenerator;
+
+/**
+ * Engine of clients using non-blocking sockets. Connections are multiplexed on a small number of event loops,
+ * and packets are encoded and decoded without allocation per message. TLS is not supported.
+ * Publishers do not wait for the completion of each PUBLISH, and up to maxInflight messages of QoS 1 and 2 can be in flight.
+ */
+public class NioEngine implements ClientEngine {
+    private final InetSocketAddress address;
+    private final int version;
+    private final String userName;
+    private final String password;
+    private final int maxInflight;
+    private final boolean topicAlias;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final LongAdder publisherBytes = new LongAdder();
+
+    /**
+     * @param broker Broker URL in the form of "tcp://host:port".
+     * @param topicAlias If true, publishers of v5 use topic aliases up to Topic Alias Maximum advertised by the broker.
+     * @param numThreads The number of event loops.
+     * @throws IOException If failed to open selectors.
+     */
+    public NioEngine(String broker, int version, String userName, String password, int maxInflight, boolean topicAlias, int numThreads) throws IOException {
+        String hostPort = broker.substring(Constants.BROKER_PREFIX_TCP.length());
+        int colon = hostPort.lastIndexOf(':');
+        this.address = new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon+1)));
+        this.version = version;
+        this.userName = userName;
+        this.password = password;
+        this.maxInflight = maxInflight;
+        this.topicAlias = topicAlias;
+        loops = new EventLoop[numThreads];
+        for(int i=0;i<numThreads;i++) {
+            loops[i] = new EventLoop("mqttloader-nio-" + i);
+        }
+    }
+
+    @Override
+    public AbstractPublisher createPublisher(int clientNumber, int qos, boolean retain, TopicGenerator topicGenerator, PayloadGenerator payloadGenerator, int numMessage, int pubInterval, boolean openLoop, Recorder recorder) {
+        return new NioPublisher(this, clientNumber, qos, retain, topicGenerator, payloadGenerator, numMessage, pubInterval, openLoop, maxInflight, topicAlias, recorder);
+    }
+
+    @Override
+    public AbstractSubscriber createSubscriber(int clientNumber, int qos, boolean shSub, String topic, boolean persistentSession, boolean openLoop, boolean textHeader, Recorder recorder) {
+        return new NioSubscriber(this, clientNumber, qos, shSub, topic, persistentSession, openLoop, textHeader, recorder);
+    }
+
+    /**
+     * Create a connection on one of the event loops, which are assigned in round robin.
+     * @param isPublisher If true, bytes written to the connection are counted in getNumBytesSent().
+     */
+    NioConnection createConnection(NioConnection.Handler handler, boolean isPublisher) {
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        return new NioConnection(loop, address, version, userName, password, handler, isPublisher ? publisherBytes : null);
+    }
+
+    @Override
+    public long getNumBytesSent() {
+        return publisherBytes.sum();
+    }
+
+    @Override
+    public void close() {
+        for(EventLoop loop: loops) {
+            loop.close();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import mqttloader.Clock;
+import mqttloader.Constants;
+import mqttloader.Loader;
+import mqttloader.PayloadGenerator;
+import mqttloader.Recorder;
+import mqttloader.TopicGenerator;
+
+/**
+ * Publisher of NioEngine. Messages are encoded into the output buffer of the connection by the thread of this publisher,
+ * and their completion (PUBACK or PUBCOMP) is received by the event loop.
+ * Up to maxInflight messages of QoS 1 and 2 can be in flight at the same time. If the broker advertises Receive Maximum in CONNACK, the smaller one is used.
+ * If topic aliases are enabled, aliases are assigned to topics in the order of their first messages, up to Topic Alias Maximum advertised by the broker.
+ * The first message of each topic in a connection has both the topic and its alias, and the following ones have only the alias.
+ */
+public class NioPublisher extends AbstractPublisher implements NioConnection.Handler {
+    private final NioConnection connection;
+    private final int qos;
+    private final boolean retain;
+    private int maxInflight;
+    private final Semaphore inflight;
+    private final Object idLock = new Object();
+    private final int[] freeIds;    // Stack of packet IDs not in flight, guarded by idLock.
+    private int numFreeIds;
+    private final long[] sentTimes;    // Indexed by (packet ID - 1), guarded by idLock. -1 if not in flight.
+    private final int[] topicIndexes;    // Indexed by (packet ID - 1), guarded by idLock.
+    private final boolean topicAlias;
+    private final Map<String, TopicEntry> topicEntries = new HashMap<>();
+    private int numAliases = 0;
+
+    public NioPublisher(NioEngine engine, int clientNumber, int qos, boolean retain, TopicGenerator topicGenerator, PayloadGenerator payloadGenerator, int numMessage, int pubInterval, boolean openLoop, int maxInflight, boolean topicAlias, Recorder recorder) {
+        super(clientNumber, topicGenerator, payloadGenerator, numMessage, pubInterval, openLoop, recorder);
+        this.qos = qos;
+        this.retain = retain;
+        this.topicAlias = topicAlias;
+        this.maxInflight = maxInflight;
+        inflight = new Semaphore(maxInflight);
+        freeIds = new int[maxInflight];
+        sentTimes = new long[maxInflight];
+        topicIndexes = new int[maxInflight];
+        for(int i=0;i<maxInflight;i++) {
+            freeIds[i] = maxInflight - i;
+            sentTimes[i] = -1;
+        }
+        numFreeIds = maxInflight;
+
+        connection = engine.createConnection(this, true);
+        try {
+            long connectStart = System.nanoTime();
+            connection.connect(clientId, true, 0);
+            connectLatency = getElapsedMicros(connectStart);
+            connection.start();
+            Loader.LOGGER.info("Publisher " + clientId + " connected.");
+        } catch (IOException e) {
+            Loader.LOGGER.warning("Publisher failed to connect (" + clientId + ").");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        int receiveMaximum = connection.getReceiveMaximum();
+        if(receiveMaximum > 0 && receiveMaximum < maxInflight) {
+            inflight.acquireUninterruptibly(maxInflight - receiveMaximum);
+            this.maxInflight = receiveMaximum;
+            Loader.LOGGER.info("Maximum in-flight messages is limited to " + receiveMaximum + " by the broker (" + clientId + ").");
+        }
+    }
+
+    @Override
+    protected void publish() {
+        TopicEntry entry = getTopicEntry(nextTopic());
+        byte[] topic = entry.encoded;
+        int alias = 0;
+        if(entry.alias > 0 && entry.alias <= connection.getTopicAliasMaximum()) {
+            alias = entry.alias;
+            int generation = connection.getGeneration();
+            if(entry.generation == generation) {
+                topic = MqttCodec.EMPTY_TOPIC;
+            } else {
+                // The broker forgets aliases when the connection is lost.
+                entry.generation = generation;
+            }
+        }
+
+        if(qos == 0) {
+            long sentEpochMicros = Clock.currentEpochMicros();
+            byte[] payload = genPayload(sentEpochMicros);
+            if(connection.sendPublish(topic, alias, 0, retain, 0, payload, payloadLength)) {
+                countSentToTopic(currentTopicIndex);
+                recordSend(sentEpochMicros);
+            } else {
+                failedToPublish();
+            }
+            return;
+        }
+
+        try {
+            inflight.acquire();
+        } catch (InterruptedException e) {
+            return;
+        }
+        long sentEpochMicros = Clock.currentEpochMicros();
+        int packetId;
+        synchronized (idLock) {
+            packetId = freeIds[--numFreeIds];
+            sentTimes[packetId-1] = sentEpochMicros;
+            topicIndexes[packetId-1] = currentTopicIndex;
+        }
+        // The payload is copied into the output buffer, so that the same array can be reused for every message.
+        byte[] payload = genPayload(sentEpochMicros);
+        if(!connection.sendPublish(topic, alias, qos, retain, packetId, payload, payloadLength)) {
+            if(complete(packetId) >= 0) {
+                failedToPublish();
+            }
+        }
+    }
+
+    private int getTopicIndex(int packetId) {
+        synchronized (idLock) {
+            return packetId >= 1 && packetId <= topicIndexes.length ? topicIndexes[packetId-1] : -1;
+        }
+    }
+
+    /**
+     * Make the packet ID available again.
+     * @return Send time of the message. -1 if the packet ID is not in flight, e.g., if the message has been failed by closing the connection.
+     */
+    private long complete(int packetId) {
+        long sentTime;
+        synchronized (idLock) {
+            if(packetId < 1 || packetId > sentTimes.length || sentTimes[packetId-1] < 0) {
+                return -1;
+            }
+            sentTime = sentTimes[packetId-1];
+            sentTimes[packetId-1] = -1;
+            freeIds[numFreeIds++] = packetId;
+        }
+        inflight.release();
+        return sentTime;
+    }
+
+    private TopicEntry getTopicEntry(String topic) {
+        TopicEntry entry = topicEntries.get(topic);
+        if(entry == null) {
+            entry = new TopicEntry(MqttCodec.encodeString(topic));
+            if(topicAlias && numAliases < connection.getTopicAliasMaximum()) {
+                entry.alias = ++numAliases;
+            }
+            topicEntries.put(topic, entry);
+        }
+        return entry;
+    }
+
+    @Override
+    public void onPacket(int header, byte[] buf, int offset, int length) {
+        int type = MqttCodec.getType(header);
+        if(type != MqttCodec.PUBACK && type != MqttCodec.PUBREC && type != MqttCodec.PUBCOMP) {
+            return;
+        }
+        int packetId = MqttCodec.readUnsignedShort(buf, offset);
+        int reasonCode = length > 2 ? buf[offset+2] & 0xff : 0;
+        if(reasonCode >= 0x80) {
+            if(complete(packetId) >= 0) {
+                failedToPublish();
+            }
+        } else if(type == MqttCodec.PUBREC) {
+            connection.sendAck(MqttCodec.PUBREL, packetId);
+        } else {
+            int topicIndex = getTopicIndex(packetId);
+            long sentTime = complete(packetId);
+            if(sentTime >= 0) {
+                countSentToTopic(topicIndex);
+                recordSend(sentTime);
+            }
+        }
+    }
+
+    @Override
+    public void onClosed() {
+        for(int i=0;i<sentTimes.length;i++) {
+            if(complete(i+1) >= 0) {
+                failedToPublish();
+            }
+        }
+        onConnectionLost();
+    }
+
+    @Override
+    protected boolean isWritable() {
+        return connection.isWritable() && (qos == 0 || inflight.availablePermits() > 0);
+    }
+
+    @Override
+    public int getNumInflight() {
+        return qos == 0 ? 0 : maxInflight - inflight.availablePermits();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connection.isOpen();
+    }
+
+    @Override
+    public void disconnect() {
+        disconnecting = true;
+        terminateTasks();
+
+        if(connection.isOpen()) {
+            // Wait for the completion of messages in flight.
+            long deadline = System.currentTimeMillis() + Constants.NIO_DISCONNECT_TIMEOUT;
+            while(getNumInflight() > 0 && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+            connection.disconnect();
+            Loader.LOGGER.info("Publisher " + clientId + " disconnected.");
+        }
+    }
+
+    @Override
+    protected boolean tryReconnect() {
+        try {
+            connection.connect(clientId, true, 0);
+            connection.start();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Encoded topic and its alias, used only by the thread of this publisher.
+     */
+    private static class TopicEntry {
+        private final byte[] encoded;
+        private int alias = 0;    // 0 if no alias is assigned.
+        private int generation = -1;    // Generation of the connection in which the topic was sent with the alias.
+
+        private TopicEntry(byte[] encoded) {
+            this.encoded = encoded;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader.client;
+
+import java.io.IOException;
+
+import mqttloader.Constants;
+import mqttloader.Loader;
+import mqttloader.Recorder;
+
+/**
+ * Subscriber of NioEngine. Messages are received by the event loop and recorded directly from its input buffer.
+ */
+public class NioSubscriber extends AbstractSubscriber implements NioConnection.Handler {
+    private final NioConnection connection;
+    private final boolean persistentSession;
+    private final long sessionExpiry;
+    private final String topic;
+    private final int qos;
+
+    public NioSubscriber(NioEngine engine, int clientNumber, int qos, boolean shSub, String topic, boolean persistentSession, boolean openLoop, boolean textHeader, Recorder recorder) {
+        super(clientNumber, openLoop, textHeader, recorder);
+        connection = engine.createConnection(this, false);
+        this.persistentSession = persistentSession;
+        this.sessionExpiry = persistentSession && connection.getVersion() == 5 ? Constants.SESSION_EXPIRY_INTERVAL : 0;
+        this.topic = shSub && connection.getVersion() == 5 ? "$share/mqttload/"+topic : topic;
+        this.qos = qos;
+        try {
+            long connectStart = System.nanoTime();
+            connection.connect(clientId, !persistentSession, sessionExpiry);
+            connectLatency = getElapsedMicros(connectStart);
+            Loader.LOGGER.info("Subscriber " + clientId + " connected.");
+            long subscribeStart = System.nanoTime();
+            connection.subscribe(this.topic, qos);
+            subscribeLatency = getElapsedMicros(subscribeStart);
+            Loader.LOGGER.info("Subscribed to topic \"" + this.topic + "\" with QoS " + qos + " (" + clientId + ").");
+            connection.start();
+        } catch (IOException e) {
+            Loader.LOGGER.warning("Subscriber failed to connect (" + clientId + ").");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    @Override
+    public void onPacket(int header, byte[] buf, int offset, int length) throws IOException {
+        switch(MqttCodec.getType(header)) {
+            case MqttCodec.PUBLISH:
+                int msgQos = (header >> 1) & 3;
+                int end = offset + length;
+                int i = offset + 2 + MqttCodec.readUnsignedShort(buf, offset);
+                int packetId = 0;
+                if(msgQos > 0) {
+                    packetId = MqttCodec.readUnsignedShort(buf, i);
+                    i += 2;
+                }
+                if(connection.getVersion() == 5) {
+                    long var = MqttCodec.readVarInt(buf, i, end);
+                    if(var < 0) {
+                        throw new IOException("Malformed PUBLISH.");
+                    }
+                    i = (int)(var >>> 32) + (int)var;
+                }
+                recordReceive(buf, i, end - i, msgQos);
+                if(msgQos == 1) {
+                    connection.sendAck(MqttCodec.PUBACK, packetId);
+                } else if(msgQos == 2) {
+                    connection.sendAck(MqttCodec.PUBREC, packetId);
+                }
+                break;
+            case MqttCodec.PUBREL:
+                connection.sendAck(MqttCodec.PUBCOMP, MqttCodec.readUnsignedShort(buf, offset));
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onClosed() {
+        onConnectionLost();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connection.isOpen();
+    }
+
+    @Override
+    public void disconnect() {
+        disconnecting = true;
+        if(connection.isOpen()) {
+            connection.disconnect();
+            Loader.LOGGER.info("Subscriber " + clientId + " disconnected.");
+        }
+        if(persistentSession) {
+            removeSession();
+        }
+    }
+
+    @Override
+    public void goOffline() {
+        disconnecting = true;
+        if(connection.isOpen()) {
+            connection.disconnect();
+            Loader.LOGGER.info("Subscriber " + clientId + " went offline.");
+        }
+    }
+
+    @Override
+    protected void resumeSession() {
+        try {
+            connection.connect(clientId, false, sessionExpiry);
+            connection.start();
+            Loader.LOGGER.info("Subscriber " + clientId + " reconnected.");
+        } catch (IOException e) {
+            Loader.LOGGER.warning("Subscriber failed to reconnect (" + clientId + ").");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected boolean tryReconnect() {
+        try {
+            connection.connect(clientId, !persistentSession, sessionExpiry);
+            connection.subscribe(topic, qos);
+            connection.start();
+            return true;
+        } catch (IOException e) {
+            connection.close();
+            return false;
+        }
+    }
+
+    /**
+     * Connect with a clean session and disconnect, so that the broker discards the session of this subscriber.
+     */
+    private void removeSession() {
+        try {
+            connection.connect(clientId, true, 0);
+            connection.disconnect();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Distributed Systems Group
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mqttloader.client;
+
+import javax.net.SocketFactory;
+
+import mqttloader.PayloadGenerator;
+import mqttloader.Recorder;
+import mqttloader.TopicGenerator;
+
+/**
+ * Engine of clients using Eclipse Paho. Each client has its own threads, e.g., to receive packets.
+ * Paho clients of v5 use topic aliases by themselves whenever the broker advertises Topic Alias Maximum.
+ */
+public class PahoEngine implements ClientEngine {
+    private final String broker;
+    private final int version;
+    private final String userName;
+    private final String password;
+    private final SocketFactory socketFactory;
+    private final CountingSocketFactory publisherSocketFactory;    // null if connected with TLS.
+    private final boolean asyncPublish;
+    private final int maxInflight;
+
+    public PahoEngine(String broker, int version, String userName, String password, SocketFactory socketFactory, boolean asyncPublish, int maxInflight) {
+        this.broker = broker;
+        this.version = version;
+        this.userName = userName;
+        this.password = password;
+        this.socketFactory = socketFactory;
+        this.publisherSocketFactory = socketFactory == null ? new CountingSocketFactory() : null;
+        this.asyncPublish = asyncPublish;
+        this.maxInflight = maxInflight;
+    }
+
+    @Override
+    public AbstractPublisher createPublisher(int clientNumber, int qos, boolean retain, TopicGenerator topicGenerator, PayloadGenerator payloadGenerator, int numMessage, int pubInterval, boolean openLoop, Recorder recorder) {
+        SocketFactory socketFactory = publisherSocketFactory != null ? publisherSocketFactory : this.socketFactory;
+        if(version==5){
+            if(asyncPublish){
+                return new AsyncPublisherV5(clientNumber, broker, userName, password, socketFactory, qos, retain, topicGenerator, payloadGenerator, numMessage, pubInterval, openLoop, maxInflight, recorder);
+            }else{
+                return new PublisherV5(clientNumber, broker, userName, password, socketFactory, qos, retain, topicGenerator, payloadGenerator, numMessage, pubInterval, openLoop, recorder);
+            }
+        }else{
+            if(asyncPublish){
+                return new AsyncPublisherV3(clientNumber, broker, userName, password, socketFactory, qos, retain, topicGenerator, payloadGenerator, numMessage, pubInterval, openLoop, maxInflight, recorder);
+            }else{
+                return new PublisherV3(clientNumber, broker, userName, password, socketFactory, qos, retain, topicGenerator, payloadGenerator, numMessage, pubInterval, openLoop, recorder);
+            }
+        }
+    }
+
+    @Override
+    public AbstractSubscriber createSubscriber(int clientNumber, int qos, boolean shSub, String topic, boolean persistentSession, boolean openLoop, boolean textHeader, Recorder recorder) {
+        if(version==5){
+            return new SubscriberV5(clientNumber, broker, userName, password, socketFactory, qos, shSub, topic, persistentSession, openLoop, textHeader, recorder);
+        }else{
+            return new SubscriberV3(clientNumber, broker, userName, password, socketFactory, qos, topic, persistentSession, openLoop, textHeader, recorder);
+        }
+    }
+
+    @Override
+    public long getNumBytesSent() {
+        return publisherSocketFactory != null ? publisherSocketFactory.getNumBytesSent() : -1;
+    }
+
+    @Override
+    public void close() {}
+}
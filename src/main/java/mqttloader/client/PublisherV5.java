@@ -17,36 +17,45 @@
 package mqttloader.client;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Properties;
+import javax.net.SocketFactory;
 
+import mqttloader.Clock;
 import mqttloader.Loader;
+import mqttloader.PayloadGenerator;
 import mqttloader.Recorder;
-import mqttloader.Util;
+import mqttloader.TopicGenerator;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
 import org.eclipse.paho.mqttv5.client.MqttClient;
 import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
 import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
 
-public class PublisherV5 extends AbstractPublisher {
+public class PublisherV5 extends AbstractPublisher implements MqttCallback {
     private MqttClient client;
+    private final MqttConnectionOptions options = new MqttConnectionOptions();
     private MqttMessage message = new MqttMessage();
 
-    public PublisherV5(int clientNumber, String broker, String userName, String password, Properties sslProps, int qos, boolean retain, String topic, int payloadSize, int numMessage, int pubInterval, Recorder recorder) {
-        super(clientNumber, topic, payloadSize, numMessage, pubInterval, recorder);
+    public PublisherV5(int clientNumber, String broker, String userName, String password, SocketFactory socketFactory, int qos, boolean retain, TopicGenerator topicGenerator, PayloadGenerator payloadGenerator, int numMessage, int pubInterval, boolean openLoop, Recorder recorder) {
+        super(clientNumber, topicGenerator, payloadGenerator, numMessage, pubInterval, openLoop, recorder);
         message.setQos(qos);
         message.setRetained(retain);
 
-        MqttConnectionOptions options = new MqttConnectionOptions();
         options.setCleanStart(true);
         if(userName != null) options.setUserName(userName);
         if(password != null) options.setPassword(password.getBytes(StandardCharsets.UTF_8));
-        if(sslProps != null) {
-            options.setSSLProperties(sslProps);
+        if(socketFactory != null) {
+            options.setSocketFactory(socketFactory);
         }
         try {
             client = new MqttClient(broker, clientId, new MemoryPersistence());
+            client.setCallback(this);
+            long connectStart = System.nanoTime();
             client.connect(options);
+            connectLatency = getElapsedMicros(connectStart);
             Loader.LOGGER.info("Publisher " + clientId + " connected.");
         } catch (MqttException e) {
             Loader.LOGGER.warning("Publisher failed to connect (" + clientId + ").");
@@ -57,24 +66,33 @@ public class PublisherV5 extends AbstractPublisher {
 
     @Override
     protected void publish() {
-        long sentEpochMicros = Util.getEpochMicros(Util.getCurrentTimeWithOffset());
-        message.setPayload(Util.genPayloads(payloadSize, sentEpochMicros));
+        long sentEpochMicros = Clock.currentEpochMicros();
+        byte[] payload = trimPayload(genPayload(sentEpochMicros));
+        message.setPayload(payload);
         try {
-            client.publish(topic, message);
+            client.publish(nextTopic(), message);
+            countSentToTopic(currentTopicIndex);
         } catch (MqttException me) {
+            if(isReconnectEnabled()) {
+                // The connection may be lost after checking isConnected().
+                failedToPublish();
+                return;
+            }
             me.printStackTrace();
         }
+        releasePayload(payload);
 
         recordSend(sentEpochMicros);
     }
 
     @Override
-    protected boolean isConnected() {
+    public boolean isConnected() {
         return client.isConnected();
     }
 
     @Override
     public void disconnect() {
+        disconnecting = true;
         terminateTasks();
 
         if (client.isConnected()) {
@@ -86,4 +104,34 @@ public class PublisherV5 extends AbstractPublisher {
             }
         }
     }
+
+    @Override
+    protected boolean tryReconnect() {
+        try {
+            client.connect(options);
+            return true;
+        } catch (MqttException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void disconnected(MqttDisconnectResponse disconnectResponse) {
+        onConnectionLost();
+    }
+
+    @Override
+    public void mqttErrorOccurred(MqttException exception) {}
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) throws Exception {}
+
+    @Override
+    public void deliveryComplete(IMqttToken token) {}
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {}
+
+    @Override
+    public void authPacketArrived(int reasonCode, MqttProperties properties) {}
 }
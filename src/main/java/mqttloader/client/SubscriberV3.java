@@ -16,7 +16,7 @@
 
 package mqttloader.client;
 
-import java.util.Properties;
+import javax.net.SocketFactory;
 
 import mqttloader.Loader;
 import mqttloader.Recorder;
@@ -31,23 +31,33 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 public class SubscriberV3 extends AbstractSubscriber implements MqttCallback {
     private MqttClient client;
+    private final MqttConnectOptions options = new MqttConnectOptions();
+    private final boolean persistentSession;
+    private final String topic;
+    private final int qos;
 
-    public SubscriberV3(int clientNumber, String broker, String userName, String password, Properties sslProps, int qos, String topic, Recorder recorder) {
-        super(clientNumber, recorder);
-        MqttConnectOptions options = new MqttConnectOptions();
+    public SubscriberV3(int clientNumber, String broker, String userName, String password, SocketFactory socketFactory, int qos, String topic, boolean persistentSession, boolean openLoop, boolean textHeader, Recorder recorder) {
+        super(clientNumber, openLoop, textHeader, recorder);
+        this.persistentSession = persistentSession;
+        this.topic = topic;
+        this.qos = qos;
         options.setMqttVersion(4);
-        options.setCleanSession(true);
+        options.setCleanSession(!persistentSession);
         if(userName != null) options.setUserName(userName);
         if(password != null) options.setPassword(password.toCharArray());
-        if(sslProps != null) {
-            options.setSSLProperties(sslProps);
+        if(socketFactory != null) {
+            options.setSocketFactory(socketFactory);
         }
         try {
             client = new MqttClient(broker, clientId, new MemoryPersistence());
             client.setCallback(this);
+            long connectStart = System.nanoTime();
             client.connect(options);
+            connectLatency = getElapsedMicros(connectStart);
             Loader.LOGGER.info("Subscriber " + clientId + " connected.");
+            long subscribeStart = System.nanoTime();
             client.subscribe(topic, qos);
+            subscribeLatency = getElapsedMicros(subscribeStart);
             Loader.LOGGER.info("Subscribed to topic \"" + topic + "\" with QoS " + qos + " (" + clientId + ").");
         } catch (MqttException e) {
             Loader.LOGGER.warning("Subscriber failed to connect (" + clientId + ").");
@@ -56,8 +66,14 @@ public class SubscriberV3 extends AbstractSubscriber implements MqttCallback {
         }
     }
 
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
     @Override
     public void disconnect() {
+        disconnecting = true;
         if (client.isConnected()) {
             try {
                 client.disconnect();
@@ -66,14 +82,69 @@ public class SubscriberV3 extends AbstractSubscriber implements MqttCallback {
                 e.printStackTrace();
             }
         }
+        if(persistentSession) {
+            removeSession();
+        }
+    }
+
+    @Override
+    public void goOffline() {
+        disconnecting = true;
+        if (client.isConnected()) {
+            try {
+                client.disconnect();
+                Loader.LOGGER.info("Subscriber " + clientId + " went offline.");
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    protected void resumeSession() {
+        try {
+            client.connect(options);
+            Loader.LOGGER.info("Subscriber " + clientId + " reconnected.");
+        } catch (MqttException e) {
+            Loader.LOGGER.warning("Subscriber failed to reconnect (" + clientId + ").");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected boolean tryReconnect() {
+        try {
+            if(!client.isConnected()) {
+                client.connect(options);
+            }
+            client.subscribe(topic, qos);
+            return true;
+        } catch (MqttException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Connect with a clean session and disconnect, so that the broker discards the session of this subscriber.
+     */
+    private void removeSession() {
+        options.setCleanSession(true);
+        try {
+            client.connect(options);
+            client.disconnect();
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
-    public void connectionLost(Throwable cause) {}
+    public void connectionLost(Throwable cause) {
+        onConnectionLost();
+    }
 
     @Override
     public void messageArrived(String topic, MqttMessage message) throws Exception {
-        recordReceive(topic, message.getPayload());
+        recordReceive(topic, message.getPayload(), message.getQos());
     }
 
     @Override
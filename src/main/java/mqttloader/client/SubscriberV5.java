@@ -17,8 +17,9 @@
 package mqttloader.client;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Properties;
+import javax.net.SocketFactory;
 
+import mqttloader.Constants;
 import mqttloader.Loader;
 import mqttloader.Recorder;
 import org.eclipse.paho.mqttv5.client.IMqttToken;
@@ -33,29 +34,36 @@ import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
 
 public class SubscriberV5 extends AbstractSubscriber implements MqttCallback {
     private MqttClient client;
+    private final MqttConnectionOptions options = new MqttConnectionOptions();
+    private final boolean persistentSession;
+    private final String topic;
+    private final int qos;
 
-    public SubscriberV5(int clientNumber, String broker, String userName, String password, Properties sslProps, int qos, boolean shSub, String topic, Recorder recorder) {
-        super(clientNumber, recorder);
-        MqttConnectionOptions options = new MqttConnectionOptions();
-        options.setCleanStart(true);
+    public SubscriberV5(int clientNumber, String broker, String userName, String password, SocketFactory socketFactory, int qos, boolean shSub, String topic, boolean persistentSession, boolean openLoop, boolean textHeader, Recorder recorder) {
+        super(clientNumber, openLoop, textHeader, recorder);
+        this.persistentSession = persistentSession;
+        this.topic = shSub ? "$share/mqttload/"+topic : topic;
+        this.qos = qos;
+        options.setCleanStart(!persistentSession);
+        if(persistentSession) {
+            options.setSessionExpiryInterval(Constants.SESSION_EXPIRY_INTERVAL);
+        }
         if(userName != null) options.setUserName(userName);
         if(password != null) options.setPassword(password.getBytes(StandardCharsets.UTF_8));
-        if(sslProps != null) {
-            options.setSSLProperties(sslProps);
+        if(socketFactory != null) {
+            options.setSocketFactory(socketFactory);
         }
         try {
             client = new MqttClient(broker, clientId, new MemoryPersistence());
             client.setCallback(this);
+            long connectStart = System.nanoTime();
             client.connect(options);
+            connectLatency = getElapsedMicros(connectStart);
             Loader.LOGGER.info("Subscriber " + clientId + " connected.");
-            String t;
-            if(shSub){
-                t = "$share/mqttload/"+topic;
-            }else{
-                t = topic;
-            }
-            client.subscribe(t, qos);
-            Loader.LOGGER.info("Subscribed to topic \"" + t + "\" with QoS " + qos + " (" + clientId + ").");
+            long subscribeStart = System.nanoTime();
+            client.subscribe(this.topic, qos);
+            subscribeLatency = getElapsedMicros(subscribeStart);
+            Loader.LOGGER.info("Subscribed to topic \"" + this.topic + "\" with QoS " + qos + " (" + clientId + ").");
         } catch (MqttException e) {
             Loader.LOGGER.warning("Subscriber failed to connect (" + clientId + ").");
             e.printStackTrace();
@@ -63,8 +71,14 @@ public class SubscriberV5 extends AbstractSubscriber implements MqttCallback {
         }
     }
 
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
     @Override
     public void disconnect() {
+        disconnecting = true;
         if (client.isConnected()) {
             try {
                 client.disconnect();
@@ -73,17 +87,73 @@ public class SubscriberV5 extends AbstractSubscriber implements MqttCallback {
                 e.printStackTrace();
             }
         }
+        if(persistentSession) {
+            removeSession();
+        }
     }
 
     @Override
-    public void disconnected(MqttDisconnectResponse disconnectResponse) {}
+    public void goOffline() {
+        disconnecting = true;
+        if (client.isConnected()) {
+            try {
+                client.disconnect();
+                Loader.LOGGER.info("Subscriber " + clientId + " went offline.");
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    protected void resumeSession() {
+        try {
+            client.connect(options);
+            Loader.LOGGER.info("Subscriber " + clientId + " reconnected.");
+        } catch (MqttException e) {
+            Loader.LOGGER.warning("Subscriber failed to reconnect (" + clientId + ").");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected boolean tryReconnect() {
+        try {
+            if(!client.isConnected()) {
+                client.connect(options);
+            }
+            client.subscribe(topic, qos);
+            return true;
+        } catch (MqttException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Connect with a clean session and disconnect, so that the broker discards the session of this subscriber.
+     */
+    private void removeSession() {
+        options.setCleanStart(true);
+        options.setSessionExpiryInterval(0L);
+        try {
+            client.connect(options);
+            client.disconnect();
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void disconnected(MqttDisconnectResponse disconnectResponse) {
+        onConnectionLost();
+    }
 
     @Override
     public void mqttErrorOccurred(MqttException exception) {}
 
     @Override
     public void messageArrived(String topic, MqttMessage message) throws Exception {
-        recordReceive(topic, message.getPayload());
+        recordReceive(topic, message.getPayload(), message.getQos());
     }
 
     @Override